@@ -0,0 +1,118 @@
+package project.adb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class holds an aggregate of committed values: how many there are, their sum,
+ * their minimum and their maximum. A site computes a partial aggregate over the
+ * variables it is responsible for, and the partial aggregates of the sites combine
+ * into the aggregate of all of them. A site also lists the variables it was
+ * responsible for but could not read, so another copy can be read instead.
+ */
+public class Aggregate {
+  private long count = 0;
+  private long sum = 0;
+  private int min = Integer.MAX_VALUE;
+  private int max = Integer.MIN_VALUE;
+  private List<Integer> unread = new ArrayList<Integer>();
+
+  /**
+   * Creates an empty aggregate.
+   */
+  public Aggregate() {
+  }
+
+  /**
+   * Creates an aggregate from its parts, as a remote site sends them.
+   */
+  Aggregate(long count, long sum, int min, int max) {
+    this.count = count;
+    this.sum = sum;
+    this.min = min;
+    this.max = max;
+  }
+
+  /**
+   * @param value a value to add to the aggregate
+   */
+  public void add(int value) {
+    count++;
+    sum += value;
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+  }
+
+  /**
+   * Adds another aggregate over different variables to this one.
+   * @param other the aggregate to add
+   */
+  public void combine(Aggregate other) {
+    count += other.count;
+    sum += other.sum;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+    unread.addAll(other.unread);
+  }
+
+  /**
+   * @param index a variable that could not be read
+   */
+  public void addUnread(int index) {
+    unread.add(index);
+  }
+
+  /**
+   * @return the variables that could not be read
+   */
+  public List<Integer> getUnread() {
+    return unread;
+  }
+
+  /**
+   * @return the number of values
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * @return the sum of the values
+   */
+  public long getSum() {
+    return sum;
+  }
+
+  /**
+   * @return the smallest value
+   */
+  public int getMin() {
+    return min;
+  }
+
+  /**
+   * @return the largest value
+   */
+  public int getMax() {
+    return max;
+  }
+
+  /**
+   * @param function sum, count, min or max
+   * @return the value of the function, or none for the min or max of no values
+   */
+  public String valueOf(String function) {
+    if (function.equals("sum")) {
+      return String.valueOf(sum);
+    } else if (function.equals("count")) {
+      return String.valueOf(count);
+    } else if (count == 0) {
+      return "none";
+    } else if (function.equals("min")) {
+      return String.valueOf(min);
+    } else if (function.equals("max")) {
+      return String.valueOf(max);
+    }
+    throw new IllegalArgumentException("Unknown aggregate function " + function);
+  }
+}
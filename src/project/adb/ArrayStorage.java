@@ -0,0 +1,73 @@
+package project.adb;
+
+import java.util.Arrays;
+
+/**
+ * This class keeps the values of a site in arrays in memory, with a slot for every
+ * index whether or not the site holds it. It is the fastest storage, but every site
+ * needs room on the heap for all the indexes.
+ */
+public class ArrayStorage implements Storage {
+  private Placement placement;
+  private int[] values;
+  private boolean[] readyToBeRead;
+  private int[] versions;
+
+  /**
+   * @param placement the placement telling how many indexes there are and which are replicated
+   */
+  public ArrayStorage(Placement placement) {
+    int size = placement.getIndexCount() + 1;
+    this.placement = placement;
+    values = new int[size];
+    Arrays.fill(values, 1, size, 10);
+    readyToBeRead = new boolean[size];
+    Arrays.fill(readyToBeRead, 1, size, true);
+    versions = new int[size];
+  }
+
+  public int getValue(int index) {
+    return values[index];
+  }
+
+  public int getVersion(int index) {
+    return versions[index];
+  }
+
+  public boolean isReadyToBeRead(int index) {
+    return readyToBeRead[index];
+  }
+
+  public int[] scan(int from, int to) {
+    int[] page = new int[2 * Math.max(0, to - from + 1)];
+    for (int i = from; i <= to; i++) {
+      page[2 * (i - from)] = values[i];
+      page[2 * (i - from) + 1] = readyToBeRead[i] ? 1 : 0;
+    }
+    return page;
+  }
+
+  public void put(int index, int value, int version) {
+    values[index] = value;
+    versions[index] = version;
+    readyToBeRead[index] = true;
+  }
+
+  public void load(int[] pairs, int size) {
+    for (int k = 0; k < size; k += 2) {
+      values[pairs[k]] = pairs[k + 1];
+      readyToBeRead[pairs[k]] = true;
+    }
+  }
+
+  public void fail() {
+    for (int i = 0; i < readyToBeRead.length; i++) {
+      if (placement.isReplicated(i)) {
+        readyToBeRead[i] = false;
+      }
+    }
+  }
+
+  public void close() {
+  }
+}
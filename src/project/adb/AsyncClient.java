@@ -0,0 +1,232 @@
+package project.adb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * This class lets a program run transactions without waiting for them. Every read,
+ * write and commit returns a future. A read completes with the value read, a write
+ * once the transaction holds its write locks, and a commit with true once the writes
+ * are applied or with false if the transaction aborted. A read or write of a transaction
+ * that aborts completes exceptionally.
+ * A transaction runs one operation at a time, so its operations are queued until the
+ * ones before them complete. Nothing runs until poll() is called. Each call is like
+ * a line of a script: it sends the next operation of every transaction, lets the waiting
+ * transactions try again and completes the futures of what is done. So a single thread
+ * calling poll() in a loop drives every transaction in flight, and the futures' callbacks
+ * run on that thread and may send more operations.
+ */
+public class AsyncClient {
+  private Cluster cluster;
+  private Map<Integer, LinkedList<Operation>> operations = new LinkedHashMap<Integer, LinkedList<Operation>>();
+  private Map<Integer, Transaction> transactions = new HashMap<Integer, Transaction>();
+
+  /**
+   * Creates a client of the given cluster.
+   * @param cluster the cluster to run the transactions on
+   */
+  public AsyncClient(Cluster cluster) {
+    if (cluster.isDeterministic()) {
+      throw new IllegalStateException("The deterministic execution runs whole transactions, not single operations");
+    }
+    this.cluster = cluster;
+  }
+
+  /**
+   * Begins a transaction. Every transaction begins at its own time, so wait-die
+   * always has an older transaction to let wait.
+   * @param tID the id of the transaction
+   * @param readOnly true if the transaction is read-only
+   */
+  public void begin(int tID, boolean readOnly) {
+    begin(tID, readOnly, "normal");
+  }
+
+  /**
+   * Begins a transaction in a priority class, see {@link Cluster#intake(int, boolean, String)}.
+   * @param tID the id of the transaction
+   * @param readOnly true if the transaction is read-only
+   * @param priority critical, normal or batch
+   */
+  public void begin(int tID, boolean readOnly, String priority) {
+    cluster.intake(tID, readOnly, priority);
+    cluster.getOracle().advance();
+  }
+
+  /**
+   * @param tID the id of the transaction
+   * @param index the index to read
+   * @return a future that completes with the value read
+   */
+  public CompletableFuture<Integer> read(int tID, int index) {
+    CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+    add(new Operation(tID, new Instruction("read", index, cluster.timestampFor(tID)), future));
+    return future;
+  }
+
+  /**
+   * @param tID the id of the transaction
+   * @param index the index to write
+   * @param value the value to write
+   * @return a future that completes when the transaction holds the write locks
+   */
+  public CompletableFuture<Void> write(int tID, int index, int value) {
+    CompletableFuture<Void> future = new CompletableFuture<Void>();
+    add(new Operation(tID, new Instruction("write", index, value, cluster.timestampFor(tID)), future));
+    return future;
+  }
+
+  /**
+   * @param tID the id of the transaction
+   * @return a future that completes with true when the transaction's writes are applied,
+   * or with false if it aborted
+   */
+  public CompletableFuture<Boolean> commit(int tID) {
+    CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+    add(new Operation(tID, null, future));
+    return future;
+  }
+
+  private void add(Operation operation) {
+    LinkedList<Operation> queue = operations.get(operation.tID);
+    if (queue == null) {
+      queue = new LinkedList<Operation>();
+      operations.put(operation.tID, queue);
+    }
+    queue.add(operation);
+  }
+
+  /**
+   * Sends the next operation of every transaction that has not been sent yet, lets the
+   * waiting transactions try again, commits the commit groups and then completes the
+   * futures of the operations that are done.
+   * @return the number of operations still in flight
+   */
+  public int poll() {
+    List<Operation> heads = new ArrayList<Operation>();
+    for (LinkedList<Operation> queue : operations.values()) {
+      heads.add(queue.getFirst());
+    }
+    for (Operation operation : heads) {
+      if (!operation.sent) {
+        operation.sent = true;
+        if (operation.instruction == null) {
+          cluster.endTransaction(operation.tID);
+        } else {
+          cluster.intake(operation.instruction, operation.tID);
+        }
+      }
+    }
+    cluster.checkWaitingTransactions();
+    if (cluster.flushCommits()) {
+      cluster.checkWaitingTransactions();
+    }
+    cluster.getOracle().advance();
+    List<Operation> done = new ArrayList<Operation>();
+    for (Operation operation : heads) {
+      if (operation.check(transactionOf(operation.tID), cluster.isRejected(operation.tID))) {
+        done.add(operation);
+        LinkedList<Operation> queue = operations.get(operation.tID);
+        queue.removeFirst();
+        if (queue.isEmpty()) {
+          operations.remove(operation.tID);
+        }
+        if (operation.instruction == null) {
+          transactions.remove(operation.tID);
+        }
+      }
+    }
+    for (Operation operation : done) {
+      operation.complete();
+    }
+    int inFlight = 0;
+    for (LinkedList<Operation> queue : operations.values()) {
+      inFlight += queue.size();
+    }
+    return inFlight;
+  }
+
+  /**
+   * @return the transaction at its coordinator, kept so it is only looked up once
+   */
+  private Transaction transactionOf(int tID) {
+    Transaction transaction = transactions.get(tID);
+    if (transaction == null) {
+      transaction = cluster.findTransaction(tID);
+      if (transaction != null) {
+        transactions.put(tID, transaction);
+      }
+    }
+    return transaction;
+  }
+
+  /**
+   * A read, a write or, without an instruction, a commit, and its future.
+   */
+  private static class Operation {
+    private int tID;
+    private Instruction instruction;
+    private CompletableFuture<?> future;
+    private boolean sent = false;
+    private Object result = null;
+    private String failure = null;
+
+    Operation(int tID, Instruction instruction, CompletableFuture<?> future) {
+      this.tID = tID;
+      this.instruction = instruction;
+      this.future = future;
+    }
+
+    /**
+     * Decides if the operation is done and how it ends. A transaction waiting to restart
+     * is not done: it sends its instructions again when it restarts.
+     * @return true if the operation is done
+     */
+    boolean check(Transaction transaction, boolean rejected) {
+      if (transaction == null) {
+        if (rejected) {
+          result = false;
+          failure = "Transaction " + tID + " was rejected";
+        }
+        return rejected;
+      }
+      boolean aborted = transaction.getState().equals("aborted") && !transaction.isRestartPending();
+      if (instruction == null) {
+        if (aborted) {
+          result = false;
+          return true;
+        } else if (!transaction.isEnded() || transaction.getState().equals("prepared")) {
+          return false;
+        }
+        result = transaction.getState().equals("ready");
+        return true;
+      }
+      if (aborted) {
+        failure = "Transaction " + tID + " aborted";
+        return true;
+      } else if (instruction.getAction().equals("read")) {
+        result = instruction.getResult();
+        return instruction.isDone();
+      }
+      return transaction.getState().equals("ready");
+    }
+
+    @SuppressWarnings("unchecked")
+    void complete() {
+      if (instruction == null) {
+        ((CompletableFuture<Boolean>) future).complete((Boolean) result);
+      } else if (failure != null) {
+        future.completeExceptionally(new IllegalStateException(failure));
+      } else if (instruction.getAction().equals("read")) {
+        ((CompletableFuture<Integer>) future).complete((Integer) result);
+      } else {
+        ((CompletableFuture<Void>) future).complete(null);
+      }
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package project.adb;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class decides which index to move when the load of the sites is uneven. It
+ * counts the instructions sent for each index that has a single copy, and the load of
+ * a site is the count of the indexes it holds. The copies of the other indexes share
+ * their load between them, so moving them would not help. When asked, it finds the
+ * busiest and the least busy ready sites, and picks the index of the busiest site whose
+ * move to the least busy one lowers the load of the busiest site the most. A move must
+ * lower it by at least a tenth, so a single hot index does not bounce between two sites.
+ * The counts start over after every decision.
+ */
+public class Balancer {
+  private Cluster cluster;
+  private int period;
+  private int lines = 0;
+  private Map<Integer, int[]> accesses = new HashMap<Integer, int[]>();
+  private int decisions = 0;
+
+  /**
+   * @param cluster the cluster whose sites are balanced
+   * @param period how many lines apart the cluster balances on its own, or 0 for never
+   */
+  Balancer(Cluster cluster, int period) {
+    if (period < 0) {
+      throw new IllegalArgumentException("The balancing period cannot be negative");
+    }
+    this.cluster = cluster;
+    this.period = period;
+  }
+
+  /**
+   * Counts an instruction sent for an index.
+   * @param index the index
+   */
+  void record(int index) {
+    if (cluster.getPlacement().isReplicated(index)) {
+      return;
+    }
+    int[] count = accesses.get(index);
+    if (count == null) {
+      count = new int[1];
+      accesses.put(index, count);
+    }
+    count[0]++;
+  }
+
+  /**
+   * Called at the end of every line.
+   * @return true if it is time to balance
+   */
+  boolean endLine() {
+    return period > 0 && ++lines % period == 0;
+  }
+
+  /**
+   * @return the load of each site since the last decision, by site id
+   */
+  public long[] getLoads() {
+    long[] loads = new long[cluster.getSites().length];
+    for (Map.Entry<Integer, int[]> entry : accesses.entrySet()) {
+      loads[cluster.getPlacement().getSites(entry.getKey()).get(0)] += entry.getValue()[0];
+    }
+    return loads;
+  }
+
+  /**
+   * Picks an index to move and starts counting again.
+   * @return the index and the id of the site it moves to, or null if no move helps enough
+   */
+  int[] decide() {
+    long[] loads = getLoads();
+    Site[] sites = cluster.getSites();
+    int busiest = 0;
+    int idlest = 0;
+    for (int i = 1; i < sites.length; i++) {
+      if (sites[i].getState().equals("failed")) {
+        continue;
+      }
+      if (busiest == 0 || loads[i] > loads[busiest]) {
+        busiest = i;
+      }
+      if (idlest == 0 || loads[i] < loads[idlest]) {
+        idlest = i;
+      }
+    }
+    int[] move = null;
+    long best = 0;
+    for (Map.Entry<Integer, int[]> entry : accesses.entrySet()) {
+      if (busiest == idlest || cluster.getPlacement().getSites(entry.getKey()).get(0) != busiest) {
+        continue;
+      }
+      long load = entry.getValue()[0];
+      long lowered = loads[busiest] - Math.max(loads[busiest] - load, loads[idlest] + load);
+      if (lowered > best || (lowered == best && move != null && entry.getKey() < move[0])) {
+        best = lowered;
+        move = new int[] {entry.getKey(), idlest};
+      }
+    }
+    accesses.clear();
+    decisions++;
+    return best * 10 >= loads[busiest] && best > 0 ? move : null;
+  }
+
+  /**
+   * @return how many times the balancer decided
+   */
+  public int getDecisionCount() {
+    return decisions;
+  }
+}
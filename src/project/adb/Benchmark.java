@@ -0,0 +1,767 @@
+package project.adb;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * This class measures how fast the database does things that scripts are too
+ * small to show. It prints its measurements to standard output.
+ * Usage: Benchmark load keys [csv|binary] [options], Benchmark batch keys [batch-size]
+ * [options], Benchmark storage keys, Benchmark ingest transactions [hot-keys] [options],
+ * Benchmark shards transactions [hot-keys] [options], Benchmark async transactions [keys]
+ * [options], Benchmark isolation transactions [keys] [options], Benchmark changes
+ * transactions [keys] [options], Benchmark balance transactions [hot-keys] [options],
+ * Benchmark priority transactions [hot-keys] [options], Benchmark replication
+ * transactions [keys] [options], Benchmark detector sites [minutes] or Benchmark server clients
+ * [transactions-per-client] [options], where the options are the same --name=value
+ * options DatabaseApp takes.
+ */
+public class Benchmark {
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2 || !(args[0].equals("load") || args[0].equals("batch") || args[0].equals("storage") ||
+        args[0].equals("ingest") || args[0].equals("shards") || args[0].equals("async") ||
+        args[0].equals("server") || args[0].equals("isolation") || args[0].equals("changes") ||
+        args[0].equals("balance") || args[0].equals("detector") || args[0].equals("priority") ||
+        args[0].equals("replication"))) {
+      System.out.println("Usage: Benchmark load keys [csv|binary] [--name=value ...]");
+      System.out.println("       Benchmark batch keys [batch-size] [--name=value ...]");
+      System.out.println("       Benchmark storage keys");
+      System.out.println("       Benchmark ingest transactions [hot-keys] [--name=value ...]");
+      System.out.println("       Benchmark shards transactions [hot-keys] [--name=value ...]");
+      System.out.println("       Benchmark async transactions [keys] [--name=value ...]");
+      System.out.println("       Benchmark isolation transactions [keys] [--name=value ...]");
+      System.out.println("       Benchmark changes transactions [keys] [--name=value ...]");
+      System.out.println("       Benchmark balance transactions [hot-keys] [--name=value ...]");
+      System.out.println("       Benchmark priority transactions [hot-keys] [--name=value ...]");
+      System.out.println("       Benchmark replication transactions [keys] [--name=value ...]");
+      System.out.println("       Benchmark detector sites [minutes]");
+      System.out.println("       Benchmark server clients [transactions-per-client] [--name=value ...]");
+      return;
+    }
+    int keys = Integer.parseInt(args[1]);
+    if (args[0].equals("storage")) {
+      benchmarkStorage(keys, "memory");
+      benchmarkStorage(keys, "lsm");
+      return;
+    }
+    String mode = args.length > 2 && !args[2].startsWith("--") ? args[2] : null;
+    if (args[0].equals("detector")) {
+      int minutes = mode == null ? 60 : Integer.parseInt(mode);
+      for (int timeout : new int[] {100, 200, 400}) {
+        benchmarkDetector(keys, minutes, "timeout", timeout);
+      }
+      for (int phi : new int[] {4, 8, 12}) {
+        benchmarkDetector(keys, minutes, "phi", phi);
+      }
+      return;
+    }
+    if (args[0].equals("ingest") || args[0].equals("shards")) {
+      int hotKeys = mode == null ? 100 : Integer.parseInt(mode);
+      String[] options = Arrays.copyOfRange(args, mode == null ? 2 : 3, args.length);
+      for (String execution : new String[] {"locking", "deterministic"}) {
+        benchmarkIngest(keys, hotKeys, execution, false, options);
+        if (args[0].equals("shards")) {
+          benchmarkIngest(keys, hotKeys, execution, true, options);
+        }
+      }
+      return;
+    }
+    if (args[0].equals("isolation")) {
+      String[] options = Arrays.copyOfRange(args, mode == null ? 2 : 3, args.length);
+      for (String isolation : new String[] {"2pl", "si", "ssi"}) {
+        benchmarkIsolation(keys, mode == null ? 100 : Integer.parseInt(mode), isolation, options);
+      }
+      return;
+    }
+    if (args[0].equals("replication")) {
+      String[] options = Arrays.copyOfRange(args, mode == null ? 2 : 3, args.length);
+      for (String replication : new String[] {"available-copies", "quorum"}) {
+        benchmarkReplication(keys, mode == null ? 100 : Integer.parseInt(mode), replication, options);
+      }
+      return;
+    }
+    if (args[0].equals("balance")) {
+      String[] options = Arrays.copyOfRange(args, mode == null ? 2 : 3, args.length);
+      benchmarkBalance(keys, mode == null ? 8 : Integer.parseInt(mode), false, options);
+      benchmarkBalance(keys, mode == null ? 8 : Integer.parseInt(mode), true, options);
+      return;
+    }
+    if (args[0].equals("priority")) {
+      String[] options = Arrays.copyOfRange(args, mode == null ? 2 : 3, args.length);
+      benchmarkPriority(keys, mode == null ? 8 : Integer.parseInt(mode), false, options);
+      benchmarkPriority(keys, mode == null ? 8 : Integer.parseInt(mode), true, options);
+      return;
+    }
+    if (args[0].equals("changes")) {
+      String[] options = Arrays.copyOfRange(args, mode == null ? 2 : 3, args.length);
+      benchmarkChanges(keys, mode == null ? 10000 : Integer.parseInt(mode), false, options);
+      benchmarkChanges(keys, mode == null ? 10000 : Integer.parseInt(mode), true, options);
+      return;
+    }
+    Outputter output = new Outputter(false);
+    boolean server = args[0].equals("server");
+    output.setValuesShown(!server);
+    Cluster cluster = new Cluster(output);
+    boolean async = args[0].equals("async");
+    if (!server) {
+      cluster.setIndexCount(async ? (mode == null ? 1000 : Integer.parseInt(mode)) : keys);
+    }
+    for (int i = mode == null ? 2 : 3; i < args.length; i++) {
+      DatabaseApp.applyOption(cluster, args[i]);
+    }
+    try {
+      if (server) {
+        benchmarkServer(cluster, output, keys, mode == null ? 1000 : Integer.parseInt(mode));
+      } else if (async) {
+        benchmarkAsync(cluster, output, keys, cluster.getPlacement().getIndexCount());
+      } else if (args[0].equals("load")) {
+        benchmarkLoad(cluster, keys, "csv".equals(mode));
+      } else {
+        benchmarkBatch(cluster, output, keys, mode == null ? 100 : Integer.parseInt(mode));
+      }
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  /**
+   * Writes a file with a value for every index, then loads it.
+   */
+  private static void benchmarkLoad(Cluster cluster, int keys, boolean csv) throws IOException {
+    File file = File.createTempFile("bulkload", csv ? ".csv" : ".bin");
+    file.deleteOnExit();
+    long start = System.nanoTime();
+    OutputStream stream = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+    DataOutputStream data = new DataOutputStream(stream);
+    for (int i = 1; i <= keys; i++) {
+      if (csv) {
+        stream.write(("x" + i + "," + 10 * i + "\n").getBytes("US-ASCII"));
+      } else {
+        data.writeInt(i);
+        data.writeInt(10 * i);
+      }
+    }
+    data.close();
+    long written = System.nanoTime();
+    cluster.load(file.getPath());
+    long loaded = System.nanoTime();
+    System.out.println("Wrote " + keys + " keys (" + file.length() / (1 << 20) + " MB) in " +
+        (written - start) / 1000000 + " ms");
+    System.out.println("Loaded " + keys + " keys into " + (cluster.getSites().length - 1) + " sites in " +
+        (loaded - written) / 1000000 + " ms (" + (long) (keys / ((loaded - written) / 1e9)) + " keys/s)");
+    Site last = cluster.getSites()[cluster.getSites().length - 1];
+    int index = cluster.getPlacement().getSites(keys).contains(last.getID()) ? keys : keys - 1;
+    System.out.println("x" + index + " = " + last.getCommittedValueAtIndex(index));
+  }
+
+  /**
+   * Reads and then writes every index in transactions of batch-size indexes each, first
+   * with one instruction per index and then with one range-read and one multi-write per
+   * transaction. Waiting transactions are checked after every instruction, as a script does.
+   */
+  private static void benchmarkBatch(Cluster cluster, Outputter output, int keys, int batchSize) {
+    int tID = 1;
+    long start = System.nanoTime();
+    for (int first = 1; first <= keys; first += batchSize) {
+      int last = Math.min(keys, first + batchSize - 1);
+      cluster.intake(tID, false);
+      for (int i = first; i <= last; i++) {
+        cluster.intake(new Instruction("read", i, cluster.timestampFor(tID)), tID);
+        cluster.checkWaitingTransactions();
+      }
+      for (int i = first; i <= last; i++) {
+        cluster.intake(new Instruction("write", i, i, cluster.timestampFor(tID)), tID);
+        cluster.checkWaitingTransactions();
+      }
+      cluster.endTransaction(tID++);
+      cluster.checkWaitingTransactions();
+      output.takeOutput();
+    }
+    long single = System.nanoTime();
+    for (int first = 1; first <= keys; first += batchSize) {
+      int last = Math.min(keys, first + batchSize - 1);
+      int[] indexes = new int[last - first + 1];
+      int[] values = new int[indexes.length];
+      for (int k = 0; k < indexes.length; k++) {
+        indexes[k] = first + k;
+        values[k] = 2 * (first + k);
+      }
+      cluster.intake(tID, false);
+      cluster.intake(new Instruction("range-read", indexes, null, cluster.timestampFor(tID)), tID);
+      cluster.checkWaitingTransactions();
+      cluster.intake(new Instruction("multi-write", indexes, values, cluster.timestampFor(tID)), tID);
+      cluster.checkWaitingTransactions();
+      cluster.endTransaction(tID++);
+      cluster.checkWaitingTransactions();
+      output.takeOutput();
+    }
+    long batched = System.nanoTime();
+    System.out.println("Single-key instructions: " + keys + " reads and " + keys + " writes in " +
+        (single - start) / 1000000 + " ms (" + (long) (2 * keys / ((single - start) / 1e9)) + " keys/s)");
+    System.out.println("Batched instructions:    " + keys + " reads and " + keys + " writes in " +
+        (batched - single) / 1000000 + " ms (" + (long) (2 * keys / ((batched - single) / 1e9)) + " keys/s)");
+    System.out.println("Speedup with batches of " + batchSize + ": " +
+        String.format("%.1f", (single - start) / (double) (batched - single)) + "x");
+  }
+
+  /**
+   * Runs transactions that each write four random variables out of hot-keys, sixteen
+   * at a time with their writes interleaved, as clients sending them at once would,
+   * and prints how long they took and how many committed with the given execution.
+   * The shards benchmark runs them again with every site on a thread of its own.
+   */
+  private static void benchmarkIngest(int transactions, int hotKeys, String execution, boolean sharded,
+      String[] options) {
+    Outputter output = new Outputter(false);
+    Cluster cluster = new Cluster(output);
+    cluster.setIndexCount(hotKeys);
+    for (String option : options) {
+      DatabaseApp.applyOption(cluster, option);
+    }
+    if (sharded) {
+      cluster.setShardedSites(true);
+    }
+    cluster.setExecution(execution);
+    Random random = new Random(42);
+    try {
+      long start = System.nanoTime();
+      for (int first = 1; first <= transactions; first += 16) {
+        int last = Math.min(transactions, first + 15);
+        for (int tID = first; tID <= last; tID++) {
+          cluster.intake(tID, false);
+        }
+        for (int write = 0; write < 4; write++) {
+          for (int tID = first; tID <= last; tID++) {
+            cluster.intake(new Instruction("write", 1 + random.nextInt(hotKeys), tID, cluster.timestampFor(tID)), tID);
+            cluster.checkWaitingTransactions();
+          }
+        }
+        for (int tID = first; tID <= last; tID++) {
+          cluster.endTransaction(tID);
+          cluster.checkWaitingTransactions();
+        }
+        if (cluster.flushCommits()) {
+          cluster.checkWaitingTransactions();
+        }
+        cluster.getOracle().advance();
+        output.takeOutput();
+      }
+      long elapsed = System.nanoTime() - start;
+      cluster.dumpStats();
+      System.out.println(execution + (sharded ? " with sharded sites" : "") + ": " + transactions + " transactions in " + elapsed / 1000000 + " ms, " +
+          output.takeOutput());
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  /**
+   * Begins every transaction at once through an async client. Each one reads a random
+   * variable, writes it back plus one and commits, and each step is sent by a callback
+   * of the step before. A single thread polls the client until nothing is in flight.
+   */
+  private static void benchmarkAsync(Cluster cluster, Outputter output, int transactions, int keys) {
+    final AsyncClient client = new AsyncClient(cluster);
+    final int[] outcomes = new int[2];
+    Random random = new Random(42);
+    long start = System.nanoTime();
+    for (int t = 1; t <= transactions; t++) {
+      final int tID = t;
+      final int index = 1 + random.nextInt(keys);
+      client.begin(tID, false);
+      client.read(tID, index).thenCompose(new Function<Integer, CompletableFuture<Void>>() {
+        public CompletableFuture<Void> apply(Integer value) {
+          return client.write(tID, index, value + 1);
+        }
+      }).thenCompose(new Function<Void, CompletableFuture<Boolean>>() {
+        public CompletableFuture<Boolean> apply(Void written) {
+          return client.commit(tID);
+        }
+      }).whenComplete(new BiConsumer<Boolean, Throwable>() {
+        public void accept(Boolean committed, Throwable failure) {
+          outcomes[committed != null && committed ? 0 : 1]++;
+        }
+      });
+    }
+    long begun = System.nanoTime();
+    int polls = 0;
+    while (client.poll() > 0) {
+      polls++;
+      output.takeOutput();
+    }
+    long elapsed = System.nanoTime() - start;
+    System.out.println(transactions + " transactions in flight at once over " + keys + " variables: " +
+        outcomes[0] + " committed and " + outcomes[1] + " aborted in " + elapsed / 1000000 + " ms (" +
+        (long) (transactions / (elapsed / 1e9)) + " transactions/s), " + polls + " polls, beginning took " +
+        (begun - start) / 1000000 + " ms");
+  }
+
+  /**
+   * Starts a server on a free port and connects the given number of clients to it.
+   * Each client runs its transactions one after the other, and sends every line of a
+   * transaction at once without waiting for the answers: it begins the transaction,
+   * reads a random variable, writes another one and ends it. Then it waits for an
+   * answer to each line.
+   */
+  private static void benchmarkServer(Cluster cluster, Outputter output, int clients,
+      final int transactionsPerClient) throws IOException {
+    final DatabaseServer server = new DatabaseServer(cluster, output);
+    final int port = server.bind(0);
+    final int keys = cluster.getPlacement().getIndexCount();
+    Thread serving = new Thread() {
+      public void run() {
+        try {
+          server.serve();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    };
+    serving.start();
+    final AtomicInteger values = new AtomicInteger();
+    final AtomicInteger errors = new AtomicInteger();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int c = 0; c < clients; c++) {
+      final int client = c;
+      threads.add(new Thread() {
+        public void run() {
+          Random random = new Random(client);
+          try {
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            socket.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            for (int t = 0; t < transactionsPerClient; t++) {
+              int tID = 1 + client + t * 1000000;
+              out.write("begin(T" + tID + ")\nR(T" + tID + ",x" + (1 + random.nextInt(keys)) + ")\nW(T" + tID +
+                  ",x" + (1 + random.nextInt(keys)) + "," + t + ")\nend(T" + tID + ")\n");
+              out.flush();
+              int answered = 0;
+              while (answered < 4) {
+                String line = in.readLine();
+                if (line.equals("OK")) {
+                  answered++;
+                } else if (line.startsWith("ERROR")) {
+                  answered++;
+                  errors.incrementAndGet();
+                } else if (line.startsWith("R(") && line.contains(" = ")) {
+                  values.incrementAndGet();
+                }
+              }
+            }
+            out.write("quit\n");
+            out.flush();
+            while (in.readLine() != null) {
+            }
+            socket.close();
+          } catch (IOException e) {
+            throw new IllegalStateException(e);
+          }
+        }
+      });
+    }
+    long start = System.nanoTime();
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+    server.stop();
+    try {
+      serving.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    int transactions = clients * transactionsPerClient;
+    System.out.println(clients + " clients ran " + transactions + " transactions (" + transactions * 4 +
+        " lines) in " + elapsed / 1000000 + " ms (" + (long) (transactions * 4 / (elapsed / 1e9)) +
+        " lines/s), " + values.get() + " values read, " + errors.get() + " errors");
+  }
+
+  /**
+   * Runs a read-mostly mix through an async client, 32 transactions at a time. Every
+   * transaction reads four random variables, and one in four then writes one of them.
+   * Prints how long they took and how many committed with the given isolation.
+   */
+  private static void benchmarkIsolation(int transactions, int keys, String isolation, String[] options) {
+    Outputter output = new Outputter(false);
+    Cluster cluster = new Cluster(output);
+    cluster.setIndexCount(keys);
+    for (String option : options) {
+      DatabaseApp.applyOption(cluster, option);
+    }
+    cluster.setIsolation(isolation);
+    AsyncClient client = new AsyncClient(cluster);
+    final int[] outcomes = new int[2];
+    BiConsumer<Boolean, Throwable> count = new BiConsumer<Boolean, Throwable>() {
+      public void accept(Boolean committed, Throwable failure) {
+        outcomes[committed != null && committed ? 0 : 1]++;
+      }
+    };
+    Random random = new Random(42);
+    try {
+      long start = System.nanoTime();
+      for (int first = 1; first <= transactions; first += 32) {
+        int last = Math.min(transactions, first + 31);
+        for (int tID = first; tID <= last; tID++) {
+          client.begin(tID, false);
+          int index = 0;
+          for (int read = 0; read < 4; read++) {
+            index = 1 + random.nextInt(keys);
+            client.read(tID, index);
+          }
+          if (random.nextInt(4) == 0) {
+            client.write(tID, index, tID);
+          }
+          client.commit(tID).whenComplete(count);
+        }
+        while (client.poll() > 0) {
+          output.takeOutput();
+        }
+      }
+      long elapsed = System.nanoTime() - start;
+      cluster.dumpStats();
+      System.out.println(isolation + ": " + outcomes[0] + " committed and " + outcomes[1] + " aborted in " +
+          elapsed / 1000000 + " ms (" + (long) (outcomes[0] / (elapsed / 1e9)) + " commits/s), " + output.takeOutput());
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  /**
+   * Runs an update mix through an async client, 32 transactions at a time, while sites
+   * fail and recover. Every transaction reads two random variables and writes a third.
+   * After the first poll of every other batch a random site fails, so the transactions
+   * of the batch lose the locks they hold there, and it recovers two polls later.
+   * Prints how long they took and how many committed with the given replication.
+   */
+  private static void benchmarkReplication(int transactions, int keys, String replication, String[] options) {
+    Outputter output = new Outputter(false);
+    Cluster cluster = new Cluster(output);
+    cluster.setIndexCount(keys);
+    cluster.setReplication(replication);
+    for (String option : options) {
+      DatabaseApp.applyOption(cluster, option);
+    }
+    int siteCount = cluster.getPlacement().getSiteCount();
+    AsyncClient client = new AsyncClient(cluster);
+    final int[] outcomes = new int[2];
+    BiConsumer<Boolean, Throwable> count = new BiConsumer<Boolean, Throwable>() {
+      public void accept(Boolean committed, Throwable failure) {
+        outcomes[committed != null && committed ? 0 : 1]++;
+      }
+    };
+    Random random = new Random(42);
+    int failures = 0;
+    try {
+      long start = System.nanoTime();
+      for (int first = 1, batch = 1; first <= transactions; first += 32, batch++) {
+        int last = Math.min(transactions, first + 31);
+        for (int tID = first; tID <= last; tID++) {
+          client.begin(tID, false);
+          client.read(tID, 1 + random.nextInt(keys));
+          client.read(tID, 1 + random.nextInt(keys));
+          client.write(tID, 1 + random.nextInt(keys), tID);
+          client.commit(tID).whenComplete(count);
+        }
+        int failed = batch % 2 == 0 ? 1 + random.nextInt(siteCount) : 0;
+        int polls = 0;
+        while (client.poll() > 0 || polls < 3) {
+          polls++;
+          if (failed != 0 && polls == 1) {
+            cluster.siteFail(failed);
+            failures++;
+          } else if (failed != 0 && polls == 3) {
+            cluster.siteRecover(failed);
+          }
+          output.takeOutput();
+        }
+      }
+      long elapsed = System.nanoTime() - start;
+      int total = outcomes[0] + outcomes[1];
+      System.out.println(replication + ": " + outcomes[0] + " committed and " + outcomes[1] + " aborted (" +
+          String.format("%.1f", total == 0 ? 0 : 100.0 * outcomes[1] / total) + "%) with " + failures +
+          " site failures in " + elapsed / 1000000 + " ms (" + (long) (outcomes[0] / (elapsed / 1e9)) +
+          " commits/s)");
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  /**
+   * Runs transactions that each read and write one of the hot keys x1, x11, x21 and so
+   * on, which all start at site 2, one transaction a line. Prints the share of the reads
+   * that the busiest site served in the second half of the run, without balancing and
+   * with the balancer running every 50 lines.
+   */
+  private static void benchmarkBalance(int transactions, int hotKeys, boolean balanced, String[] options) {
+    Outputter output = new Outputter(false);
+    Cluster cluster = new Cluster(output);
+    cluster.setIndexCount(hotKeys * 10);
+    for (String option : options) {
+      DatabaseApp.applyOption(cluster, option);
+    }
+    if (balanced) {
+      cluster.setBalancing(50);
+    }
+    Site[] sites = cluster.getSites();
+    long[] halfway = new long[sites.length];
+    Random random = new Random(42);
+    try {
+      long start = System.nanoTime();
+      for (int tID = 1; tID <= transactions; tID++) {
+        int index = 1 + 10 * random.nextInt(hotKeys);
+        cluster.intake(tID, false);
+        cluster.intake(new Instruction("read", index, cluster.timestampFor(tID)), tID);
+        cluster.intake(new Instruction("write", index, tID, cluster.timestampFor(tID)), tID);
+        cluster.endTransaction(tID);
+        if (cluster.flushCommits()) {
+          cluster.checkWaitingTransactions();
+        }
+        cluster.getOracle().advance();
+        output.takeOutput();
+        if (tID == transactions / 2) {
+          for (int i = 1; i < sites.length; i++) {
+            halfway[i] = sites[i].getReadCount();
+          }
+        }
+      }
+      long elapsed = System.nanoTime() - start;
+      long busiest = 0;
+      long total = 0;
+      for (int i = 1; i < sites.length; i++) {
+        long reads = sites[i].getReadCount() - halfway[i];
+        busiest = Math.max(busiest, reads);
+        total += reads;
+      }
+      cluster.dumpStats();
+      System.out.println((balanced ? "Balanced: " : "Unbalanced: ") + transactions + " transactions over " + hotKeys +
+          " hot keys in " + elapsed / 1000000 + " ms, the busiest site served " + 100 * busiest / Math.max(1, total) +
+          "% of the reads in the second half, " + output.takeOutput());
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  /**
+   * Runs a mix of short critical transactions, which read and write one of the hot keys
+   * x1, x3, x5 and so on, and batch transactions, which write six of them, one in four.
+   * One transaction begins on every line. Prints how many lines the committed
+   * transactions of each class took from begin to commit, and how many aborted, with
+   * every transaction in the normal class and with the classes.
+   */
+  private static void benchmarkPriority(int transactions, int hotKeys, boolean classes, String[] options) {
+    Outputter output = new Outputter(false);
+    Cluster cluster = new Cluster(output);
+    cluster.setIndexCount(Math.max(20, 2 * hotKeys));
+    for (String option : options) {
+      DatabaseApp.applyOption(cluster, option);
+    }
+    AsyncClient client = new AsyncClient(cluster);
+    final long[] line = new long[1];
+    final List<List<Long>> latencies = new ArrayList<List<Long>>();
+    final int[] aborts = new int[2];
+    latencies.add(new ArrayList<Long>());
+    latencies.add(new ArrayList<Long>());
+    Random random = new Random(42);
+    try {
+      long start = System.nanoTime();
+      int tID = 0;
+      while (tID < transactions || client.poll() > 0) {
+        if (tID < transactions) {
+          tID++;
+          final int kind = random.nextInt(4) == 0 ? 1 : 0;
+          final long begun = line[0];
+          client.begin(tID, false, !classes ? "normal" : kind == 0 ? "critical" : "batch");
+          for (int write = 0; write < (kind == 0 ? 1 : 6); write++) {
+            int index = 1 + 2 * random.nextInt(hotKeys);
+            if (kind == 0) {
+              client.read(tID, index);
+            }
+            client.write(tID, index, tID);
+          }
+          client.commit(tID).whenComplete(new BiConsumer<Boolean, Throwable>() {
+            public void accept(Boolean committed, Throwable failure) {
+              if (committed != null && committed) {
+                latencies.get(kind).add(line[0] - begun);
+              } else {
+                aborts[kind]++;
+              }
+            }
+          });
+        }
+        if (tID < transactions) {
+          client.poll();
+        }
+        line[0]++;
+        output.takeOutput();
+      }
+      long elapsed = System.nanoTime() - start;
+      StringBuilder report = new StringBuilder(classes ? "Priority classes: " : "Arrival order: ");
+      String[] names = {"critical", "batch"};
+      for (int kind = 0; kind < 2; kind++) {
+        List<Long> lines = latencies.get(kind);
+        Collections.sort(lines);
+        long total = 0;
+        for (long l : lines) {
+          total += l;
+        }
+        report.append(names[kind] + " " + lines.size() + " committed, " + aborts[kind] + " aborted, mean " +
+            String.format("%.1f", total / (double) Math.max(1, lines.size())) + " lines, p99 " +
+            (lines.isEmpty() ? 0 : lines.get((int) (lines.size() * 0.99))) + " lines; ");
+      }
+      System.out.println(report + "in " + elapsed / 1000000 + " ms");
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  /**
+   * Commits transactions that each write a random variable, and after every 100 commits
+   * four downstream readers learn what changed: from a dump of every committed value,
+   * as they did before the change feed, or from subscribers of the feed.
+   */
+  private static void benchmarkChanges(int transactions, int keys, boolean feed, String[] options) {
+    Outputter output = new Outputter(false);
+    Cluster cluster = new Cluster(output);
+    cluster.setIndexCount(keys);
+    for (String option : options) {
+      DatabaseApp.applyOption(cluster, option);
+    }
+    List<ChangeFeed.Subscriber> subscribers = new ArrayList<ChangeFeed.Subscriber>();
+    if (feed) {
+      cluster.setChangeFeed(1024);
+      for (int s = 0; s < 4; s++) {
+        subscribers.add(cluster.getChangeFeed().subscribe());
+      }
+    }
+    Random random = new Random(42);
+    long learning = 0;
+    long learned = 0;
+    try {
+      long start = System.nanoTime();
+      for (int tID = 1; tID <= transactions; tID++) {
+        cluster.intake(tID, false);
+        cluster.intake(new Instruction("write", 1 + random.nextInt(keys), tID, cluster.timestampFor(tID)), tID);
+        cluster.endTransaction(tID);
+        output.takeOutput();
+        if (tID % 100 != 0) {
+          continue;
+        }
+        long before = System.nanoTime();
+        for (int s = 0; s < 4; s++) {
+          if (feed) {
+            ChangeFeed.Subscriber subscriber = subscribers.get(s);
+            while (subscriber.hasNext()) {
+              learned += subscriber.getValue() == subscriber.getTransaction() ? 1 : 0;
+              subscriber.next();
+            }
+          } else {
+            cluster.shorterDump();
+            learned += output.takeOutput().size();
+          }
+        }
+        learning += System.nanoTime() - before;
+      }
+      long elapsed = System.nanoTime() - start;
+      System.out.println((feed ? "Change feed: " : "Polling dump(s): ") + transactions + " commits over " + keys +
+          " keys in " + elapsed / 1000000 + " ms, " + learning / 1000000 + " ms of it learning the changes (" +
+          learned + " " + (feed ? "records" : "lines") + " read)");
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  /**
+   * Runs the heartbeats of the sites in virtual time, 50 ms apart, with the default
+   * losses, delays and stalls of the network. Every 10 seconds a site may crash, and a
+   * crashed site recovers 5 seconds later. Prints how long the detector took to suspect
+   * the crashed sites and how often it suspected a site that was up.
+   */
+  private static void benchmarkDetector(int siteCount, int minutes, String kind, double threshold) {
+    HeartbeatSimulator heartbeats = new HeartbeatSimulator(new FailureDetector(siteCount, kind, threshold, 50, 0),
+        siteCount, 50, 42);
+    Random random = new Random(7);
+    long[] recovery = new long[siteCount + 1];
+    int crashes = 0;
+    long start = System.nanoTime();
+    for (long second = 1; second <= minutes * 60L; second++) {
+      heartbeats.advance(1000);
+      for (int site = 1; site <= siteCount; site++) {
+        if (heartbeats.isDown(site) && recovery[site] <= second) {
+          heartbeats.recover(site);
+        }
+      }
+      if (second % 10 == 0 && random.nextBoolean()) {
+        int site = 1 + random.nextInt(siteCount);
+        if (!heartbeats.isDown(site)) {
+          heartbeats.crash(site);
+          recovery[site] = second + 5;
+          crashes++;
+        }
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+    long[] statistics = heartbeats.getStatistics();
+    System.out.println(kind + " " + (long) threshold + ": " + statistics[0] + " of " + crashes +
+        " crashes detected, mean " + statistics[1] + " ms, slowest " + statistics[2] + " ms, " +
+        String.format("%.2f", statistics[3] * 60.0 / minutes / siteCount) + " false suspicions per site-hour (" +
+        minutes + " virtual minutes in " + elapsed / 1000000 + " ms)");
+  }
+
+  /**
+   * Commits a value to every index of a single site and then reads random indexes,
+   * with the given storage.
+   */
+  private static void benchmarkStorage(int keys, String storage) {
+    Placement placement = new Placement(1, keys);
+    Site site = new Site(1, placement, new Outputter(false), Cluster.createStorage(storage, null, 1, placement));
+    Random random = new Random(42);
+    try {
+      long start = System.nanoTime();
+      for (int i = 1; i <= keys; i++) {
+        site.writeValueAtIndex(i, 3 * i);
+      }
+      long committed = System.nanoTime();
+      long checksum = 0;
+      for (int r = 0; r < keys; r++) {
+        checksum += site.getCommittedValueAtIndex(1 + random.nextInt(keys));
+      }
+      long read = System.nanoTime();
+      Runtime runtime = Runtime.getRuntime();
+      System.out.println(storage + ": " + keys + " commits in " + (committed - start) / 1000000 + " ms (" +
+          (long) (keys / ((committed - start) / 1e9)) + " /s), " + keys + " point reads in " +
+          (read - committed) / 1000000 + " ms (" + (long) (keys / ((read - committed) / 1e9)) + " /s), heap used " +
+          (runtime.totalMemory() - runtime.freeMemory()) / (1 << 20) + " MB, checksum " + checksum);
+    } finally {
+      site.close();
+    }
+  }
+}
@@ -0,0 +1,240 @@
+package project.adb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class populates the sites from a file of indexes and values, straight into
+ * their storage and without any transactions or locks.
+ * A file whose name ends in .csv has one index and value per line, such as "x4,40"
+ * or "4,40". Any other file is binary: pairs of big-endian 32 bit integers, the index
+ * and then the value. The file is read in parallel chunks and then every site keeps
+ * the values of the indexes it holds, all sites at the same time.
+ */
+public class BulkLoader {
+  private Placement placement;
+  private Site[] sites;
+  private int threads = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * @param placement where each index is placed
+   * @param sites the sites to load, indexed by id
+   */
+  public BulkLoader(Placement placement, Site[] sites) {
+    this.placement = placement;
+    this.sites = sites;
+  }
+
+  /**
+   * Loads a file into the sites.
+   * @param fileName the file to load
+   * @return how many values the file held
+   * @throws IOException if the file cannot be read
+   */
+  public int load(String fileName) throws IOException {
+    final int[] pairs = fileName.endsWith(".csv") ? readCsv(new File(fileName)) : readBinary(new File(fileName));
+    List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+    for (int i = 1; i < sites.length; i++) {
+      final Site site = sites[i];
+      tasks.add(new Callable<Integer>() {
+        public Integer call() {
+          return site.load(pairs);
+        }
+      });
+    }
+    runAll(tasks);
+    return pairs.length / 2;
+  }
+
+  /**
+   * Reads a binary file of index and value pairs.
+   */
+  private int[] readBinary(File file) throws IOException {
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = input.getChannel();
+      if (channel.size() % 8 != 0) {
+        throw new IllegalArgumentException(file + " does not hold whole index and value pairs");
+      }
+      if (channel.size() / 4 > Integer.MAX_VALUE - 8) {
+        throw new IllegalArgumentException(file + " is too large to load at once");
+      }
+      int[] pairs = new int[(int) (channel.size() / 4)];
+      long position = 0;
+      int read = 0;
+      while (read < pairs.length) {
+        long length = Math.min(channel.size() - position, 1L << 30);
+        IntBuffer ints = channel.map(FileChannel.MapMode.READ_ONLY, position, length).asIntBuffer();
+        int count = ints.remaining();
+        ints.get(pairs, read, count);
+        read += count;
+        position += length;
+      }
+      for (int k = 0; k < pairs.length; k += 2) {
+        checkIndex(pairs[k], file);
+      }
+      return pairs;
+    } finally {
+      input.close();
+    }
+  }
+
+  /**
+   * Reads a CSV file. The file is cut into one chunk per thread at line breaks
+   * and the chunks are parsed at the same time.
+   */
+  private int[] readCsv(final File file) throws IOException {
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    try {
+      final FileChannel channel = input.getChannel();
+      long size = channel.size();
+      int chunks = (int) Math.max(threads, size / (1L << 30) + 1);
+      long[] bounds = new long[chunks + 1];
+      bounds[chunks] = size;
+      for (int c = 1; c < chunks; c++) {
+        bounds[c] = nextLine(channel, Math.max(bounds[c - 1], size * c / chunks));
+      }
+      List<Callable<int[]>> tasks = new ArrayList<Callable<int[]>>();
+      for (int c = 0; c < chunks; c++) {
+        final long start = bounds[c];
+        final long end = bounds[c + 1];
+        tasks.add(new Callable<int[]>() {
+          public int[] call() throws IOException {
+            return parseCsv(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start), start, file);
+          }
+        });
+      }
+      List<int[]> parsed = runAll(tasks);
+      int length = 0;
+      for (int[] chunk : parsed) {
+        length += chunk.length;
+      }
+      int[] pairs = new int[length];
+      int offset = 0;
+      for (int[] chunk : parsed) {
+        System.arraycopy(chunk, 0, pairs, offset, chunk.length);
+        offset += chunk.length;
+      }
+      return pairs;
+    } finally {
+      input.close();
+    }
+  }
+
+  /**
+   * @return the position just after the first line break at or after the given one
+   */
+  private static long nextLine(FileChannel channel, long position) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(4096);
+    while (position < channel.size()) {
+      buffer.clear();
+      int read = channel.read(buffer, position);
+      for (int i = 0; i < read; i++) {
+        if (buffer.get(i) == '\n') {
+          return position + i + 1;
+        }
+      }
+      position += read;
+    }
+    return position;
+  }
+
+  /**
+   * Parses the lines of a chunk of a CSV file.
+   */
+  private int[] parseCsv(MappedByteBuffer chunk, long start, File file) {
+    int[] pairs = new int[1024];
+    int size = 0;
+    while (chunk.hasRemaining()) {
+      int lineStart = chunk.position();
+      byte b = chunk.get();
+      if (b == '\n' || b == '\r') {
+        continue;
+      }
+      if (b == 'x' || b == 'X') {
+        b = chunk.hasRemaining() ? chunk.get() : (byte) '\n';
+      }
+      long[] index = parseNumber(chunk, b);
+      long[] value = index[1] == ',' && chunk.hasRemaining() ? parseNumber(chunk, chunk.get()) : null;
+      if (value == null || (value[1] != '\n' && value[1] != '\r')) {
+        throw new IllegalArgumentException("Bad line at byte " + (start + lineStart) + " of " + file);
+      }
+      checkIndex(index[0], file);
+      if (size == pairs.length) {
+        pairs = Arrays.copyOf(pairs, size * 2);
+      }
+      pairs[size++] = (int) index[0];
+      pairs[size++] = (int) value[0];
+    }
+    return Arrays.copyOf(pairs, size);
+  }
+
+  /**
+   * Parses a decimal number.
+   * @param first the first byte of the number
+   * @return the number and the byte after it, or a line break at the end of the chunk
+   */
+  private static long[] parseNumber(ByteBuffer chunk, byte first) {
+    boolean negative = first == '-';
+    byte b = negative ? (chunk.hasRemaining() ? chunk.get() : (byte) '\n') : first;
+    long number = 0;
+    int digits = 0;
+    while (b >= '0' && b <= '9' && digits < 11) {
+      number = number * 10 + (b - '0');
+      digits++;
+      b = chunk.hasRemaining() ? chunk.get() : (byte) '\n';
+    }
+    if (digits == 0 || number > Integer.MAX_VALUE + (negative ? 1L : 0L)) {
+      return new long[] {0, -1};
+    }
+    return new long[] {negative ? -number : number, b};
+  }
+
+  private void checkIndex(long index, File file) {
+    if (index < 1 || index > placement.getIndexCount()) {
+      throw new IllegalArgumentException(file + " holds index " + index + " but there are only " +
+          placement.getIndexCount() + " indexes");
+    }
+  }
+
+  /**
+   * Runs tasks on a pool of threads and waits for all of them.
+   * @return the results, in the order of the tasks
+   */
+  private <T> List<T> runAll(List<Callable<T>> tasks) throws IOException {
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, tasks.size())));
+    try {
+      List<T> results = new ArrayList<T>();
+      for (Future<T> future : pool.invokeAll(tasks)) {
+        results.add(future.get());
+      }
+      return results;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("The load was interrupted", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
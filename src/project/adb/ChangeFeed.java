@@ -0,0 +1,212 @@
+package project.adb;
+
+import java.lang.invoke.VarHandle;
+
+/**
+ * This class is a change-data-capture feed of the committed writes. Every write of a
+ * committed transaction becomes a record, in the order the commits are applied, with
+ * the commit timestamp, the transaction, the index, the value and the sites that were
+ * sent it. Each record has a position, which counts up from 0 over the life of the feed.
+ * The records are kept in a ring of a fixed number of slots. The ring is made of arrays
+ * of primitives that are filled in place, so publishing allocates nothing, and a
+ * subscriber reads the fields of a record straight from the ring instead of copying it.
+ * Every subscriber has a cursor of its own and may start at, or go back to, any position
+ * the ring still holds. Commits never wait for subscribers: a subscriber that falls a
+ * whole ring behind has lost the records that were written over, and it learns that
+ * when it moves on. One thread publishes, and subscribers may read from other threads:
+ * the publisher claims a position before it fills the slot, so a subscriber that read
+ * a slot while it was filled sees the claim afterwards.
+ */
+public class ChangeFeed {
+  private final int mask;
+  private final long[] timestamps;
+  private final int[] transactions;
+  private final int[] indexes;
+  private final int[] values;
+  private final long[] sites;
+  private volatile long claimed = 0;
+  private volatile long head = 0;
+
+  /**
+   * @param capacity the number of records the ring holds, rounded up to a power of two
+   */
+  public ChangeFeed(int capacity) {
+    if (capacity < 1 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("A change feed holds between 1 and " + (1 << 30) + " records");
+    }
+    int slots = Integer.highestOneBit(capacity);
+    if (slots < capacity) {
+      slots <<= 1;
+    }
+    mask = slots - 1;
+    timestamps = new long[slots];
+    transactions = new int[slots];
+    indexes = new int[slots];
+    values = new int[slots];
+    sites = new long[slots];
+  }
+
+  /**
+   * @param siteID the id of a site, from 1 to 63
+   * @return the bit of the site in the sites of a record
+   */
+  public static long siteBit(int siteID) {
+    if (siteID < 1 || siteID > 63) {
+      throw new IllegalArgumentException("The change feed records sites 1 to 63, not site " + siteID);
+    }
+    return 1L << siteID;
+  }
+
+  /**
+   * Adds a record for a committed write, writing over the oldest record if the ring is full.
+   * @param timestamp when the transaction committed
+   * @param tID the id of the transaction
+   * @param index the index written
+   * @param value the value written
+   * @param siteBits the bits of the sites the write was sent to
+   * @return the position of the record
+   */
+  public long publish(long timestamp, int tID, int index, int value, long siteBits) {
+    long position = head;
+    int slot = (int) position & mask;
+    claimed = position + 1;
+    VarHandle.storeStoreFence();
+    timestamps[slot] = timestamp;
+    transactions[slot] = tID;
+    indexes[slot] = index;
+    values[slot] = value;
+    sites[slot] = siteBits;
+    head = position + 1;
+    return position;
+  }
+
+  /**
+   * @return the position the next record will have
+   */
+  public long getHeadPosition() {
+    return head;
+  }
+
+  /**
+   * @return the position of the oldest record the ring still holds
+   */
+  public long getOldestPosition() {
+    return Math.max(0, head - timestamps.length);
+  }
+
+  /**
+   * @return the number of records the ring holds
+   */
+  public int getCapacity() {
+    return timestamps.length;
+  }
+
+  /**
+   * @return a subscriber that starts at the next record published
+   */
+  public Subscriber subscribe() {
+    return subscribe(head);
+  }
+
+  /**
+   * @param position the position to start at, such as one a subscriber was at before
+   * @return a subscriber that starts at the position
+   */
+  public Subscriber subscribe(long position) {
+    Subscriber subscriber = new Subscriber();
+    subscriber.seek(position);
+    return subscriber;
+  }
+
+  /**
+   * A cursor over the records. hasNext() tells if there is a record at the cursor, the
+   * getters read its fields from the ring and next() moves past it. next() fails if the
+   * record was written over while it was read, so the fields read before it are only
+   * to be trusted once it returns.
+   */
+  public class Subscriber {
+    private long position;
+    private int slot;
+
+    /**
+     * Moves the cursor.
+     * @param position a position from the oldest record the ring holds to the next
+     * record to be published
+     */
+    public void seek(long position) {
+      if (position < getOldestPosition() || position > head) {
+        throw new IllegalArgumentException("The change feed holds positions " + getOldestPosition() + " to " +
+            head + ", not " + position);
+      }
+      this.position = position;
+      this.slot = (int) position & mask;
+    }
+
+    /**
+     * @return the position of the cursor, which a new subscriber can resume from
+     */
+    public long getPosition() {
+      return position;
+    }
+
+    /**
+     * @return true if there is a record at the cursor
+     * @throws IllegalStateException if the record at the cursor was written over
+     */
+    public boolean hasNext() {
+      checkNotLost();
+      return position < head;
+    }
+
+    /**
+     * Moves past the record at the cursor.
+     * @throws IllegalStateException if the record was written over while it was read
+     */
+    public void next() {
+      if (position >= head) {
+        throw new IllegalStateException("There is no record at position " + position + " yet");
+      }
+      checkNotLost();
+      position++;
+      slot = (int) position & mask;
+    }
+
+    /**
+     * @return how many records were published that the subscriber has not read
+     */
+    public long getLag() {
+      return head - position;
+    }
+
+    public long getTimestamp() {
+      return timestamps[slot];
+    }
+
+    public int getTransaction() {
+      return transactions[slot];
+    }
+
+    public int getIndex() {
+      return indexes[slot];
+    }
+
+    public int getValue() {
+      return values[slot];
+    }
+
+    /**
+     * @return a bit for each site the write was sent to, see {@link ChangeFeed#siteBit}
+     */
+    public long getSites() {
+      return sites[slot];
+    }
+
+    private void checkNotLost() {
+      VarHandle.loadLoadFence();
+      if (claimed - position > timestamps.length) {
+        throw new IllegalStateException("The change feed wrote over position " + position +
+            "; the oldest position it holds is " + getOldestPosition());
+      }
+    }
+  }
+}
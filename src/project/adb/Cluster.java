@@ -0,0 +1,1285 @@
+package project.adb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * This class holds the sites of the database and the coordinators that run
+ * transactions on them. The transaction ids are partitioned over the coordinators:
+ * transaction T goes to coordinator T mod the number of coordinators. All the
+ * coordinators share the sites and take comparable timestamps, from the shared
+ * timestamp oracle or from their own hybrid logical clocks, so a transaction of one
+ * coordinator can wait for or die because of a transaction of another.
+ * By default there is a single coordinator.
+ */
+public class Cluster {
+  private Outputter output;
+  private TimestampOracle oracle = new TimestampOracle();
+  private Placement placement = new Placement(10);
+  private Site[] sites = new Site[0];
+  private boolean remoteSites = false;
+  private boolean shardedSites = false;
+  private String storage = "memory";
+  private String storageDirectory = null;
+  private List<TransactionManager> coordinators = new ArrayList<TransactionManager>();
+  private int failDuringCommit = 0;
+  private ForkJoinPool pool = new ForkJoinPool();
+  private int maxActive = Integer.MAX_VALUE;
+  private int queueLimit = Integer.MAX_VALUE;
+  private Set<Integer> active = new LinkedHashSet<Integer>();
+  private Map<Integer, QueuedTransaction> queue = new LinkedHashMap<Integer, QueuedTransaction>();
+  private Set<Integer> rejected = new HashSet<Integer>();
+  private int queuedCount = 0;
+  private Sequencer sequencer = null;
+  private SnapshotTracker snapshots = new SnapshotTracker();
+  private ChangeFeed changeFeed = null;
+  private ChangeFeed.Subscriber changeDumps = null;
+  private Migration migration = null;
+  private Balancer balancer = null;
+  private int migrationCount = 0;
+  private String failureDetector = "script";
+  private HeartbeatSimulator heartbeats = null;
+  private long heartbeatInterval = 50;
+  private Double suspectAfter = null;
+  private long leaseMillis = 300;
+  private long lineMillis = 100;
+  private Integer readQuorum = null;
+  private Integer writeQuorum = null;
+
+  /**
+   * Creates a cluster with ten local sites and one coordinator.
+   * @param output where the cluster writes its output
+   */
+  public Cluster(Outputter output) {
+    this.output = output;
+    createSites();
+    coordinators.add(new TransactionManager(this, 0, output));
+  }
+
+  /**
+   * @return the timestamp oracle shared by the coordinators
+   */
+  public TimestampOracle getOracle() {
+    return oracle;
+  }
+
+  /**
+   * @return where each index is placed
+   */
+  public Placement getPlacement() {
+    return placement;
+  }
+
+  /**
+   * @return the sites, indexed by id. Site 0 is not used.
+   */
+  public Site[] getSites() {
+    return sites;
+  }
+
+  /**
+   * @return the coordinators of the cluster
+   */
+  public List<TransactionManager> getCoordinators() {
+    return coordinators;
+  }
+
+  /**
+   * Sets the number of coordinators. The new coordinators copy the settings of the
+   * first one, so this is only used before the first transaction begins.
+   * @param count the number of coordinators
+   */
+  public void setCoordinatorCount(int count) {
+    if (count < 1) {
+      throw new IllegalArgumentException("There must be at least one coordinator");
+    }
+    TransactionManager first = coordinators.get(0);
+    coordinators.clear();
+    coordinators.add(first);
+    while (coordinators.size() < count) {
+      TransactionManager coordinator = new TransactionManager(this, coordinators.size(), output);
+      coordinator.copySettingsFrom(first);
+      coordinators.add(coordinator);
+    }
+  }
+
+  /**
+   * @param tID the id of a transaction
+   * @return the coordinator that runs the transaction
+   */
+  public TransactionManager coordinatorOf(int tID) {
+    return coordinators.get(Math.abs(tID % coordinators.size()));
+  }
+
+  /**
+   * Sets the number of sites. The sites are created again, so this is only
+   * used before the first transaction begins.
+   * @param siteCount the number of sites
+   */
+  public void setSiteCount(int siteCount) {
+    if (changeFeed != null && siteCount > 63) {
+      throw new IllegalStateException("The change feed records at most 63 sites");
+    }
+    Integer replicationFactor = placement.getReplicationFactor();
+    placement = new Placement(siteCount, placement.getIndexCount());
+    if (replicationFactor != null) {
+      placement.setReplicationFactor(replicationFactor);
+    }
+    createSites();
+  }
+
+  /**
+   * Sets the number of indexes, x1 to xN. The sites are created again, so this is only
+   * used before the first transaction begins.
+   * @param indexCount the number of indexes
+   */
+  public void setIndexCount(int indexCount) {
+    Integer replicationFactor = placement.getReplicationFactor();
+    placement = new Placement(placement.getSiteCount(), indexCount);
+    if (replicationFactor != null) {
+      placement.setReplicationFactor(replicationFactor);
+    }
+    createSites();
+  }
+
+  /**
+   * Populates the sites from a file, bypassing transactions and locks.
+   * @param fileName a CSV file of index,value lines or a binary file of index and value pairs
+   * @throws IOException if the file cannot be read
+   */
+  public void load(String fileName) throws IOException {
+    int count = new BulkLoader(placement, sites).load(fileName);
+    output.addOutput("Loaded " + count + " values from " + new File(fileName).getName());
+  }
+
+  /**
+   * Sets how many sites hold a copy of each replicated index.
+   * @param replicationFactor the number of copies of each replicated index
+   */
+  public void setReplicationFactor(int replicationFactor) {
+    placement.setReplicationFactor(replicationFactor);
+    createSites();
+  }
+
+  /**
+   * Runs each site in its own process and talks to it over a loopback socket
+   * instead of keeping the sites in this process.
+   * @param remoteSites true to run the sites in their own processes
+   */
+  public void setRemoteSites(boolean remoteSites) {
+    this.remoteSites = remoteSites;
+    createSites();
+  }
+
+  /**
+   * Runs each site on a thread of its own that the coordinators send messages to,
+   * instead of calling the sites directly.
+   * @param shardedSites true to run every site on its own thread
+   */
+  public void setShardedSites(boolean shardedSites) {
+    this.shardedSites = shardedSites;
+    createSites();
+  }
+
+  /**
+   * Sets where the sites keep their values.
+   * @param storage memory for arrays on the heap, or lsm for a log-structured merge tree on disk
+   */
+  public void setStorage(String storage) {
+    if (!storage.equals("memory") && !storage.equals("lsm")) {
+      throw new IllegalArgumentException("Unknown storage " + storage);
+    }
+    this.storage = storage;
+    createSites();
+  }
+
+  /**
+   * Keeps the files of the on-disk storage of site i in the folder site-i of the given
+   * folder, where they stay after the run and are picked up by the next one. Without it
+   * every site uses a temporary folder.
+   * @param storageDirectory the folder for the sites' files
+   */
+  public void setStorageDirectory(String storageDirectory) {
+    this.storageDirectory = storageDirectory;
+    createSites();
+  }
+
+  /**
+   * Creates the storage of a site.
+   * @param storage memory or lsm
+   * @param storageDirectory the folder for the files of every site, or null for temporary folders
+   * @param siteID the id of the site
+   * @param placement the placement of the indexes
+   * @return the storage
+   */
+  static Storage createStorage(String storage, String storageDirectory, int siteID, Placement placement) {
+    if (storage.equals("memory")) {
+      return new ArrayStorage(placement);
+    }
+    if (storageDirectory != null) {
+      return new LsmStorage(new File(storageDirectory, "site-" + siteID), placement, false);
+    }
+    try {
+      return new LsmStorage(Files.createTempDirectory("site-" + siteID + "-").toFile(), placement, true);
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot create a folder for site " + siteID, e);
+    }
+  }
+
+  /**
+   * Creates the sites for the current placement, stopping any sites that were
+   * running in their own processes before.
+   */
+  private void createSites() {
+    checkQuorums(placement, readQuorum, writeQuorum);
+    stopSites();
+    sites = new Site[placement.getSiteCount() + 1];
+    sites[0] = new Site(0, placement, output, null);
+    if (remoteSites && shardedSites) {
+      throw new IllegalStateException("Sites run either in their own processes or on threads of this one, not both");
+    } else if (remoteSites && !failureDetector.equals("script")) {
+      throw new IllegalStateException("Sites in other processes grant locks the coordinators cannot lease");
+    } else if (remoteSites) {
+      List<Integer> siteIDs = new ArrayList<Integer>();
+      for (int i = 1; i < sites.length; i++) {
+        siteIDs.add(i);
+      }
+      for (RemoteSite site : RemoteSite.start(siteIDs, placement, output, storage, storageDirectory)) {
+        sites[site.getID()] = site;
+      }
+    } else {
+      for (int i = 1; i < sites.length; i++) {
+        Storage siteStorage = createStorage(storage, storageDirectory, i, placement);
+        sites[i] = shardedSites ? new ShardedSite(i, placement, output, siteStorage) :
+            new Site(i, placement, output, siteStorage);
+      }
+    }
+    for (TransactionManager coordinator : coordinators) {
+      coordinator.useSites(placement, sites);
+    }
+    createFailureDetector();
+  }
+
+  /**
+   * Stops the sites and the threads that compute aggregates and run deterministic waves.
+   */
+  public void shutdown() {
+    stopSites();
+    pool.shutdown();
+  }
+
+  /**
+   * Stops the sites that run in their own processes and closes the storage of the others,
+   * stopping the threads of sharded sites.
+   */
+  private void stopSites() {
+    for (Site site : sites) {
+      if (site instanceof RemoteSite) {
+        ((RemoteSite) site).shutdown();
+      } else {
+        site.close();
+      }
+    }
+  }
+
+  /**
+   * Sets where timestamps come from, at every coordinator.
+   * @param clockMode script, counter or hybrid
+   */
+  public void setClock(String clockMode) {
+    for (TransactionManager coordinator : coordinators) {
+      coordinator.setClock(clockMode);
+    }
+  }
+
+  /**
+   * @param tID the id of a transaction
+   * @return a timestamp from the clock of the transaction's coordinator
+   */
+  public long timestampFor(int tID) {
+    return coordinatorOf(tID).timestamp();
+  }
+
+  /**
+   * Sets how the copy of a replicated index is chosen for a read, at every coordinator.
+   * @param readPolicy first, round-robin, least-loaded or two-choices
+   */
+  public void setReadPolicy(String readPolicy) {
+    for (TransactionManager coordinator : coordinators) {
+      coordinator.setReadPolicy(readPolicy);
+    }
+  }
+
+  /**
+   * Sets how replicated indexes are kept consistent, at every coordinator.
+   * @param replication either available-copies or quorum
+   */
+  public void setReplication(String replication) {
+    for (TransactionManager coordinator : coordinators) {
+      coordinator.setReplication(replication);
+    }
+  }
+
+  /**
+   * Sets the read quorum at every coordinator.
+   * @param readQuorum the number of copies a read locks
+   */
+  public void setReadQuorum(int readQuorum) {
+    checkQuorums(placement, readQuorum, writeQuorum);
+    this.readQuorum = readQuorum;
+    for (TransactionManager coordinator : coordinators) {
+      coordinator.setReadQuorum(readQuorum);
+    }
+  }
+
+  /**
+   * Sets the write quorum at every coordinator.
+   * @param writeQuorum the number of copies a write locks
+   */
+  public void setWriteQuorum(int writeQuorum) {
+    checkQuorums(placement, readQuorum, writeQuorum);
+    this.writeQuorum = writeQuorum;
+    for (TransactionManager coordinator : coordinators) {
+      coordinator.setWriteQuorum(writeQuorum);
+    }
+  }
+
+  /**
+   * Checks that the quorums that were set fit the copies of the replicated indexes:
+   * a write quorum must be a majority of them, and a read quorum must overlap every
+   * write quorum. The quorum that was not set is derived from the other, as the
+   * coordinators do. Options that change the copies must come before the quorums.
+   * @param placement the placement the quorums are for
+   * @param readQuorum the read quorum, or null if it was not set
+   * @param writeQuorum the write quorum, or null if it was not set
+   */
+  private static void checkQuorums(Placement placement, Integer readQuorum, Integer writeQuorum) {
+    if (readQuorum == null && writeQuorum == null) {
+      return;
+    }
+    Integer replicationFactor = placement.getReplicationFactor();
+    int copies = replicationFactor == null ? placement.getSiteCount() : replicationFactor;
+    int write = copies / 2 + 1;
+    if (writeQuorum != null) {
+      if (writeQuorum <= copies / 2 || writeQuorum > copies) {
+        throw new IllegalStateException("Write quorum " + writeQuorum + " is not a majority of the " +
+            copies + " copies of a replicated index");
+      }
+      write = writeQuorum;
+    } else if (readQuorum != null) {
+      write = Math.min(copies, Math.max(copies / 2 + 1, copies - readQuorum + 1));
+    }
+    if (readQuorum != null && (readQuorum > copies || readQuorum + write <= copies)) {
+      throw new IllegalStateException("Read quorum " + readQuorum + " does not overlap the write quorum of the " +
+          copies + " copies of a replicated index");
+    }
+  }
+
+  /**
+   * Sets how transactions commit, at every coordinator.
+   * @param commitProtocol either direct or two-phase
+   */
+  public void setCommitProtocol(String commitProtocol) {
+    for (TransactionManager coordinator : coordinators) {
+      coordinator.setCommitProtocol(commitProtocol);
+    }
+  }
+
+  /**
+   * Sets how update transactions are isolated, at every coordinator. The deterministic
+   * execution orders whole transactions and does not use this.
+   * @param isolation one of 2pl, si or ssi
+   */
+  public void setIsolation(String isolation) {
+    for (TransactionManager coordinator : coordinators) {
+      coordinator.setIsolation(isolation);
+    }
+  }
+
+  /**
+   * @return the snapshots and conflicts of update transactions under snapshot
+   * isolation, shared by the coordinators
+   */
+  SnapshotTracker getSnapshots() {
+    return snapshots;
+  }
+
+  /**
+   * Gives the cluster a change feed, which gets a record of every committed write.
+   * dump(changes) shows the records added since the last dump(changes).
+   * @param capacity the number of records the feed holds before it writes over the oldest
+   */
+  public void setChangeFeed(int capacity) {
+    if (placement.getSiteCount() > 63) {
+      throw new IllegalStateException("The change feed records at most 63 sites");
+    }
+    changeFeed = new ChangeFeed(capacity);
+    changeDumps = changeFeed.subscribe();
+  }
+
+  /**
+   * @return the change feed of committed writes, or null if the cluster has none
+   */
+  public ChangeFeed getChangeFeed() {
+    return changeFeed;
+  }
+
+  /**
+   * Sets how the coordinators learn that a site failed. With script, fail(N) tells
+   * them at once and they abort the transactions that hold locks there. With timeout
+   * or phi, the sites send heartbeats in virtual time, which moves on at the end of
+   * every line, and a failure detector of that kind suspects the sites whose heartbeats
+   * stop. A failed site still refuses every request at once, but the coordinators only
+   * give up the locks a transaction holds there when its lease at the site expires.
+   * @param failureDetector one of script, timeout or phi
+   */
+  public void setFailureDetector(String failureDetector) {
+    if (!failureDetector.equals("script") && !failureDetector.equals("timeout") &&
+        !failureDetector.equals("phi")) {
+      throw new IllegalArgumentException("Unknown failure detector: " + failureDetector);
+    }
+    if (remoteSites && !failureDetector.equals("script")) {
+      throw new IllegalStateException("Sites in other processes grant locks the coordinators cannot lease");
+    }
+    this.failureDetector = failureDetector;
+    createFailureDetector();
+  }
+
+  /**
+   * @param heartbeatInterval how many milliseconds apart each site sends a heartbeat
+   */
+  public void setHeartbeatInterval(long heartbeatInterval) {
+    if (heartbeatInterval < 1) {
+      throw new IllegalArgumentException("The heartbeat interval must be at least 1 ms");
+    }
+    this.heartbeatInterval = heartbeatInterval;
+    createFailureDetector();
+  }
+
+  /**
+   * @param suspectAfter the milliseconds without a heartbeat after which the timeout
+   * detector suspects a site, or the phi over which the phi detector does. By default
+   * it is four heartbeat intervals or a phi of 8.
+   */
+  public void setSuspectAfter(double suspectAfter) {
+    this.suspectAfter = suspectAfter;
+    createFailureDetector();
+  }
+
+  /**
+   * @param leaseMillis how many milliseconds after the last heartbeat of a site the
+   * locks held there are still trusted
+   */
+  public void setLease(long leaseMillis) {
+    if (leaseMillis < 1) {
+      throw new IllegalArgumentException("A lease lasts at least 1 ms");
+    }
+    this.leaseMillis = leaseMillis;
+  }
+
+  /**
+   * @param lineMillis how many milliseconds of virtual time a line of the script takes
+   */
+  public void setLineTime(long lineMillis) {
+    if (lineMillis < 1) {
+      throw new IllegalArgumentException("A line takes at least 1 ms");
+    }
+    this.lineMillis = lineMillis;
+  }
+
+  /**
+   * Starts the heartbeats of the sites over, with a new detector.
+   */
+  private void createFailureDetector() {
+    if (failureDetector.equals("script")) {
+      heartbeats = null;
+      return;
+    }
+    int siteCount = placement.getSiteCount();
+    double threshold = suspectAfter != null ? suspectAfter :
+        failureDetector.equals("timeout") ? 4 * heartbeatInterval : 8;
+    heartbeats = new HeartbeatSimulator(new FailureDetector(siteCount, failureDetector, threshold,
+        heartbeatInterval, 0), siteCount, heartbeatInterval, 42);
+  }
+
+  /**
+   * @return true if a failure detector finds failed sites instead of the script
+   */
+  boolean detectsFailures() {
+    return heartbeats != null;
+  }
+
+  /**
+   * @param siteID the id of a site
+   * @return true if the locks held at the site are still trusted: the site is not
+   * suspected and its last heartbeat arrived within a lease
+   */
+  boolean holdsLease(int siteID) {
+    if (heartbeats == null) {
+      return true;
+    }
+    FailureDetector detector = heartbeats.getDetector();
+    return !detector.isSuspected(siteID) && heartbeats.now() - detector.getLastHeartbeat(siteID) <= leaseMillis;
+  }
+
+  /**
+   * Starts moving the odd indexes from one index to another to a site. The indexes
+   * keep serving transactions while their values are copied, and move at the end of
+   * a line once no transaction holds a lock on them. Only one migration runs at a time.
+   * @param from the first index of the range
+   * @param to the last index of the range
+   * @param siteID the id of the site the indexes move to
+   */
+  public void migrate(int from, int to, int siteID) {
+    if (remoteSites) {
+      throw new IllegalStateException("Sites in other processes keep a placement of their own, so indexes cannot move");
+    }
+    if (migration != null && !migration.isOver()) {
+      throw new IllegalStateException("A migration to another site is still running");
+    }
+    if (siteID < 1 || siteID >= sites.length) {
+      throw new IllegalArgumentException("There is no site " + siteID);
+    }
+    List<Integer> moving = new ArrayList<Integer>();
+    for (int index = Math.max(1, from); index <= Math.min(to, placement.getIndexCount()); index++) {
+      if (!placement.isReplicated(index) && placement.getSites(index).get(0) != siteID) {
+        moving.add(index);
+      }
+    }
+    if (moving.isEmpty()) {
+      output.addOutput("No index from " + from + " to " + to + " with a single copy is away from site " + siteID);
+      return;
+    }
+    int[] indexes = new int[moving.size()];
+    for (int k = 0; k < indexes.length; k++) {
+      indexes[k] = moving.get(k);
+    }
+    migration = new Migration(this, output, indexes, siteID);
+    migrationCount++;
+    if(output.isVerbose()) {
+      output.addOutput("Migration of " + indexes.length + " index(es) to site " + siteID + " begins");
+    }
+  }
+
+  /**
+   * Counts the instructions sent for each index, so a balancer can move the indexes of
+   * busy sites to idle ones.
+   * @param period how many lines apart the balancer runs on its own, or 0 to run it
+   * only when balance() is sent
+   */
+  public void setBalancing(int period) {
+    balancer = new Balancer(this, period);
+  }
+
+  /**
+   * Called when balance() instruction sent,
+   * this method lets the balancer start a migration if the load of the sites is uneven.
+   */
+  public void balance() {
+    if (balancer == null) {
+      throw new IllegalStateException("balance() needs the load of the sites, see --balance");
+    }
+    if (migration != null && !migration.isOver()) {
+      return;
+    }
+    int[] move = balancer.decide();
+    if (move != null) {
+      output.addOutput("The balancer moves index " + move[0] + " from site " + placement.getSites(move[0]).get(0) +
+          " to site " + move[1]);
+      migrate(move[0], move[0], move[1]);
+    } else if(output.isVerbose()) {
+      output.addOutput("The balancer finds no move that helps");
+    }
+  }
+
+  /**
+   * @return the balancer, or null if the load of the sites is not counted
+   */
+  public Balancer getBalancer() {
+    return balancer;
+  }
+
+  /**
+   * Sets when a transaction that found no ready site tries again, at every coordinator.
+   * @param retry either immediate or exponential
+   */
+  public void setRetry(String retry) {
+    for (TransactionManager coordinator : coordinators) {
+      coordinator.setRetry(retry);
+    }
+  }
+
+  /**
+   * Sets how many times a transaction that wait-die aborts restarts, at every coordinator.
+   * @param restarts the most restarts of each transaction
+   */
+  public void setRestarts(int restarts) {
+    for (TransactionManager coordinator : coordinators) {
+      coordinator.setRestarts(restarts);
+    }
+  }
+
+  /**
+   * Limits how many transactions are active at once. A transaction that begins while
+   * the limit is reached is queued, and it begins when an active transaction ends or aborts.
+   * @param maxActive the most transactions that are active at once
+   */
+  public void setMaxActive(int maxActive) {
+    if (maxActive < 1) {
+      throw new IllegalArgumentException("At least one transaction must be able to be active");
+    }
+    this.maxActive = maxActive;
+  }
+
+  /**
+   * Limits how many transactions wait to begin. A transaction that begins while the
+   * queue is full is rejected, and its instructions are ignored.
+   * @param queueLimit the most transactions that wait to begin
+   */
+  public void setQueueLimit(int queueLimit) {
+    if (queueLimit < 0) {
+      throw new IllegalArgumentException("The queue limit cannot be negative");
+    }
+    this.queueLimit = queueLimit;
+  }
+
+  /**
+   * Chooses how transactions run. "locking", the default, runs each instruction as it
+   * arrives, with two-phase locking and wait-die. "deterministic" collects transactions
+   * into epochs and runs each epoch in a fixed order, without aborts for locks.
+   * @param execution either locking or deterministic
+   */
+  public void setExecution(String execution) {
+    if (execution.equals("locking")) {
+      sequencer = null;
+    } else if (execution.equals("deterministic")) {
+      sequencer = new Sequencer(this, output, pool);
+    } else {
+      throw new IllegalArgumentException("Unknown execution: " + execution);
+    }
+  }
+
+  /**
+   * @return true if transactions run under the deterministic execution
+   */
+  boolean isDeterministic() {
+    return sequencer != null;
+  }
+
+  /**
+   * Sets how many script lines an epoch of the deterministic execution lasts.
+   * @param epochLength the number of lines in an epoch
+   */
+  public void setEpochLength(int epochLength) {
+    if (sequencer == null) {
+      throw new IllegalStateException("Epochs are only used by the deterministic execution");
+    }
+    sequencer.setEpochLength(epochLength);
+  }
+
+  /**
+   * Begins a transaction at its coordinator, timestamped by its clock, unless too
+   * many transactions are active. Then the transaction is queued, or rejected if the
+   * queue is full too.
+   * @param tID the id of the transaction
+   * @param readOnly true if the transaction is read-only
+   */
+  public void intake(int tID, boolean readOnly) {
+    intake(tID, readOnly, "normal");
+  }
+
+  /**
+   * Begins a transaction in a priority class. When transactions wait for a lock at a
+   * site, the site serves critical ones first and batch ones last. The deterministic
+   * execution never waits for locks and ignores the class.
+   * @param tID the id of the transaction
+   * @param readOnly true if the transaction is read-only
+   * @param priority critical, normal or batch
+   */
+  public void intake(int tID, boolean readOnly, String priority) {
+    Transaction.rankOf(priority);
+    if (sequencer != null) {
+      sequencer.begin(tID, readOnly, timestampFor(tID));
+    } else if (countActive() < maxActive) {
+      begin(tID, readOnly, priority);
+    } else if (queue.size() < queueLimit) {
+      queue.put(tID, new QueuedTransaction(readOnly, priority));
+      queuedCount++;
+      output.addOutput("Transaction " + tID + " is queued because " + maxActive + " transactions are active");
+    } else {
+      rejected.add(tID);
+      output.addOutput("Transaction " + tID + " is rejected because " + maxActive +
+          " transactions are active and the queue is full");
+    }
+  }
+
+  private void begin(int tID, boolean readOnly, String priority) {
+    active.add(tID);
+    coordinatorOf(tID).intake(tID, readOnly, timestampFor(tID), priority);
+  }
+
+  /**
+   * Sends an instruction to the coordinator of its transaction. The instructions of a
+   * queued transaction are kept until it begins.
+   * @param instruction the instruction
+   * @param tID the id of the transaction
+   */
+  public void intake(Instruction instruction, int tID) {
+    if (balancer != null) {
+      if (instruction.isBatch()) {
+        for (int index : instruction.getIndexes()) {
+          balancer.record(index);
+        }
+      } else {
+        balancer.record(instruction.getIndex());
+      }
+    }
+    if (sequencer != null) {
+      sequencer.add(instruction, tID);
+    } else if (rejected.contains(tID)) {
+      if(output.isVerbose()) {
+        output.addOutput("This transaction was rejected.");
+      }
+    } else if (queue.containsKey(tID)) {
+      queue.get(tID).instructions.add(instruction);
+    } else {
+      coordinatorOf(tID).intake(instruction, tID);
+    }
+  }
+
+  /**
+   * @param tID the id of a transaction
+   * @return the transaction at its coordinator, or null if it has not begun there
+   * because it is queued or was rejected
+   */
+  Transaction findTransaction(int tID) {
+    if (sequencer != null) {
+      throw new IllegalStateException("Transactions under the deterministic execution have no coordinator");
+    }
+    if (queue.containsKey(tID) || rejected.contains(tID)) {
+      return null;
+    }
+    return coordinatorOf(tID).getTransaction(tID);
+  }
+
+  /**
+   * @param tID the id of a transaction
+   * @return true if admission control rejected the transaction
+   */
+  boolean isRejected(int tID) {
+    return rejected.contains(tID);
+  }
+
+  /**
+   * Ends a transaction at its coordinator and begins queued transactions in its place.
+   * A queued transaction ends once it has begun and run its instructions.
+   * @param tID the id of the transaction
+   */
+  public void endTransaction(int tID) {
+    if (sequencer != null) {
+      sequencer.end(tID);
+      return;
+    } else if (rejected.contains(tID)) {
+      return;
+    } else if (queue.containsKey(tID)) {
+      queue.get(tID).ended = true;
+      return;
+    }
+    coordinatorOf(tID).endTransaction(tID);
+    active.remove(tID);
+    admit();
+  }
+
+  /**
+   * @return how many transactions are active, after forgetting the ones that aborted
+   */
+  private int countActive() {
+    if (active.size() >= maxActive) {
+      Iterator<Integer> tIDs = active.iterator();
+      while (tIDs.hasNext()) {
+        int tID = tIDs.next();
+        if (coordinatorOf(tID).isAborted(tID)) {
+          tIDs.remove();
+        }
+      }
+    }
+    return active.size();
+  }
+
+  /**
+   * Begins queued transactions, oldest first, while there is room for them.
+   */
+  private void admit() {
+    while (!queue.isEmpty() && countActive() < maxActive) {
+      int tID = queue.keySet().iterator().next();
+      QueuedTransaction queued = queue.remove(tID);
+      output.addOutput("Transaction " + tID + " leaves the queue and begins");
+      begin(tID, queued.readOnly, queued.priority);
+      for (Instruction instruction : queued.instructions) {
+        coordinatorOf(tID).intake(instruction, tID);
+      }
+      if (queued.ended) {
+        endTransaction(tID);
+      }
+    }
+  }
+
+  /**
+   * Fails a site. Every coordinator first aborts its transactions that hold locks there,
+   * unless a failure detector has to find the failure. Then the site only stops sending
+   * heartbeats.
+   * @param siteID the id of the site to fail
+   */
+  public void siteFail(int siteID) {
+    Site site = sites[siteID];
+    FlightEvents.siteFailure(siteID);
+    if (migration != null && migration.uses(siteID)) {
+      migration.cancel();
+    }
+    if (heartbeats != null) {
+      heartbeats.crash(siteID);
+      site.fail();
+      return;
+    }
+    for (TransactionManager coordinator : coordinators) {
+      coordinator.abortTransactionsAt(site);
+    }
+    site.fail();
+  }
+
+  /**
+   * Recovers a site. Transactions that are in doubt there are resolved by their coordinators.
+   * @param siteID the id of the site to recover
+   */
+  public void siteRecover(int siteID) {
+    FlightEvents.siteRecovery(siteID);
+    Site site = sites[siteID];
+    Map<Integer, List<int[]>> inDoubt = site.getInDoubtTransactions();
+    for (TransactionManager coordinator : coordinators) {
+      coordinator.relockInDoubt(site, inDoubt);
+    }
+    if (heartbeats != null) {
+      heartbeats.recover(siteID);
+    }
+    site.recover();
+    for (TransactionManager coordinator : coordinators) {
+      coordinator.resolveInDoubt(site, inDoubt);
+    }
+    for (TransactionManager coordinator : coordinators) {
+      coordinator.resetRetries();
+    }
+  }
+
+  /**
+   * Fails the given site in the middle of the next commit. With two-phase commit it
+   * fails right after voting. With direct commit it fails after the first write reaches it.
+   * @param siteID the id of the site to fail
+   */
+  public void failDuringCommit(int siteID) {
+    failDuringCommit = siteID;
+  }
+
+  /**
+   * Called by a coordinator while it commits.
+   * @param siteID the id of a site the commit just reached
+   * @return true if the site must fail now
+   */
+  boolean failsDuringCommit(int siteID) {
+    if (failDuringCommit != siteID) {
+      return false;
+    }
+    failDuringCommit = 0;
+    return true;
+  }
+
+  /**
+   * Makes every coordinator fail right after it logs the decisions of its next commit group.
+   */
+  public void coordinatorFail() {
+    boolean failed = false;
+    for (TransactionManager coordinator : coordinators) {
+      failed |= coordinator.coordinatorFail();
+    }
+    if (!failed) {
+      output.addOutput("The coordinator only fails during two-phase commit");
+    }
+  }
+
+  /**
+   * Recovers every coordinator from its log.
+   */
+  public void coordinatorRecover() {
+    for (TransactionManager coordinator : coordinators) {
+      coordinator.coordinatorRecover();
+    }
+  }
+
+  /**
+   * Runs the commit groups of every coordinator. Called at the end of every script line,
+   * so it also runs the epoch of the deterministic execution when the epoch is over,
+   * moves the migration and the balancer on, and moves the virtual time of the heartbeats.
+   * @return true if a commit group was committed or indexes moved
+   */
+  public boolean flushCommits() {
+    if (sequencer != null) {
+      sequencer.endLine();
+    }
+    if (heartbeats != null) {
+      for (int[] change : heartbeats.advance(lineMillis)) {
+        output.addOutput("Site " + change[0] + (change[1] == 1 ? " is suspected" : " is trusted again") +
+            " at " + heartbeats.now() + " ms");
+      }
+    }
+    boolean flushed = false;
+    for (TransactionManager coordinator : coordinators) {
+      flushed |= coordinator.flushCommits();
+    }
+    if (balancer != null && balancer.endLine()) {
+      balance();
+    }
+    if (migration != null) {
+      flushed |= migration.step();
+    }
+    return flushed;
+  }
+
+  /**
+   * Runs the transactions that ended since the last epoch of the deterministic execution.
+   * Called at the end of the script.
+   */
+  public void runEpoch() {
+    if (sequencer != null) {
+      sequencer.runEpoch();
+    }
+  }
+
+  /**
+   * Lets every coordinator retry its waiting transactions, and begins queued
+   * transactions in place of the ones that aborted. Nothing waits under the
+   * deterministic execution.
+   */
+  public void checkWaitingTransactions() {
+    if (sequencer != null) {
+      return;
+    }
+    admit();
+    for (TransactionManager coordinator : coordinators) {
+      coordinator.checkWaitingTransactions();
+    }
+  }
+
+  /**
+   * Called when dump() instruction sent.
+   */
+  public void dump() {
+    coordinators.get(0).dump();
+  }
+
+  /**
+   * Called when dump(si) instruction sent.
+   * @param siteID the id of the site to dump
+   */
+  public void dumpSite(int siteID) {
+    coordinators.get(0).dumpSite(siteID);
+  }
+
+  /**
+   * Called when dump(xi) instruction sent.
+   * @param index the index to dump
+   */
+  public void dumpIndex(int index) {
+    coordinators.get(0).dumpIndex(index);
+  }
+
+  /**
+   * Called when dump(s) instruction sent.
+   */
+  public void shorterDump() {
+    coordinators.get(0).shorterDump();
+  }
+
+  /**
+   * Called when scan(xi,xj,n) instruction sent,
+   * this method prints the committed values of the indexes from xi to xj, n to a line.
+   * Every line is read from the same snapshot, one page at a time, and the first line
+   * shows the time the snapshot was taken.
+   * @param from the first index to scan
+   * @param to the last index to scan
+   * @param pageSize the number of indexes in a line
+   */
+  public void scan(int from, int to, int pageSize) {
+    SnapshotScan scan = new SnapshotScan(placement, sites, from, to, pageSize, oracle.now());
+    output.addOutput("Scan x" + from + " to x" + to + " in pages of " + pageSize + " as of time " +
+        scan.getSnapshotTime());
+    while (scan.hasNext()) {
+      int first = scan.getNextIndex();
+      int[] page = scan.nextPage();
+      StringBuilder line = new StringBuilder();
+      int k = 0;
+      for (int i = first; i < scan.getNextIndex(); i++) {
+        if (line.length() > 0) {
+          line.append(", ");
+        }
+        if (k < page.length && page[k] == i) {
+          line.append("x" + i + ": " + page[k + 1]);
+          k += 2;
+        } else {
+          line.append("x" + i + ": unavailable");
+        }
+      }
+      output.addOutput(line.toString());
+    }
+  }
+
+  /**
+   * Called when sum(), count(), min() or max() instruction sent,
+   * this method aggregates the committed values of the indexes from xi to xj.
+   * It opens a scan on every site that is up, as a snapshot scan does, and every site
+   * computes the partial aggregate of the indexes it is responsible for through its
+   * scan in its own fork-join task. The partial aggregates are combined, so they all
+   * come from the values the sites held when the scans opened, even if transactions
+   * commit while the tasks run. An index whose responsible copy could not be read is
+   * read through the scan of another site that holds it.
+   * The variables with no copy that can be read are left out and counted separately.
+   * @param function sum, count, min or max
+   * @param from the first index
+   * @param to the last index
+   */
+  public void aggregate(String function, int from, int to) {
+    final Site[] sites = this.sites;
+    final boolean[] up = new boolean[sites.length];
+    final int[] scanIDs = new int[sites.length];
+    for (int i = 1; i < sites.length; i++) {
+      up[i] = sites[i].getState().equals("ready");
+      if (up[i]) {
+        scanIDs[i] = sites[i].openScan(from, to);
+      }
+    }
+    Aggregate aggregate;
+    try {
+      aggregate = pool.invoke(new RecursiveTask<Aggregate>() {
+        protected Aggregate compute() {
+          List<RecursiveTask<Aggregate>> partials = new ArrayList<RecursiveTask<Aggregate>>();
+          for (int i = 1; i < sites.length; i++) {
+            if (!up[i]) {
+              continue;
+            }
+            final Site site = sites[i];
+            final int scanID = scanIDs[i];
+            RecursiveTask<Aggregate> partial = new RecursiveTask<Aggregate>() {
+              protected Aggregate compute() {
+                return site.aggregate(scanID, up);
+              }
+            };
+            partial.fork();
+            partials.add(partial);
+          }
+          Aggregate total = new Aggregate();
+          for (RecursiveTask<Aggregate> partial : partials) {
+            total.combine(partial.join());
+          }
+          return total;
+        }
+      });
+      List<Integer> unread = new ArrayList<Integer>(aggregate.getUnread());
+      Collections.sort(unread);
+      for (int index : unread) {
+        for (int siteID : placement.getSites(index)) {
+          if (!up[siteID]) {
+            continue;
+          }
+          int[] page = sites[siteID].scanThrough(scanIDs[siteID], index);
+          int last = page.length - 3;
+          if (last >= 0 && page[last] == index && page[last + 2] == 1) {
+            aggregate.add(page[last + 1]);
+            break;
+          }
+        }
+      }
+    } finally {
+      for (int i = 1; i < sites.length; i++) {
+        if (up[i]) {
+          sites[i].closeScan(scanIDs[i]);
+        }
+      }
+    }
+    long unavailable = Math.max(0, Math.min(to, placement.getIndexCount()) - Math.max(1, from) + 1) -
+        aggregate.getCount();
+    String result = function + "(x" + from + ",x" + to + ") = " + aggregate.valueOf(function);
+    if (unavailable > 0) {
+      result += " with " + unavailable + " variable(s) unavailable";
+    }
+    output.addOutput(result);
+  }
+
+  /**
+   * Called when dump(reads) instruction sent.
+   */
+  public void dumpReadCounts() {
+    coordinators.get(0).dumpReadCounts();
+  }
+
+  /**
+   * Called when dump(stats) instruction sent,
+   * this method dumps how many transactions committed and aborted.
+   */
+  public void dumpStats() {
+    int committed = 0;
+    int aborted = 0;
+    for (TransactionManager coordinator : coordinators) {
+      committed += coordinator.getCommittedCount();
+      aborted += coordinator.getAbortedCount();
+    }
+    if (sequencer != null) {
+      committed += sequencer.getCommittedCount();
+      aborted += sequencer.getAbortedCount();
+    }
+    output.addOutput("Committed transactions: " + committed);
+    output.addOutput("Aborted transactions: " + aborted);
+    if (!coordinators.get(0).getIsolation().equals("2pl")) {
+      int[] conflicts = snapshots.getAbortCounts();
+      output.addOutput("Lost to an earlier committer: " + conflicts[0] + " Pivots: " + conflicts[1]);
+    }
+    if (coordinators.size() > 1) {
+      for (int i = 0; i < coordinators.size(); i++) {
+        output.addOutput("Coordinator " + i + " Committed: " + coordinators.get(i).getCommittedCount() +
+            " Aborted: " + coordinators.get(i).getAbortedCount());
+      }
+    }
+    if (sequencer != null) {
+      output.addOutput(sequencer.describeEpochs());
+    }
+    if (migrationCount > 0 || balancer != null) {
+      output.addOutput("Migrations: " + migrationCount + " Moved indexes: " + placement.getMovedCount() +
+          (balancer == null ? "" : " Balancer decisions: " + balancer.getDecisionCount()));
+    }
+    if (heartbeats != null) {
+      long[] detection = heartbeats.getStatistics();
+      int leaseAborts = 0;
+      for (TransactionManager coordinator : coordinators) {
+        leaseAborts += coordinator.getLeaseAbortCount();
+      }
+      output.addOutput("Detected failures: " + detection[0] + " Mean detection: " + detection[1] + " ms" +
+          " False suspicions: " + detection[3] + " Lease aborts: " + leaseAborts);
+    }
+    if (maxActive < Integer.MAX_VALUE) {
+      output.addOutput("Queued transactions: " + queuedCount + " Rejected transactions: " + rejected.size() +
+          " Still queued: " + queue.size());
+    }
+    int retries = 0;
+    int retriesPutOff = 0;
+    for (TransactionManager coordinator : coordinators) {
+      retries += coordinator.getRetryCounts()[0];
+      retriesPutOff += coordinator.getRetryCounts()[1];
+    }
+    if (coordinators.get(0).getRestartBudget() > 0) {
+      int[] restarts = new int[3];
+      for (TransactionManager coordinator : coordinators) {
+        for (int k = 0; k < restarts.length; k++) {
+          restarts[k] += coordinator.getRestartCounts()[k];
+        }
+      }
+      output.addOutput("Restarts: " + restarts[0] + " Replayed instructions: " + restarts[1] +
+          " Out of restarts: " + restarts[2]);
+    }
+    if (retriesPutOff > 0) {
+      output.addOutput("Retries with no ready site: " + retries + " Put off by backoff: " + retriesPutOff);
+    }
+    for (int i = 1; i < sites.length; i++) {
+      if (sites[i] instanceof RemoteSite) {
+        output.addOutput("Site " + i + " " + ((RemoteSite) sites[i]).getConnection().describeTraffic());
+      } else if (sites[i] instanceof ShardedSite) {
+        output.addOutput("Site " + i + " " + ((ShardedSite) sites[i]).describeTraffic());
+      }
+    }
+  }
+
+  /**
+   * Called when dump(changes) instruction sent,
+   * this method dumps the records the change feed got since the last dump(changes).
+   */
+  public void dumpChanges() {
+    if (changeFeed == null) {
+      throw new IllegalStateException("dump(changes) needs a change feed, see --change-feed");
+    }
+    if (changeDumps.getPosition() < changeFeed.getOldestPosition()) {
+      output.addOutput("Lost the records before position " + changeFeed.getOldestPosition());
+      changeDumps.seek(changeFeed.getOldestPosition());
+    }
+    while (changeDumps.hasNext()) {
+      String sitesApplied = "";
+      for (int i = 1; i < sites.length; i++) {
+        if ((changeDumps.getSites() & ChangeFeed.siteBit(i)) != 0) {
+          sitesApplied += " " + i;
+        }
+      }
+      output.addOutput("Position: " + changeDumps.getPosition() + " Time: " + changeDumps.getTimestamp() +
+          " Transaction: " + changeDumps.getTransaction() + " Index: " + changeDumps.getIndex() +
+          " Value: " + changeDumps.getValue() + " Sites:" + sitesApplied);
+      changeDumps.next();
+    }
+  }
+
+  /**
+   * Called when dump(log) instruction sent,
+   * this method dumps the coordinators' logs and the commit log of each site.
+   */
+  public void dumpLogs() {
+    if (coordinators.size() == 1) {
+      output.addOutput("Coordinator: " + coordinators.get(0).getLog());
+    } else {
+      for (int i = 0; i < coordinators.size(); i++) {
+        output.addOutput("Coordinator " + i + ": " + coordinators.get(i).getLog());
+      }
+    }
+    for (int i = 1; i < sites.length; i++) {
+      output.addOutput("Site " + i + ": " + sites[i].getLog());
+    }
+  }
+
+  /**
+   * Called when dump(commits) instruction sent.
+   */
+  public void dumpCommitCost() {
+    for (int i = 0; i < coordinators.size(); i++) {
+      if (coordinators.size() > 1) {
+        output.addOutput("Coordinator " + i);
+      }
+      coordinators.get(i).dumpCommitCost();
+    }
+  }
+
+  /**
+   * @return the state of the sites
+   */
+  public String toString() {
+    return coordinators.get(0).toString();
+  }
+
+  /**
+   * A transaction waiting to begin, with the instructions sent to it so far.
+   */
+  private static class QueuedTransaction {
+    private boolean readOnly;
+    private String priority;
+    private List<Instruction> instructions = new ArrayList<Instruction>();
+    private boolean ended = false;
+
+    QueuedTransaction(boolean readOnly, String priority) {
+      this.readOnly = readOnly;
+      this.priority = priority;
+    }
+  }
+}
@@ -1,8 +1,9 @@
 package project.adb;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -12,136 +13,194 @@ import java.util.List;
  * @author Viswanath Kammula
  */
 public class DatabaseApp {
-  private static TransactionManager transactionManager = TransactionManager.getInstance();
-  private static Outputter output = Outputter.getInstance();
 
   /**
    * This method shows the state of the transaction manager, which shows the state
    * of the sites.
    * Author: Darren
+   * @param cluster the cluster to show
    */
-  private static void queryState() {
-    System.out.println("Tranasaction manager: " + transactionManager.toString());
+  private static void queryState(Cluster cluster) {
+    System.out.println("Tranasaction manager: " + cluster.toString());
   }
   
   /**
-   * This is the main method of the application. It takes in a path to a script file
-   * as args[0]. It then parses it and sends each instruction to the transaction manager.
-   * Author: Darren and Viswanath
+   * Applies an option given on the command line after the verbose flag.
+   * Options have the form --name=value, for example --read-policy=round-robin.
+   * @param cluster the cluster to configure
+   * @param option the option to apply
+   */
+  static void applyOption(Cluster cluster, String option) {
+    if (!option.startsWith("--") || option.indexOf('=') < 0) {
+      throw new IllegalArgumentException("Options must look like --name=value: " + option);
+    }
+    String name = option.substring(2, option.indexOf('='));
+    String value = option.substring(option.indexOf('=') + 1);
+    if (name.equals("read-policy")) {
+      cluster.setReadPolicy(value);
+    } else if (name.equals("sites")) {
+      cluster.setSiteCount(Integer.parseInt(value));
+    } else if (name.equals("replication-factor")) {
+      cluster.setReplicationFactor(Integer.parseInt(value));
+    } else if (name.equals("remote-sites")) {
+      cluster.setRemoteSites(Boolean.valueOf(value));
+    } else if (name.equals("sharded-sites")) {
+      cluster.setShardedSites(Boolean.valueOf(value));
+    } else if (name.equals("replication")) {
+      cluster.setReplication(value);
+    } else if (name.equals("read-quorum")) {
+      cluster.setReadQuorum(Integer.parseInt(value));
+    } else if (name.equals("write-quorum")) {
+      cluster.setWriteQuorum(Integer.parseInt(value));
+    } else if (name.equals("max-active")) {
+      cluster.setMaxActive(Integer.parseInt(value));
+    } else if (name.equals("admission-queue")) {
+      cluster.setQueueLimit(Integer.parseInt(value));
+    } else if (name.equals("retry")) {
+      cluster.setRetry(value);
+    } else if (name.equals("restarts")) {
+      cluster.setRestarts(Integer.parseInt(value));
+    } else if (name.equals("storage")) {
+      cluster.setStorage(value);
+    } else if (name.equals("storage-dir")) {
+      cluster.setStorageDirectory(value);
+    } else if (name.equals("variables")) {
+      cluster.setIndexCount(Integer.parseInt(value));
+    } else if (name.equals("clock")) {
+      cluster.setClock(value);
+    } else if (name.equals("coordinators")) {
+      cluster.setCoordinatorCount(Integer.parseInt(value));
+    } else if (name.equals("commit")) {
+      cluster.setCommitProtocol(value);
+    } else if (name.equals("isolation")) {
+      cluster.setIsolation(value);
+    } else if (name.equals("balance")) {
+      cluster.setBalancing(Integer.parseInt(value));
+    } else if (name.equals("change-feed")) {
+      cluster.setChangeFeed(Integer.parseInt(value));
+    } else if (name.equals("failure-detector")) {
+      cluster.setFailureDetector(value);
+    } else if (name.equals("heartbeat")) {
+      cluster.setHeartbeatInterval(Long.parseLong(value));
+    } else if (name.equals("suspect-after")) {
+      cluster.setSuspectAfter(Double.parseDouble(value));
+    } else if (name.equals("lease")) {
+      cluster.setLease(Long.parseLong(value));
+    } else if (name.equals("line-time")) {
+      cluster.setLineTime(Long.parseLong(value));
+    } else if (name.equals("execution")) {
+      cluster.setExecution(value);
+    } else if (name.equals("epoch")) {
+      cluster.setEpochLength(Integer.parseInt(value));
+    } else {
+      throw new IllegalArgumentException("Unknown option: " + name);
+    }
+  }
+  
+  /**
+   * Reads the options a script declares for itself. A script names the options it is
+   * meant to run under in a line such as // options: --replication=quorum among the
+   * comments at its top, and they are applied before the options of the command line,
+   * so the command line can still change them.
+   * @param script the script file
+   * @return the options the script declares, empty if it declares none
+   * @throws IOException if the script cannot be read
+   */
+  static List<String> declaredOptions(File script) throws IOException {
+    List<String> options = new ArrayList<String>();
+    if (!script.exists()) {
+      return options;
+    }
+    BufferedReader br = new BufferedReader(new FileReader(script));
+    try {
+      String line;
+      while ((line = br.readLine()) != null && line.trim().startsWith("//")) {
+        String comment = line.trim().substring(2).trim();
+        if (comment.startsWith("options:")) {
+          for (String option : comment.substring("options:".length()).trim().split("\\s+")) {
+            if (option.length() > 0) {
+              options.add(option);
+            }
+          }
+        }
+      }
+    } finally {
+      br.close();
+    }
+    return options;
+  }
+
+  /**
+   * Runs a script a line at a time and then the last epoch of the deterministic
+   * execution. An exception stops the script, and is written to the output with its
+   * stack trace the way the output files have always shown it.
+   * @param script the script file
+   * @param cluster the cluster the script runs on
+   * @param output where the script writes its output
+   * @param debugState true to print the state of the cluster after every line
+   * @return the exception that stopped the script, or null if it ran to the end
    */
-  public static void main(String[] args) {
-    boolean debugState = false;
-	BufferedReader br = null;
-	boolean verbose = true;
-	if (args.length > 1) {
-	  verbose = Boolean.valueOf(args[1]);
-	}
-	output.setVerbose(verbose);
-	int time = 0;
-	try {
+  static Exception runScript(File script, Cluster cluster, Outputter output, boolean debugState) {
+    BufferedReader br = null;
+    try {
       String sCurrentLine;
-      br = new BufferedReader(new FileReader(args[0]));
+      br = new BufferedReader(new FileReader(script));
+      ScriptRunner runner = new ScriptRunner(cluster, output, script.getAbsoluteFile().getParentFile());
       while ((sCurrentLine = br.readLine()) != null) {
-	    if(sCurrentLine.length() == 0 || sCurrentLine.substring(0,2).matches("//")) {
-	      continue;
+        runner.runLine(sCurrentLine);
+        if(debugState) {
+          queryState(cluster);
         }
-	    if(output.isVerbose()) {
-	      output.addOutput("Time: " + time + "\n" + "--------");
-	    }
-	    List<String> inputs = Arrays.asList(sCurrentLine.split(";"));
-		for (String input : inputs) {
-		  input = input.replaceAll("\\s","");
-		  int index=input.indexOf('(');
-		  String op=input.substring(0, index);
-		  op = op.replaceAll("\\s","");
-		  if(op.equals("begin") || op.equals("beginRO")) {
-		    int tID = Integer.parseInt(input.substring(input.indexOf('T')+1, input.length()-1));
-		    if (op.equals("beginRO")) {
-	          if(output.isVerbose()){
-	            output.addOutput("Begin read-only transaction " + String.valueOf(tID));
-	          }
-		    } else {
-	          if(output.isVerbose()) {
-	            output.addOutput("Begin transaction " + String.valueOf(tID));
-	          }
-		    }
-		    transactionManager.intake(tID, op.equals("beginRO"), time);
-		  } else if(op.equals("R")) {
-		    int tID = Integer.parseInt(input.substring(input.indexOf('T')+1,input.indexOf(',')));
-		    int i = Integer.parseInt(input.substring(input.indexOf('x')+1, input.length()-1));
-		    Instruction instruction = new Instruction("read", i, time);
-	        if(output.isVerbose()) {
-	          output.addOutput("Transaction " + tID + " dispatched instruction:\n" + instruction);
-	        }
-            transactionManager.intake(instruction, tID);
-		  } else if (op.equals("W")) {
-	        int tID = Integer.parseInt(input.substring(input.indexOf('T')+1,input.indexOf(',')));
-	        int i = Integer.parseInt(input.substring(input.indexOf('x')+1,input.lastIndexOf(',')));
-	        int value = Integer.parseInt(input.substring(input.lastIndexOf(',')+1,input.lastIndexOf(')')));
-	        Instruction instruction = new Instruction("write", i, value, time);
-	        if(output.isVerbose()) {
-	          output.addOutput("Transaction " + tID + " dispatched instruction:\n" + instruction);
-	        }
-	        transactionManager.intake(instruction, tID);
-          } else if(op.equals("fail")) {
-		    int siteID = Integer.parseInt(input.substring(input.indexOf('(')+1, input.length()-1));
-	        if(output.isVerbose()) {
-	          output.addOutput("Site failure: " + siteID);
-	        }
-		    transactionManager.siteFail(siteID);
-		  } else if(op.equals("recover")) {
-            int siteID = Integer.parseInt(input.substring(input.indexOf('(')+1, input.length()-1));
-            if(output.isVerbose()) {
-              output.addOutput("Site recovered: " + siteID);
-		    }
-            transactionManager.siteRecover(siteID);
-          } else if(op.equals("end")) {
-            int tID = Integer.parseInt(input.substring(input.indexOf('T')+1,input.indexOf(')')));
-            if(output.isVerbose()) {
-              output.addOutput("End transaction : " + tID);
-            }
-            transactionManager.endTransaction(tID);
-          } else if(op.equals("dump")){
-            char dump = input.charAt(5);
-            if (dump == ')') {
-              output.addOutput("Dump all");
-              transactionManager.dump();
-            } else if (dump == 'x'){
-              int variable = Integer.parseInt(input.substring(input.indexOf('x')+1,input.indexOf(')')));
-              output.addOutput("Dump all copies of variable at index " + variable);
-              transactionManager.dumpIndex(variable);
-            } else if (dump == 's'){
-              output.addOutput("Dump all the committed values");
-              transactionManager.shorterDump();
-            }  else {
-              int siteIndex = Integer.parseInt(input.substring(input.indexOf('(')+1,input.indexOf(')')));
-              output.addOutput("Dump all variables at site " + siteIndex);
-              transactionManager.dumpSite(siteIndex);
-            }
-          }
-	      transactionManager.checkWaitingTransactions();
-		}
-		time++;
-		if(debugState) {
-		  queryState();
-		}
-	  }
-	} catch (Exception e) {
-	  output.addOutput("Error:\n" + e.toString());
-	  for (StackTraceElement element :e.getStackTrace()) {
-	    output.addOutput(element.toString());  
-	  }
+      }
+      cluster.runEpoch();
+      return null;
+    } catch (Exception e) {
+      output.addOutput("Error:\n" + e.toString());
+      for (StackTraceElement element :e.getStackTrace()) {
+        output.addOutput(element.toString());
+      }
+      return e;
+    } finally {
+      cluster.shutdown();
+      try {
+        if (br != null) {
+          br.close();
+        }
+      } catch (IOException ex) {
+        ex.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * This is the main method of the application. It takes in a path to a script file
+   * as args[0], an optional verbose flag as args[1] and options after that.
+   * It then applies the options the script declares and those options, and runs the
+   * script a line at a time.
+   * Author: Darren and Viswanath
+   */
+  public static void main(String[] args) throws IOException {
+    boolean verbose = true;
+    if (args.length > 1) {
+      verbose = Boolean.valueOf(args[1]);
+    }
+    Outputter output = new Outputter("dv-output.txt");
+    output.setVerbose(verbose);
+    Cluster cluster = new Cluster(output);
+    File script = new File(args[0]);
+    for (String option : declaredOptions(script)) {
+      applyOption(cluster, option);
+    }
+    for (int i = 2; i < args.length; i++) {
+      applyOption(cluster, args[i]);
+    }
+    Exception e = runScript(script, cluster, output, false);
+    if (e != null) {
       e.printStackTrace();
-	} finally {
-	  try {
-		if (br != null) {
-		  br.close();
-		  output.closeBufferWriter();
-	      System.out.println("Done");
-		}
-	  } catch (IOException ex) {
-	    ex.printStackTrace();
-	  }
+    }
+    output.closeBufferWriter();
+    if (script.exists()) {
+      System.out.println("Done");
     }
   }
 }
@@ -0,0 +1,313 @@
+package project.adb;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class serves the database over the network. Clients connect over TCP and send
+ * lines of the script language, such as begin(T1), R(T1,x2);W(T1,x2,5) or dump().
+ * A single threaded NIO event loop runs every complete line in the order it arrives,
+ * so a client may send many lines without waiting for their answers.
+ * Every line is answered with the output it produced followed by OK, or by ERROR and
+ * the reason if it failed. A read may have to wait for a lock, so its value is sent
+ * when the read is done, as a line like R(T1,x2) = 20, to the client that sent it.
+ * A read of a transaction that aborts is answered with a line like R(T1,x2) aborted.
+ * Clients choose the ids of their transactions and must not share them. The line
+ * quit closes the connection.
+ * Run it with: DatabaseServer port [verbose] [--name=value ...], where the options
+ * are the same as DatabaseApp's.
+ */
+public class DatabaseServer {
+  private Cluster cluster;
+  private Outputter output;
+  private ScriptRunner runner;
+  private Selector selector;
+  private ServerSocketChannel serverChannel;
+  private List<Session> sessions = new ArrayList<Session>();
+  private volatile boolean stopped = false;
+
+  /**
+   * @param cluster the cluster to serve
+   * @param output the in-memory outputter of the cluster. It must hide the values read
+   * before the cluster starts its sites, since every value is sent to its reader instead.
+   */
+  public DatabaseServer(Cluster cluster, Outputter output) {
+    if (output.areValuesShown()) {
+      throw new IllegalArgumentException("The server sends the values read to their readers, so the output must hide them");
+    }
+    this.cluster = cluster;
+    this.output = output;
+    this.runner = new ScriptRunner(cluster, output, new File(".").getAbsoluteFile());
+  }
+
+  /**
+   * Starts the server and serves clients until it is killed. The cluster shuts down
+   * before the process exits.
+   * @param args the port, an optional verbose flag and options after that
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.out.println("Usage: DatabaseServer port [verbose] [--name=value ...]");
+      return;
+    }
+    Outputter output = new Outputter(args.length > 1 && Boolean.valueOf(args[1]));
+    output.setValuesShown(false);
+    final Cluster cluster = new Cluster(output);
+    for (int i = 2; i < args.length; i++) {
+      DatabaseApp.applyOption(cluster, args[i]);
+    }
+    final DatabaseServer server = new DatabaseServer(cluster, output);
+    System.out.println("Listening on port " + server.bind(Integer.parseInt(args[0])));
+    final Thread serving = Thread.currentThread();
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      public void run() {
+        server.stop();
+        try {
+          serving.join();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    try {
+      server.serve();
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  /**
+   * @param port the port to listen on, or 0 for any free port
+   * @return the port the server listens on
+   */
+  public int bind(int port) throws IOException {
+    selector = Selector.open();
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.socket().bind(new InetSocketAddress(port));
+    serverChannel.configureBlocking(false);
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    return serverChannel.socket().getLocalPort();
+  }
+
+  /**
+   * Stops the event loop. It may be called from any thread.
+   */
+  public void stop() {
+    stopped = true;
+    if (selector != null) {
+      selector.wakeup();
+    }
+  }
+
+  /**
+   * The event loop. It runs until stop() is called, then closes every connection.
+   */
+  public void serve() throws IOException {
+    if (selector == null) {
+      throw new IllegalStateException("The server must be bound before it serves");
+    }
+    while (!stopped) {
+      selector.select();
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        if (!key.isValid()) {
+          continue;
+        }
+        if (key.isAcceptable()) {
+          SocketChannel channel = serverChannel.accept();
+          if (channel == null) {
+            continue;
+          }
+          channel.configureBlocking(false);
+          channel.socket().setTcpNoDelay(true);
+          Session session = new Session();
+          session.key = channel.register(selector, SelectionKey.OP_READ, session);
+          sessions.add(session);
+        } else {
+          handle(key);
+        }
+      }
+    }
+    for (Session session : sessions) {
+      session.key.channel().close();
+    }
+    selector.close();
+    serverChannel.close();
+  }
+
+  /**
+   * Reads what arrived on a connection and runs every complete line. Running a line may
+   * finish the reads of other sessions too, so every session with something to send
+   * is flushed afterwards.
+   */
+  private void handle(SelectionKey key) throws IOException {
+    SocketChannel channel = (SocketChannel) key.channel();
+    Session session = (Session) key.attachment();
+    if (key.isReadable()) {
+      int read;
+      try {
+        read = channel.read(session.in);
+      } catch (IOException e) {
+        read = -1;
+      }
+      if (read < 0) {
+        close(session);
+        return;
+      }
+      session.in.flip();
+      int start = session.in.position();
+      for (int i = start; i < session.in.limit() && !session.quitting; i++) {
+        if (session.in.get(i) == '\n') {
+          byte[] bytes = new byte[i - start];
+          session.in.get(bytes);
+          session.in.get();
+          start = i + 1;
+          runLine(session, new String(bytes, StandardCharsets.UTF_8).trim());
+        }
+      }
+      session.in.compact();
+      if (!session.in.hasRemaining()) {
+        ByteBuffer bigger = ByteBuffer.allocate(session.in.capacity() * 2);
+        session.in.flip();
+        bigger.put(session.in);
+        session.in = bigger;
+      }
+    }
+    for (Session other : new ArrayList<Session>(sessions)) {
+      flush(other);
+    }
+  }
+
+  /**
+   * Runs a line for a session and queues its answer. The reads it sent are kept until
+   * they are done.
+   */
+  private void runLine(Session session, String line) {
+    if (line.equals("quit")) {
+      session.quitting = true;
+      session.send("OK");
+      return;
+    }
+    String result = "OK";
+    try {
+      for (Map.Entry<Instruction, Integer> sent : runner.runLine(line).entrySet()) {
+        if (!sent.getKey().getAction().endsWith("write")) {
+          session.reads.put(sent.getKey(), sent.getValue());
+        }
+      }
+    } catch (Exception e) {
+      result = "ERROR " + e;
+    }
+    for (String produced : output.takeOutput()) {
+      session.send(produced);
+    }
+    for (Session other : sessions) {
+      other.sendDoneReads();
+    }
+    session.send(result);
+  }
+
+  /**
+   * Writes as much of a session's queued answers as its socket takes, and closes the
+   * session once a quitting session has nothing left to write.
+   */
+  private void flush(Session session) throws IOException {
+    SocketChannel channel = (SocketChannel) session.key.channel();
+    try {
+      while (!session.out.isEmpty()) {
+        channel.write(session.out.getFirst());
+        if (session.out.getFirst().hasRemaining()) {
+          break;
+        }
+        session.out.removeFirst();
+      }
+    } catch (IOException e) {
+      close(session);
+      return;
+    }
+    if (session.out.isEmpty() && session.quitting) {
+      close(session);
+    } else if (session.key.isValid()) {
+      session.key.interestOps(session.out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+  }
+
+  /**
+   * Closes a session. Its transactions go on, and the values they read are dropped.
+   */
+  private void close(Session session) throws IOException {
+    session.key.cancel();
+    session.key.channel().close();
+    sessions.remove(session);
+  }
+
+  /**
+   * @return true if the transaction aborted for good or was rejected, so its reads
+   * will never be done
+   */
+  private boolean hasFailed(int tID) {
+    if (cluster.isRejected(tID)) {
+      return true;
+    } else if (cluster.isDeterministic()) {
+      return false;
+    }
+    Transaction transaction = cluster.findTransaction(tID);
+    return transaction != null && transaction.getState().equals("aborted") && !transaction.isRestartPending();
+  }
+
+  /**
+   * A client's connection, the answers queued for it and the reads it is waiting for.
+   */
+  private class Session {
+    private SelectionKey key;
+    private ByteBuffer in = ByteBuffer.allocate(4096);
+    private LinkedList<ByteBuffer> out = new LinkedList<ByteBuffer>();
+    private Map<Instruction, Integer> reads = new LinkedHashMap<Instruction, Integer>();
+    private boolean quitting = false;
+
+    void send(String line) {
+      out.add(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Sends the value of every read that is done, and drops the reads of transactions
+     * that failed.
+     */
+    void sendDoneReads() {
+      Iterator<Map.Entry<Instruction, Integer>> pending = reads.entrySet().iterator();
+      while (pending.hasNext()) {
+        Map.Entry<Instruction, Integer> read = pending.next();
+        Instruction instruction = read.getKey();
+        int tID = read.getValue();
+        int[] indexes = instruction.isBatch() ? instruction.getIndexes() : new int[] {instruction.getIndex()};
+        if (instruction.isDone()) {
+          Integer[] results = instruction.getResults();
+          for (int k = 0; k < indexes.length; k++) {
+            send("R(T" + tID + ",x" + indexes[k] + ") = " + results[k]);
+          }
+          pending.remove();
+        } else if (hasFailed(tID)) {
+          for (int index : indexes) {
+            send("R(T" + tID + ",x" + index + ") aborted");
+          }
+          pending.remove();
+        }
+      }
+    }
+  }
+}
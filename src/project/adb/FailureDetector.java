@@ -0,0 +1,137 @@
+package project.adb;
+
+/**
+ * This class decides from the heartbeats of the sites which ones seem to be down.
+ * A "timeout" detector suspects a site when no heartbeat arrived for a fixed time.
+ * A "phi" detector is a phi accrual detector: it keeps the gaps between the last
+ * heartbeats of each site, and phi is how unlikely it is, in powers of ten, that the
+ * next heartbeat is still on its way, assuming the gaps are normally distributed.
+ * It suspects the site when phi goes over a threshold, so a site whose heartbeats
+ * arrive unevenly gets more time than one whose heartbeats are regular. The deviation
+ * is taken to be at least a quarter of the mean gap, so that one lost heartbeat of a
+ * site whose heartbeats are very regular is not taken for a failure.
+ * A site is trusted again as soon as one of its heartbeats arrives. Times are in
+ * milliseconds of whatever clock the caller uses.
+ */
+public class FailureDetector {
+  private static final int WINDOW = 100;
+
+  private String mode;
+  private double threshold;
+  private long[] last;
+  private long[][] gaps;
+  private int[] gapCounts;
+  private long[] gapTotals;
+  private double[] gapSums;
+  private double[] gapSquareSums;
+  private boolean[] suspected;
+
+  /**
+   * @param siteCount the number of sites, numbered 1 to siteCount
+   * @param mode timeout or phi
+   * @param threshold the milliseconds without a heartbeat for timeout, or the phi for phi
+   * @param interval how often the sites send heartbeats, used until gaps are known
+   * @param start the time the detector starts, which counts as a heartbeat of every site
+   */
+  public FailureDetector(int siteCount, String mode, double threshold, long interval, long start) {
+    if (!mode.equals("timeout") && !mode.equals("phi")) {
+      throw new IllegalArgumentException("Unknown failure detector: " + mode);
+    }
+    if (threshold <= 0 || interval <= 0) {
+      throw new IllegalArgumentException("A failure detector needs a positive threshold and heartbeat interval");
+    }
+    this.mode = mode;
+    this.threshold = threshold;
+    last = new long[siteCount + 1];
+    gaps = new long[siteCount + 1][WINDOW];
+    gapCounts = new int[siteCount + 1];
+    gapTotals = new long[siteCount + 1];
+    gapSums = new double[siteCount + 1];
+    gapSquareSums = new double[siteCount + 1];
+    suspected = new boolean[siteCount + 1];
+    for (int site = 1; site <= siteCount; site++) {
+      last[site] = start;
+      addGap(site, interval);
+    }
+  }
+
+  /**
+   * Records a heartbeat. A suspected site is trusted again, and the gap it was
+   * suspected in is left out of its gaps.
+   * @param siteID the site that sent it
+   * @param now when it arrived
+   * @return true if the site was suspected
+   */
+  public boolean heartbeat(int siteID, long now) {
+    if (now > last[siteID]) {
+      if (!suspected[siteID]) {
+        addGap(siteID, now - last[siteID]);
+      }
+      last[siteID] = now;
+    }
+    boolean wasSuspected = suspected[siteID];
+    suspected[siteID] = false;
+    return wasSuspected;
+  }
+
+  /**
+   * Decides if a site that is not suspected yet seems to be down now.
+   * @param siteID the site to check
+   * @param now the time
+   * @return true if the site became suspected
+   */
+  public boolean check(int siteID, long now) {
+    if (suspected[siteID]) {
+      return false;
+    }
+    boolean down = mode.equals("timeout") ? now - last[siteID] > threshold : phi(siteID, now) > threshold;
+    suspected[siteID] = down;
+    return down;
+  }
+
+  /**
+   * @param siteID the site
+   * @param now the time
+   * @return how unlikely it is that the next heartbeat of the site is only late, as the
+   * negative power of ten of its probability
+   */
+  public double phi(int siteID, long now) {
+    double mean = gapSums[siteID] / gapCounts[siteID];
+    double variance = gapSquareSums[siteID] / gapCounts[siteID] - mean * mean;
+    double deviation = Math.max(Math.sqrt(Math.max(variance, 0)), mean / 4);
+    double y = (now - last[siteID] - mean) / deviation;
+    double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+    double later = y > 0 ? e / (1 + e) : 1 - 1 / (1 + e);
+    return -Math.log10(Math.max(later, Double.MIN_VALUE));
+  }
+
+  /**
+   * @param siteID the site
+   * @return true if the site is suspected to be down
+   */
+  public boolean isSuspected(int siteID) {
+    return suspected[siteID];
+  }
+
+  /**
+   * @param siteID the site
+   * @return when the last heartbeat of the site arrived
+   */
+  public long getLastHeartbeat(int siteID) {
+    return last[siteID];
+  }
+
+  private void addGap(int siteID, long gap) {
+    int slot = (int) (gapTotals[siteID]++ % WINDOW);
+    if (gapCounts[siteID] == WINDOW) {
+      long old = gaps[siteID][slot];
+      gapSums[siteID] -= old;
+      gapSquareSums[siteID] -= (double) old * old;
+    } else {
+      gapCounts[siteID]++;
+    }
+    gaps[siteID][slot] = gap;
+    gapSums[siteID] += gap;
+    gapSquareSums[siteID] += (double) gap * gap;
+  }
+}
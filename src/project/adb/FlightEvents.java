@@ -0,0 +1,271 @@
+package project.adb;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * This class holds the Java Flight Recorder events of the database, so a recording
+ * shows which transaction waited for which lock at which site, and for how long.
+ * Every method first checks whether its event is enabled through the event type kept
+ * for it, and only then creates the event and fills it in, so when nothing records
+ * an event costs a check of a flag and allocates nothing. Times a transaction waited are measured from when it
+ * last began to wait for a lock, and only while the events are recorded, so a wait
+ * that began before the recording counts as no wait.
+ */
+final class FlightEvents {
+
+  private static final EventType BEGIN = EventType.getEventType(Begin.class);
+  private static final EventType READ = EventType.getEventType(Read.class);
+  private static final EventType LOCK_GRANTED = EventType.getEventType(LockGranted.class);
+  private static final EventType LOCK_WAIT = EventType.getEventType(LockWait.class);
+  private static final EventType WAIT_DIE = EventType.getEventType(WaitDie.class);
+  private static final EventType ABORT = EventType.getEventType(Abort.class);
+  private static final EventType COMMIT = EventType.getEventType(Commit.class);
+  private static final EventType SITE_FAILURE = EventType.getEventType(SiteFailure.class);
+  private static final EventType SITE_RECOVERY = EventType.getEventType(SiteRecovery.class);
+
+  private FlightEvents() {
+  }
+
+  @Name("project.adb.TransactionBegin")
+  @Label("Transaction Begin")
+  @Category({"Distributed Database", "Transactions"})
+  static class Begin extends Event {
+    @Label("Transaction")
+    int transaction;
+    @Label("Read Only")
+    boolean readOnly;
+    @Label("Priority")
+    String priority;
+    @Label("Timestamp")
+    @Description("The start time of the transaction, which wait-die compares")
+    long timestamp;
+  }
+
+  @Name("project.adb.Read")
+  @Label("Read")
+  @Category({"Distributed Database", "Transactions"})
+  static class Read extends Event {
+    @Label("Transaction")
+    int transaction;
+    @Label("Index")
+    int index;
+    @Label("Site")
+    int site;
+    @Label("Value")
+    int value;
+    @Label("Waited")
+    @Timespan
+    long waited;
+  }
+
+  @Name("project.adb.WriteLockGranted")
+  @Label("Write Lock Granted")
+  @Category({"Distributed Database", "Locks"})
+  static class LockGranted extends Event {
+    @Label("Transaction")
+    int transaction;
+    @Label("Index")
+    int index;
+    @Label("Site")
+    int site;
+    @Label("Waited")
+    @Timespan
+    long waited;
+  }
+
+  @Name("project.adb.LockWait")
+  @Label("Lock Wait")
+  @Category({"Distributed Database", "Locks"})
+  static class LockWait extends Event {
+    @Label("Transaction")
+    int transaction;
+    @Label("Index")
+    int index;
+    @Label("Site")
+    int site;
+    @Label("Mode")
+    String mode;
+    @Label("Lock Holder")
+    @Description("The younger transaction holding the lock, or 0 if the site is not ready")
+    int holder;
+  }
+
+  @Name("project.adb.WaitDie")
+  @Label("Wait-Die Abort")
+  @Category({"Distributed Database", "Locks"})
+  static class WaitDie extends Event {
+    @Label("Transaction")
+    int transaction;
+    @Label("Older Transaction")
+    int older;
+    @Label("Index")
+    int index;
+    @Label("Restarts")
+    @Description("True if the transaction restarts once the older transaction ends")
+    boolean restarts;
+  }
+
+  @Name("project.adb.Abort")
+  @Label("Abort")
+  @Category({"Distributed Database", "Transactions"})
+  static class Abort extends Event {
+    @Label("Transaction")
+    int transaction;
+    @Label("Reason")
+    String reason;
+  }
+
+  @Name("project.adb.Commit")
+  @Label("Commit")
+  @Category({"Distributed Database", "Transactions"})
+  static class Commit extends Event {
+    @Label("Transaction")
+    int transaction;
+    @Label("Writes")
+    int writes;
+    @Label("Protocol")
+    String protocol;
+  }
+
+  @Name("project.adb.SiteFailure")
+  @Label("Site Failure")
+  @Category({"Distributed Database", "Sites"})
+  static class SiteFailure extends Event {
+    @Label("Site")
+    int site;
+  }
+
+  @Name("project.adb.SiteRecovery")
+  @Label("Site Recovery")
+  @Category({"Distributed Database", "Sites"})
+  static class SiteRecovery extends Event {
+    @Label("Site")
+    int site;
+  }
+
+  static void begin(Transaction transaction) {
+    if (BEGIN.isEnabled()) {
+      Begin event = new Begin();
+      event.transaction = transaction.getID();
+      event.readOnly = transaction.getReadOnly();
+      event.priority = transaction.getPriority();
+      event.timestamp = transaction.getStartTime();
+      event.commit();
+    }
+  }
+
+  static void read(Transaction transaction, int index, int site, int value) {
+    if (READ.isEnabled()) {
+      Read event = new Read();
+      event.transaction = transaction.getID();
+      event.index = index;
+      event.site = site;
+      event.value = value;
+      event.waited = transaction.stopWaiting();
+      event.commit();
+    }
+  }
+
+  static void lockGranted(Transaction transaction, int index, int site) {
+    if (LOCK_GRANTED.isEnabled()) {
+      LockGranted event = new LockGranted();
+      event.transaction = transaction.getID();
+      event.index = index;
+      event.site = site;
+      event.waited = transaction.stopWaiting();
+      event.commit();
+    }
+  }
+
+  /**
+   * @param holder the transaction holding the lock, or null if the site is not ready
+   */
+  static void lockWait(Transaction transaction, int index, int site, String mode, Transaction holder) {
+    if (LOCK_WAIT.isEnabled()) {
+      LockWait event = new LockWait();
+      transaction.startWaiting();
+      event.transaction = transaction.getID();
+      event.index = index;
+      event.site = site;
+      event.mode = mode;
+      event.holder = holder == null ? 0 : holder.getID();
+      event.commit();
+    }
+  }
+
+  static void waitDie(Transaction transaction, Transaction older, boolean restarts) {
+    if (WAIT_DIE.isEnabled()) {
+      WaitDie event = new WaitDie();
+      event.transaction = transaction.getID();
+      event.older = older.getID();
+      event.index = transaction.getInstructions().isEmpty() ? 0 : transaction.getLastInstruction().getIndex();
+      event.restarts = restarts;
+      event.commit();
+    }
+  }
+
+  static void abort(Transaction transaction, String reason) {
+    if (ABORT.isEnabled()) {
+      Abort event = new Abort();
+      event.transaction = transaction.getID();
+      event.reason = reason;
+      event.commit();
+    }
+  }
+
+  /**
+   * Begins the commit event of a transaction that ends.
+   * @return the event, or null if commit events are not enabled
+   */
+  static Commit beginCommit() {
+    if (!COMMIT.isEnabled()) {
+      return null;
+    }
+    Commit event = new Commit();
+    event.begin();
+    return event;
+  }
+
+  /**
+   * Commits an event begun when the transaction ended, so it lasts as long as the commit.
+   * A multi-write counts once for each of its writes, which the transaction keeps as
+   * single writes.
+   * @param event the event from beginCommit, or null if it was not enabled
+   */
+  static void commit(Commit event, Transaction transaction, String protocol) {
+    if (event != null && event.shouldCommit()) {
+      int writes = 0;
+      for (Instruction instruction : transaction.getInstructions()) {
+        if (instruction.getAction().equals("write")) {
+          writes++;
+        }
+      }
+      event.transaction = transaction.getID();
+      event.writes = writes;
+      event.protocol = protocol;
+      event.commit();
+    }
+  }
+
+  static void siteFailure(int site) {
+    if (SITE_FAILURE.isEnabled()) {
+      SiteFailure event = new SiteFailure();
+      event.site = site;
+      event.commit();
+    }
+  }
+
+  static void siteRecovery(int site) {
+    if (SITE_RECOVERY.isEnabled()) {
+      SiteRecovery event = new SiteRecovery();
+      event.site = site;
+      event.commit();
+    }
+  }
+}
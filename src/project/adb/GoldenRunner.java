@@ -0,0 +1,171 @@
+package project.adb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class checks that the scripts still print what they printed before. It runs
+ * every script of a folder in this process, each on a cluster and an outputter of its
+ * own, several at a time, and compares the output with the file of the same name in
+ * the results folder. It prints a line for each script with how long it took and the
+ * first line that differs, and exits with status 1 if any output differs. A script
+ * runs under the options it declares, see DatabaseApp.declaredOptions.
+ * Usage: GoldenRunner [scripts-folder [results-folder]] [--threads=N] [--update]
+ * [options], where --update writes the outputs to the results folder instead of
+ * comparing them, and the options are the same --name=value options DatabaseApp takes.
+ */
+public class GoldenRunner {
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    File scripts = new File("scripts");
+    File results = new File("results");
+    int threads = Runtime.getRuntime().availableProcessors();
+    boolean update = false;
+    List<String> options = new ArrayList<String>();
+    int folders = 0;
+    for (String arg : args) {
+      if (arg.equals("--update")) {
+        update = true;
+      } else if (arg.startsWith("--threads=")) {
+        threads = Integer.parseInt(arg.substring("--threads=".length()));
+      } else if (arg.startsWith("--")) {
+        options.add(arg);
+      } else if (folders++ == 0) {
+        scripts = new File(arg);
+      } else {
+        results = new File(arg);
+      }
+    }
+    File[] files = scripts.listFiles();
+    if (files == null) {
+      System.out.println("There is no folder " + scripts);
+      System.exit(1);
+    }
+    Arrays.sort(files);
+    List<File> toRun = new ArrayList<File>();
+    for (File file : files) {
+      if (file.getName().endsWith(".txt") && (update || new File(results, file.getName()).exists())) {
+        toRun.add(file);
+      }
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+    List<Future<Run>> runs = new ArrayList<Future<Run>>();
+    long start = System.nanoTime();
+    for (final File script : toRun) {
+      final String[] scriptOptions = options.toArray(new String[options.size()]);
+      runs.add(pool.submit(new Callable<Run>() {
+        public Run call() throws IOException {
+          return run(script, scriptOptions);
+        }
+      }));
+    }
+    int differing = 0;
+    long scriptNanos = 0;
+    for (int k = 0; k < runs.size(); k++) {
+      Run run;
+      try {
+        run = runs.get(k).get();
+      } catch (ExecutionException e) {
+        throw new IllegalStateException("The runner failed on " + toRun.get(k).getName(), e.getCause());
+      }
+      scriptNanos += run.nanos;
+      File result = new File(results, run.name);
+      String difference = null;
+      if (update) {
+        write(result, run.lines);
+      } else {
+        difference = compare(run.lines, Files.readAllLines(result.toPath(), StandardCharsets.UTF_8));
+        if (difference != null) {
+          differing++;
+        }
+      }
+      String outcome = update ? "WROTE" : difference == null ? "OK" : "DIFF";
+      System.out.println(String.format("%-5s %-20s %6d ms", outcome, run.name, run.nanos / 1000000) +
+          (difference == null ? "" : "  " + difference));
+    }
+    long elapsed = System.nanoTime() - start;
+    pool.shutdown();
+    System.out.println(runs.size() + " scripts" + (update ? " written" : ", " + differing + " differ") + " in " +
+        elapsed / 1000000 + " ms on " + threads + " thread(s), " + scriptNanos / 1000000 + " ms of script time");
+    System.exit(differing == 0 ? 0 : 1);
+  }
+
+  /**
+   * Runs a script the way DatabaseApp runs it in verbose mode, under the options it
+   * declares and then the given ones, keeping the output in memory.
+   */
+  private static Run run(File script, String[] options) throws IOException {
+    long start = System.nanoTime();
+    Outputter output = new Outputter(true);
+    Cluster cluster = new Cluster(output);
+    try {
+      for (String option : DatabaseApp.declaredOptions(script)) {
+        DatabaseApp.applyOption(cluster, option);
+      }
+      for (String option : options) {
+        DatabaseApp.applyOption(cluster, option);
+      }
+    } catch (RuntimeException optionError) {
+      cluster.shutdown();
+      throw optionError;
+    }
+    DatabaseApp.runScript(script, cluster, output, false);
+    Run run = new Run();
+    run.name = script.getName();
+    run.lines = output.takeOutput();
+    run.nanos = System.nanoTime() - start;
+    return run;
+  }
+
+  /**
+   * @return where the output first differs from the expected lines, or null if it is the same
+   */
+  private static String compare(List<String> actual, List<String> expected) {
+    List<String> actualLines = new ArrayList<String>();
+    for (String output : actual) {
+      actualLines.addAll(Arrays.asList(output.split("\n", -1)));
+    }
+    for (int line = 0; line < Math.max(actualLines.size(), expected.size()); line++) {
+      String got = line < actualLines.size() ? actualLines.get(line) : null;
+      String wanted = line < expected.size() ? expected.get(line) : null;
+      if (got == null || wanted == null || !got.equals(wanted)) {
+        return "line " + (line + 1) + ": expected " + (wanted == null ? "the end" : "\"" + wanted + "\"") +
+            ", got " + (got == null ? "the end" : "\"" + got + "\"");
+      }
+    }
+    return null;
+  }
+
+  private static void write(File file, List<String> lines) throws IOException {
+    Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+    try {
+      for (String line : lines) {
+        writer.write(line + "\n");
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * The output of a script and how long it took.
+   */
+  private static class Run {
+    private String name;
+    private List<String> lines;
+    private long nanos;
+  }
+}
@@ -0,0 +1,183 @@
+package project.adb;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * This class simulates the heartbeats of the sites in virtual time, so a failure
+ * detector can run without a network or a wall clock. Every site that is up sends a
+ * heartbeat every interval. The network delays each one by a fixed millisecond and
+ * a random, exponentially distributed jitter, and loses some. Now and then a site
+ * stalls, like a process in a long garbage collection, and its heartbeat leaves late.
+ * Time moves in steps of a few milliseconds: the heartbeats that arrived are given to
+ * the detector, and then it checks every site. The simulator keeps how long it took
+ * to suspect each site that crashed and how often it suspected a site that was up.
+ */
+public class HeartbeatSimulator {
+  private static final long STEP = 5;
+
+  private FailureDetector detector;
+  private int siteCount;
+  private long interval;
+  private long now = 0;
+  private long[] nextSend;
+  private boolean[] down;
+  private long[] downSince;
+  private boolean[] detected;
+  private PriorityQueue<long[]> inFlight = new PriorityQueue<long[]>(11, new Comparator<long[]>() {
+    public int compare(long[] a, long[] b) {
+      return a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]);
+    }
+  });
+  private Random random;
+  private double loss = 0.01;
+  private double jitter = 5;
+  private double stallChance = 0.001;
+  private long stallLength = 250;
+  private int detections = 0;
+  private long detectionTotal = 0;
+  private long slowestDetection = 0;
+  private int falseSuspicions = 0;
+
+  /**
+   * @param detector the detector the heartbeats go to
+   * @param siteCount the number of sites, numbered 1 to siteCount
+   * @param interval how often each site sends a heartbeat, in milliseconds
+   * @param seed the seed of the random delays and losses
+   */
+  public HeartbeatSimulator(FailureDetector detector, int siteCount, long interval, long seed) {
+    this.detector = detector;
+    this.siteCount = siteCount;
+    this.interval = interval;
+    random = new Random(seed);
+    nextSend = new long[siteCount + 1];
+    down = new boolean[siteCount + 1];
+    downSince = new long[siteCount + 1];
+    detected = new boolean[siteCount + 1];
+    for (int site = 1; site <= siteCount; site++) {
+      nextSend[site] = random.nextInt((int) interval);
+    }
+  }
+
+  /**
+   * Changes how the network and the sites behave.
+   * @param loss the chance that a heartbeat is lost
+   * @param jitter the mean random delay of a heartbeat, in milliseconds
+   * @param stallChance the chance that a site stalls before a heartbeat
+   * @param stallLength how long a stall lasts, in milliseconds
+   */
+  public void setNetwork(double loss, double jitter, double stallChance, long stallLength) {
+    this.loss = loss;
+    this.jitter = jitter;
+    this.stallChance = stallChance;
+    this.stallLength = stallLength;
+  }
+
+  /**
+   * @return the virtual time, in milliseconds
+   */
+  public long now() {
+    return now;
+  }
+
+  /**
+   * @return the detector the heartbeats go to
+   */
+  public FailureDetector getDetector() {
+    return detector;
+  }
+
+  /**
+   * Stops the heartbeats of a site.
+   * @param siteID the site that crashes
+   */
+  public void crash(int siteID) {
+    if (!down[siteID]) {
+      down[siteID] = true;
+      downSince[siteID] = now;
+      detected[siteID] = false;
+    }
+  }
+
+  /**
+   * Starts the heartbeats of a site again. The site announces itself as it recovers,
+   * so the detector gets a heartbeat right away.
+   * @param siteID the site that recovers
+   */
+  public void recover(int siteID) {
+    if (down[siteID]) {
+      down[siteID] = false;
+      nextSend[siteID] = now + interval;
+      detector.heartbeat(siteID, now);
+    }
+  }
+
+  /**
+   * Moves the virtual time forward.
+   * @param millis how far
+   * @return the sites the detector began to suspect as {site, 1}, and the ones it
+   * trusts again as {site, 0}, in the order it happened
+   */
+  public List<int[]> advance(long millis) {
+    List<int[]> changes = new ArrayList<int[]>();
+    long end = now + millis;
+    while (now < end) {
+      now = Math.min(now + STEP, end);
+      for (int site = 1; site <= siteCount; site++) {
+        while (!down[site] && nextSend[site] <= now) {
+          if (random.nextDouble() < stallChance) {
+            nextSend[site] += stallLength;
+            continue;
+          }
+          if (random.nextDouble() >= loss) {
+            long delay = 1 + (long) (-jitter * Math.log(1 - random.nextDouble()));
+            inFlight.add(new long[] {nextSend[site] + delay, site});
+          }
+          nextSend[site] += interval;
+        }
+      }
+      while (!inFlight.isEmpty() && inFlight.peek()[0] <= now) {
+        long[] heartbeat = inFlight.poll();
+        if (detector.heartbeat((int) heartbeat[1], heartbeat[0])) {
+          changes.add(new int[] {(int) heartbeat[1], 0});
+        }
+      }
+      for (int site = 1; site <= siteCount; site++) {
+        if (!detector.check(site, now)) {
+          continue;
+        }
+        changes.add(new int[] {site, 1});
+        if (!down[site]) {
+          falseSuspicions++;
+        } else if (!detected[site]) {
+          detected[site] = true;
+          long latency = now - downSince[site];
+          detections++;
+          detectionTotal += latency;
+          slowestDetection = Math.max(slowestDetection, latency);
+        }
+      }
+    }
+    return changes;
+  }
+
+  /**
+   * @param siteID the site
+   * @return true if the site crashed and has not recovered
+   */
+  public boolean isDown(int siteID) {
+    return down[siteID];
+  }
+
+  /**
+   * @return the number of crashes detected, the mean and the slowest time to detect
+   * them in milliseconds, and the number of times a site that was up was suspected
+   */
+  public long[] getStatistics() {
+    return new long[] {detections, detections == 0 ? 0 : detectionTotal / detections, slowestDetection,
+        falseSuspicions};
+  }
+}
@@ -0,0 +1,66 @@
+package project.adb;
+
+/**
+ * This class is a hybrid logical clock that gives a coordinator unique, increasing
+ * timestamps without asking anyone else. A timestamp holds the wall time in
+ * milliseconds since 2020, a logical counter that orders timestamps taken in the same
+ * millisecond, and the id of the coordinator, so that two coordinators never hand
+ * out the same timestamp. When a coordinator learns of a timestamp of another one,
+ * its clock receives it and moves past it, as a hybrid logical clock does when a
+ * message arrives, so a timestamp taken after that is greater than the one received
+ * even if the other coordinator's wall clock is ahead. Without the wall time the clock
+ * is a plain counter, which is deterministic and handy for scripts.
+ */
+public class HybridClock {
+  private static final int NODE_BITS = 8;
+  private static final int LOGICAL_BITS = 16;
+  private static final long EPOCH = 1577836800000L;
+  private final int node;
+  private final boolean physical;
+  private long wallTime = 0;
+  private int logical = 0;
+
+  /**
+   * @param node the id of the coordinator, from 0 to 255
+   * @param physical true to follow the wall clock, false to only count
+   */
+  public HybridClock(int node, boolean physical) {
+    if (node < 0 || node >= 1 << NODE_BITS) {
+      throw new IllegalArgumentException("A clock's node id must be between 0 and " + ((1 << NODE_BITS) - 1));
+    }
+    this.node = node;
+    this.physical = physical;
+  }
+
+  /**
+   * @return a timestamp greater than every timestamp this clock returned before
+   */
+  public synchronized long next() {
+    long now = physical ? System.currentTimeMillis() - EPOCH : 0;
+    if (now > wallTime) {
+      wallTime = now;
+      logical = 0;
+    } else if (++logical == 1 << LOGICAL_BITS) {
+      wallTime++;
+      logical = 0;
+    }
+    return (wallTime << (LOGICAL_BITS + NODE_BITS)) | ((long) logical << NODE_BITS) | node;
+  }
+
+  /**
+   * Merges a timestamp of another clock into this one, so every timestamp this clock
+   * returns from now on is greater than it.
+   * @param timestamp a timestamp returned by any clock
+   */
+  public synchronized void receive(long timestamp) {
+    long remoteWall = timestamp >>> (LOGICAL_BITS + NODE_BITS);
+    int remoteLogical = (int) (timestamp >>> NODE_BITS) & ((1 << LOGICAL_BITS) - 1);
+    long now = physical ? System.currentTimeMillis() - EPOCH : 0;
+    if (remoteWall > wallTime && remoteWall >= now) {
+      wallTime = remoteWall;
+      logical = remoteLogical;
+    } else if (remoteWall == wallTime) {
+      logical = Math.max(logical, remoteLogical);
+    }
+  }
+}
@@ -1,5 +1,7 @@
 package project.adb;
 
+import java.util.Arrays;
+
 /**
  * This class holds each instruction
  * @author Darren
@@ -9,7 +11,11 @@ public class Instruction {
   private String action;
   private int index;
   private Integer value;
-  private int timestamp;
+  private long timestamp;
+  private int[] indexes = null;
+  private int[] values = null;
+  private boolean done = false;
+  private Integer[] results = null;
   
   /**
    * The constructor with a value is a write
@@ -20,7 +26,7 @@ public class Instruction {
    * @param timestamp the time it is sent to the transaction manager
    *
    */
-  Instruction(String action, int index, int value, int timestamp) {
+  Instruction(String action, int index, int value, long timestamp) {
     this.action = action;
     this.index = index;
     this.value = value;
@@ -34,13 +40,35 @@ public class Instruction {
    * @param index the index to read from
    * @param timestamp the time the instruction is sent to the transaction manager
    */
-  Instruction(String action, int index, int timestamp) {
+  Instruction(String action, int index, long timestamp) {
     this.action = action;
     this.index = index;
     this.value = null;
     this.timestamp = timestamp;
   }
   
+  /**
+   * The constructor for an instruction on many indexes at once: a multi-read,
+   * a range-read or a multi-write.
+   * @param action multi-read, range-read or multi-write
+   * @param indexes the indexes to read or write
+   * @param values the values to write in the same order, or null for a read
+   * @param timestamp the time the instruction is sent to the transaction manager
+   */
+  Instruction(String action, int[] indexes, int[] values, long timestamp) {
+    if (indexes.length == 0) {
+      throw new IllegalArgumentException("A " + action + " needs at least one index");
+    }
+    if (values != null && values.length != indexes.length) {
+      throw new IllegalArgumentException("A " + action + " needs a value for each index");
+    }
+    this.action = action;
+    this.index = indexes[0];
+    this.indexes = indexes;
+    this.values = values;
+    this.timestamp = timestamp;
+  }
+  
   /**
    * Author: Darren
    * @return read or write
@@ -65,19 +93,87 @@ public class Instruction {
     return value;
   }
 
+  /**
+   * @return true if the instruction reads or writes many indexes at once
+   */
+  public boolean isBatch() {
+    return indexes != null;
+  }
+  
+  /**
+   * @return the indexes a batch instruction reads or writes
+   */
+  public int[] getIndexes() {
+    return indexes;
+  }
+  
+  /**
+   * @return the values a multi-write writes, in the order of the indexes
+   */
+  public int[] getValues() {
+    return values;
+  }
+  
   /**
    * Author: Darren
    * @return the time the instruction is sent to the transaction manager
    */
-  public int getTimestamp() {
+  public long getTimestamp() {
     return timestamp;
   }
   
+  /**
+   * Records that a read returned its value. A read can be done right away or
+   * later, when a site promotes the waiting transaction.
+   * @param result the value read
+   */
+  void complete(Integer result) {
+    complete(new Integer[] {result});
+  }
+  
+  /**
+   * Records the values a read returned, in the order of its indexes. A sharded site
+   * records them from its own thread, so they are only touched while holding the lock.
+   * @param results the values read
+   */
+  synchronized void complete(Integer[] results) {
+    done = true;
+    this.results = results;
+  }
+  
+  /**
+   * @return true if the instruction is a read that returned its values
+   */
+  public synchronized boolean isDone() {
+    return done;
+  }
+  
+  /**
+   * @return the value the read returned, or null if it is not done
+   */
+  public synchronized Integer getResult() {
+    return results == null ? null : results[0];
+  }
+  
+  /**
+   * @return the values a read returned in the order of its indexes, or null if it is not done
+   */
+  public synchronized Integer[] getResults() {
+    return results;
+  }
+  
   /**
    * Author: Darren
    * @return a string of the timestamp, action, index and value if available
    */
   public String toString() {
+    if (isBatch()) {
+      String range = action.equals("range-read") ? indexes[0] + " to " + indexes[indexes.length - 1] :
+          Arrays.toString(indexes);
+      return "Timestamp: " + String.valueOf(timestamp) + "\n" +
+          "Action: " + action + "\n" +
+          "Indexes: " + range + "\n" + (values == null ? "" : "Values: " + Arrays.toString(values) + "\n");
+    }
     String val = (action.equals("read")) ? "" : "Value: " + String.valueOf(value) + "\n";
     return "Timestamp: " + String.valueOf(timestamp) + "\n" +
         "Action: " + action + "\n" +
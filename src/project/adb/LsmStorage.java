@@ -0,0 +1,549 @@
+package project.adb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * This class keeps the values of a site on disk in a log-structured merge tree, so a
+ * site can hold more indexes than fit on the heap. Only the indexes that were written
+ * are stored, the others have their initial value.
+ * A write is appended to a write-ahead log and put in a sorted table in memory. When
+ * the memory table is full it is written out as a sorted table file and the log starts
+ * over, and when there are too many table files they are merged into one. A read looks
+ * in the memory table and then in the table files from the newest to the oldest. A scan
+ * merges the memory table and the table files in one pass over the range.
+ * Each table file keeps the first index of each block of records and a bloom filter in
+ * memory, so reading a table costs at most one block read.
+ * Opening a directory that already holds tables and a log picks up where it was left.
+ *
+ * A failure of the site starts a new failure epoch instead of rewriting every replicated
+ * index. Every record carries the epoch it was written in, and a replicated index is
+ * ready to be read only if it was written in the current epoch.
+ */
+public class LsmStorage implements Storage {
+  private static final int RECORD_SIZE = 16;
+  private static final int BLOCK_RECORDS = 64;
+  private static final int MEMORY_TABLE_LIMIT = 1 << 16;
+  private static final int MAX_TABLES = 4;
+  private static final Comparator<Cursor> BY_INDEX_NEWEST_FIRST = new Comparator<Cursor>() {
+    public int compare(Cursor a, Cursor b) {
+      if (a.record[0] != b.record[0]) {
+        return a.record[0] < b.record[0] ? -1 : 1;
+      }
+      return b.age - a.age;
+    }
+  };
+
+  private File directory;
+  private Placement placement;
+  private boolean temporary;
+  private TreeMap<Integer, int[]> memoryTable = new TreeMap<Integer, int[]>();
+  private List<Table> tables = new ArrayList<Table>();
+  private int nextTable = 0;
+  private int epoch = 0;
+  private DataOutputStream log;
+  private ByteBuffer block = ByteBuffer.allocate(BLOCK_RECORDS * RECORD_SIZE);
+
+  /**
+   * Opens the storage in a directory, creating it if needed.
+   * @param directory where the log and the table files are kept
+   * @param placement the placement telling which indexes are replicated
+   * @param temporary true to delete the directory when the storage closes
+   */
+  public LsmStorage(File directory, Placement placement, boolean temporary) {
+    this.directory = directory;
+    this.placement = placement;
+    this.temporary = temporary;
+    try {
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("Cannot create " + directory);
+      }
+      File[] files = directory.listFiles();
+      Arrays.sort(files);
+      List<File> tableFiles = new ArrayList<File>();
+      for (File file : files) {
+        if (file.getName().startsWith("table-")) {
+          tableFiles.add(file);
+        }
+      }
+      for (File file : tableFiles) {
+        tables.add(new Table(file));
+        nextTable = Math.max(nextTable, tableNumber(file) + 1);
+      }
+      File epochFile = new File(directory, "epoch");
+      if (epochFile.exists()) {
+        DataInputStream in = new DataInputStream(new FileInputStream(epochFile));
+        epoch = in.readInt();
+        in.close();
+      }
+      replayLog();
+      log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile(), true), 1 << 16));
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot open the storage in " + directory, e);
+    }
+  }
+
+  public int getValue(int index) {
+    int[] record = find(index);
+    return record == null ? 10 : record[0];
+  }
+
+  public int getVersion(int index) {
+    int[] record = find(index);
+    return record == null ? 0 : record[1];
+  }
+
+  public boolean isReadyToBeRead(int index) {
+    if (!placement.isReplicated(index)) {
+      return true;
+    }
+    int[] record = find(index);
+    return (record == null ? 0 : record[2]) == epoch;
+  }
+
+  /**
+   * Merges the records of the range from the memory table and every table file, which
+   * are each read once in index order. Where several hold an index the newest wins.
+   */
+  public int[] scan(int from, int to) {
+    int[] page = new int[2 * Math.max(0, to - from + 1)];
+    for (int i = from; i <= to; i++) {
+      page[2 * (i - from)] = 10;
+      page[2 * (i - from) + 1] = !placement.isReplicated(i) || epoch == 0 ? 1 : 0;
+    }
+    if (from > to) {
+      return page;
+    }
+    List<Cursor> opened = new ArrayList<Cursor>();
+    PriorityQueue<Cursor> cursors = new PriorityQueue<Cursor>(tables.size() + 1, BY_INDEX_NEWEST_FIRST);
+    try {
+      for (int t = 0; t < tables.size(); t++) {
+        opened.add(tables.get(t).cursor(from, to, t));
+      }
+      opened.add(new Cursor(memoryTable.subMap(from, true, to, true), tables.size()));
+      for (Cursor cursor : opened) {
+        if (cursor.advance()) {
+          cursors.add(cursor);
+        }
+      }
+      int lastIndex = from - 1;
+      while (!cursors.isEmpty()) {
+        Cursor cursor = cursors.poll();
+        int index = cursor.record[0];
+        if (index != lastIndex) {
+          page[2 * (index - from)] = cursor.record[1];
+          page[2 * (index - from) + 1] = !placement.isReplicated(index) || cursor.record[3] == epoch ? 1 : 0;
+          lastIndex = index;
+        }
+        if (cursor.advance()) {
+          cursors.add(cursor);
+        }
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot read the storage in " + directory, e);
+    } finally {
+      for (Cursor cursor : opened) {
+        cursor.close();
+      }
+    }
+    return page;
+  }
+
+  /**
+   * The write reaches the operating system before this returns, but it is not
+   * forced to the disk.
+   */
+  public void put(int index, int value, int version) {
+    try {
+      append(index, value, version);
+      log.flush();
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot write to the storage in " + directory, e);
+    }
+  }
+
+  /**
+   * The whole load reaches the operating system at once.
+   */
+  public void load(int[] pairs, int size) {
+    try {
+      for (int k = 0; k < size; k += 2) {
+        append(pairs[k], pairs[k + 1], getVersion(pairs[k]));
+      }
+      log.flush();
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot write to the storage in " + directory, e);
+    }
+  }
+
+  public void fail() {
+    epoch++;
+    try {
+      DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(directory, "epoch")));
+      out.writeInt(epoch);
+      out.close();
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot write to the storage in " + directory, e);
+    }
+  }
+
+  /**
+   * A temporary directory is deleted even if a file fails to close.
+   */
+  public void close() {
+    try {
+      log.close();
+      for (Table table : tables) {
+        table.close();
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot close the storage in " + directory, e);
+    } finally {
+      if (temporary) {
+        for (File file : directory.listFiles()) {
+          file.delete();
+        }
+        directory.delete();
+      }
+    }
+  }
+
+  /**
+   * @return the number of table files, which is at most the limit that triggers a merge
+   */
+  public int getTableCount() {
+    return tables.size();
+  }
+
+  /**
+   * Writes a record to the log and the memory table, and writes the memory table out
+   * when it is full.
+   */
+  private void append(int index, int value, int version) throws IOException {
+    log.writeInt(index);
+    log.writeInt(value);
+    log.writeInt(version);
+    log.writeInt(epoch);
+    memoryTable.put(index, new int[] {value, version, epoch});
+    if (memoryTable.size() >= MEMORY_TABLE_LIMIT) {
+      flushMemoryTable();
+    }
+  }
+
+  /**
+   * @return the value, version and epoch of the newest record of the index, or null
+   */
+  private int[] find(int index) {
+    int[] record = memoryTable.get(index);
+    for (int t = tables.size() - 1; record == null && t >= 0; t--) {
+      record = tables.get(t).find(index, block);
+    }
+    return record;
+  }
+
+  private File logFile() {
+    return new File(directory, "log");
+  }
+
+  private static int tableNumber(File file) {
+    return Integer.parseInt(file.getName().substring(6, file.getName().indexOf('.')));
+  }
+
+  private File tableFile(int number) {
+    return new File(directory, String.format("table-%08d.sst", number));
+  }
+
+  /**
+   * Puts the records of the log left by the last run back in the memory table.
+   */
+  private void replayLog() throws IOException {
+    if (!logFile().exists()) {
+      return;
+    }
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile())));
+    try {
+      while (true) {
+        int index = in.readInt();
+        memoryTable.put(index, new int[] {in.readInt(), in.readInt(), in.readInt()});
+      }
+    } catch (EOFException end) {
+      in.close();
+    }
+  }
+
+  /**
+   * Writes the memory table out as a new table file, starts a new log, and merges the
+   * table files if there are too many.
+   */
+  private void flushMemoryTable() throws IOException {
+    File file = tableFile(nextTable++);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    for (Map.Entry<Integer, int[]> entry : memoryTable.entrySet()) {
+      out.writeInt(entry.getKey());
+      out.writeInt(entry.getValue()[0]);
+      out.writeInt(entry.getValue()[1]);
+      out.writeInt(entry.getValue()[2]);
+    }
+    out.close();
+    tables.add(new Table(file));
+    memoryTable.clear();
+    log.close();
+    log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile(), false), 1 << 16));
+    if (tables.size() > MAX_TABLES) {
+      mergeTables();
+    }
+  }
+
+  /**
+   * Merges every table file into one, keeping the newest record of each index.
+   */
+  private void mergeTables() throws IOException {
+    PriorityQueue<Cursor> cursors = new PriorityQueue<Cursor>(tables.size(), BY_INDEX_NEWEST_FIRST);
+    for (int t = 0; t < tables.size(); t++) {
+      Cursor cursor = new Cursor(tables.get(t).file, t);
+      if (cursor.advance()) {
+        cursors.add(cursor);
+      }
+    }
+    File file = tableFile(nextTable++);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    boolean first = true;
+    int lastIndex = 0;
+    while (!cursors.isEmpty()) {
+      Cursor cursor = cursors.poll();
+      if (first || cursor.record[0] != lastIndex) {
+        for (int field : cursor.record) {
+          out.writeInt(field);
+        }
+        lastIndex = cursor.record[0];
+        first = false;
+      }
+      if (cursor.advance()) {
+        cursors.add(cursor);
+      }
+    }
+    out.close();
+    for (Table table : tables) {
+      table.close();
+      table.file.delete();
+    }
+    tables.clear();
+    tables.add(new Table(file));
+  }
+
+  /**
+   * A sorted table file with the first index of each block and a bloom filter of its indexes.
+   */
+  private static class Table {
+    private File file;
+    private RandomAccessFile access;
+    private FileChannel channel;
+    private int records;
+    private int[] blockKeys;
+    private long[] bloom;
+
+    Table(File file) throws IOException {
+      this.file = file;
+      records = (int) (file.length() / RECORD_SIZE);
+      blockKeys = new int[(records + BLOCK_RECORDS - 1) / BLOCK_RECORDS];
+      bloom = new long[Math.max(1, (records * 10 + 63) / 64)];
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+      for (int r = 0; r < records; r++) {
+        int index = in.readInt();
+        in.skipBytes(RECORD_SIZE - 4);
+        if (r % BLOCK_RECORDS == 0) {
+          blockKeys[r / BLOCK_RECORDS] = index;
+        }
+        addToBloom(index);
+      }
+      in.close();
+      access = new RandomAccessFile(file, "r");
+      channel = access.getChannel();
+    }
+
+    private void addToBloom(int index) {
+      long bits = 64L * bloom.length;
+      for (int h = 0; h < 3; h++) {
+        long bit = (hash(index, h) & 0x7fffffffffffffffL) % bits;
+        bloom[(int) (bit >>> 6)] |= 1L << bit;
+      }
+    }
+
+    private boolean mightContain(int index) {
+      long bits = 64L * bloom.length;
+      for (int h = 0; h < 3; h++) {
+        long bit = (hash(index, h) & 0x7fffffffffffffffL) % bits;
+        if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private static long hash(int index, int seed) {
+      long h = (index + 0x9E3779B97F4A7C15L * (seed + 1)) * 0xBF58476D1CE4E5B9L;
+      h ^= h >>> 31;
+      h *= 0x94D049BB133111EBL;
+      return h ^ (h >>> 29);
+    }
+
+    /**
+     * @param index the index to look up
+     * @param block a buffer of one block to read into
+     * @return the value, version and epoch of the index, or null if the table does not have it
+     */
+    int[] find(int index, ByteBuffer block) {
+      if (records == 0 || index < blockKeys[0] || !mightContain(index)) {
+        return null;
+      }
+      int position = Arrays.binarySearch(blockKeys, index);
+      int blockNumber = position >= 0 ? position : -position - 2;
+      int count = Math.min(BLOCK_RECORDS, records - blockNumber * BLOCK_RECORDS);
+      block.clear();
+      block.limit(count * RECORD_SIZE);
+      try {
+        long offset = (long) blockNumber * BLOCK_RECORDS * RECORD_SIZE;
+        while (block.hasRemaining()) {
+          if (channel.read(block, offset + block.position()) < 0) {
+            throw new EOFException();
+          }
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException("Cannot read " + file, e);
+      }
+      int low = 0;
+      int high = count - 1;
+      while (low <= high) {
+        int middle = (low + high) >>> 1;
+        int key = block.getInt(middle * RECORD_SIZE);
+        if (key < index) {
+          low = middle + 1;
+        } else if (key > index) {
+          high = middle - 1;
+        } else {
+          int at = middle * RECORD_SIZE;
+          return new int[] {block.getInt(at + 4), block.getInt(at + 8), block.getInt(at + 12)};
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Opens a cursor at the block that holds the first index of a range.
+     * @param from the first index of the range
+     * @param to the last index of the range
+     * @param age the age of the table, higher for newer tables
+     * @return a cursor over the records of the table in the range
+     */
+    Cursor cursor(int from, int to, int age) throws IOException {
+      int blockNumber = 0;
+      if (records > 0 && from > blockKeys[0]) {
+        int position = Arrays.binarySearch(blockKeys, from);
+        blockNumber = position >= 0 ? position : -position - 2;
+      }
+      FileInputStream in = new FileInputStream(file);
+      in.getChannel().position((long) blockNumber * BLOCK_RECORDS * RECORD_SIZE);
+      return new Cursor(in, age, from, to);
+    }
+
+    void close() throws IOException {
+      access.close();
+    }
+  }
+
+  /**
+   * Reads the records of a table file or of the memory table in order while merging,
+   * skipping those outside a range.
+   */
+  private static class Cursor {
+    private DataInputStream in = null;
+    private Iterator<Map.Entry<Integer, int[]>> entries = null;
+    private int age;
+    private int from = Integer.MIN_VALUE;
+    private int to = Integer.MAX_VALUE;
+    private int[] record = new int[4];
+
+    Cursor(File file, int age) throws IOException {
+      this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+      this.age = age;
+    }
+
+    Cursor(FileInputStream in, int age, int from, int to) {
+      this.in = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+      this.age = age;
+      this.from = from;
+      this.to = to;
+    }
+
+    Cursor(SortedMap<Integer, int[]> records, int age) {
+      this.entries = records.entrySet().iterator();
+      this.age = age;
+    }
+
+    boolean advance() throws IOException {
+      do {
+        if (!next()) {
+          return false;
+        }
+      } while (record[0] < from);
+      if (record[0] > to) {
+        close();
+        return false;
+      }
+      return true;
+    }
+
+    private boolean next() throws IOException {
+      if (entries != null) {
+        if (!entries.hasNext()) {
+          return false;
+        }
+        Map.Entry<Integer, int[]> entry = entries.next();
+        record[0] = entry.getKey();
+        System.arraycopy(entry.getValue(), 0, record, 1, 3);
+        return true;
+      }
+      try {
+        for (int i = 0; i < record.length; i++) {
+          record[i] = in.readInt();
+        }
+        return true;
+      } catch (EOFException end) {
+        in.close();
+        return false;
+      }
+    }
+
+    /**
+     * Closes the file of the cursor, if it has one, without throwing.
+     */
+    void close() {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          // Only read from, so nothing is lost
+        }
+      }
+    }
+  }
+}
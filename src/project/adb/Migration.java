@@ -0,0 +1,264 @@
+package project.adb;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * This class moves indexes that have a single copy to another site while transactions
+ * keep running. It takes a step at the end of every line, in three phases:
+ * it copies the committed values and versions to the new site, a batch of indexes a
+ * line; it catches up, copying again the indexes whose version at the old site moved
+ * on since they were copied, until few are left; then it fences the indexes at the old
+ * site with write locks of its own. The fence is younger than every transaction, so
+ * wait-die makes the transactions that want one of the indexes wait instead of abort.
+ * Once every index is fenced, no transaction holds a lock on them, so the last writes
+ * are copied and the placement moves the indexes in the same step. The transactions
+ * waiting at the old site send their instruction again, and it goes to the new site.
+ * A fence that is not complete after a few lines is taken down, so a transaction
+ * holding one of the indexes that waits for another is not stuck, and is tried again later.
+ */
+public class Migration {
+  private static final int COPY_BATCH = 1024;
+  private static final int CAUGHT_UP = 16;
+  private static final int FENCE_LINES = 3;
+
+  private Cluster cluster;
+  private Outputter output;
+  private int[] indexes;
+  private int[] sources;
+  private int target;
+  private int[] copiedVersions;
+  private int[] copiedValues;
+  private String state = "copying";
+  private int copied = 0;
+  private int recopied = 0;
+  private int fenceLines = 0;
+  private int fenceDelay = 0;
+  private int fences = 0;
+  private Transaction fence = new Transaction(0, false, Long.MAX_VALUE);
+
+  /**
+   * @param cluster the cluster whose sites and placement change
+   * @param output where the migration writes its output
+   * @param indexes the odd indexes to move
+   * @param target the id of the site they move to
+   */
+  Migration(Cluster cluster, Outputter output, int[] indexes, int target) {
+    this.cluster = cluster;
+    this.output = output;
+    this.indexes = indexes;
+    this.target = target;
+    sources = new int[indexes.length];
+    for (int k = 0; k < indexes.length; k++) {
+      sources[k] = cluster.getPlacement().getSites(indexes[k]).get(0);
+    }
+    copiedVersions = new int[indexes.length];
+    copiedValues = new int[indexes.length];
+  }
+
+  /**
+   * @return copying, catching-up, fencing, done or cancelled
+   */
+  public String getState() {
+    return state;
+  }
+
+  /**
+   * @return true once the migration moved its indexes or was cancelled
+   */
+  public boolean isOver() {
+    return state.equals("done") || state.equals("cancelled");
+  }
+
+  /**
+   * @param siteID the id of a site
+   * @return true if the site holds indexes that move or is where they move
+   */
+  public boolean uses(int siteID) {
+    if (siteID == target) {
+      return true;
+    }
+    for (int source : sources) {
+      if (source == siteID) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the number of indexes the migration moves
+   */
+  public int getIndexCount() {
+    return indexes.length;
+  }
+
+  /**
+   * @return the number of indexes copied again because they were written while they moved
+   */
+  public int getRecopiedCount() {
+    return recopied;
+  }
+
+  /**
+   * Takes the next step of the migration. Nothing happens while one of its sites is down.
+   * @return true if the indexes moved in this step, so waiting transactions must try again
+   */
+  boolean step() {
+    if (isOver() || !sitesReady()) {
+      return false;
+    }
+    if (state.equals("copying")) {
+      int end = Math.min(indexes.length, copied + COPY_BATCH);
+      for (; copied < end; copied++) {
+        copy(copied);
+      }
+      if (copied == indexes.length) {
+        state = "catching-up";
+        describe("copied " + indexes.length + " index(es) to site " + target);
+      }
+    } else if (state.equals("catching-up")) {
+      int caughtUp = catchUp();
+      if (fenceDelay > 0) {
+        fenceDelay--;
+      } else if (caughtUp < CAUGHT_UP) {
+        state = "fencing";
+        fenceLines = 0;
+        fences++;
+        describe("caught up and fences its indexes");
+      }
+    }
+    if (state.equals("fencing")) {
+      return fenceAndSwitch();
+    }
+    return false;
+  }
+
+  /**
+   * Takes the fence down and stops. The indexes stay where they were.
+   */
+  void cancel() {
+    if (isOver()) {
+      return;
+    }
+    releaseFence();
+    state = "cancelled";
+    output.addOutput("The migration to site " + target + " is cancelled");
+  }
+
+  private boolean sitesReady() {
+    Site[] sites = cluster.getSites();
+    if (sites[target].getState().equals("failed")) {
+      return false;
+    }
+    for (int source : sources) {
+      if (sites[source].getState().equals("failed")) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void copy(int k) {
+    Site[] sites = cluster.getSites();
+    Site source = sites[sources[k]];
+    copiedValues[k] = source.getCommittedValueAtIndex(indexes[k]);
+    copiedVersions[k] = source.getVersionAtIndex(indexes[k]);
+    sites[target].writeValueAtIndex(indexes[k], copiedValues[k], copiedVersions[k]);
+  }
+
+  /**
+   * Copies again every index written at its old site since it was copied. The versions
+   * of an index count its commits there, so they tell what the copy missed.
+   * @return how many indexes were copied again
+   */
+  private int catchUp() {
+    Site[] sites = cluster.getSites();
+    int count = 0;
+    for (int k = 0; k < indexes.length; k++) {
+      Site source = sites[sources[k]];
+      if (source.getVersionAtIndex(indexes[k]) != copiedVersions[k] ||
+          source.getCommittedValueAtIndex(indexes[k]) != copiedValues[k]) {
+        copy(k);
+        count++;
+      }
+    }
+    recopied += count;
+    return count;
+  }
+
+  /**
+   * Fences every index that no transaction holds a lock on. When all are fenced, the
+   * indexes move; when the fence took too long, it comes down.
+   */
+  private boolean fenceAndSwitch() {
+    Site[] sites = cluster.getSites();
+    boolean fenced = true;
+    for (int k = 0; k < indexes.length; k++) {
+      Site source = sites[sources[k]];
+      Transaction holder = source.getWriteLockHolder(indexes[k]);
+      if (fence.equals(holder)) {
+        continue;
+      }
+      if (holder == null && source.getReadLockHolders(indexes[k]).isEmpty()) {
+        source.setWriteLockAtIndex(indexes[k], fence);
+      } else {
+        fenced = false;
+      }
+    }
+    if (!fenced) {
+      if (++fenceLines >= FENCE_LINES) {
+        releaseFence();
+        state = "catching-up";
+        fenceDelay = FENCE_LINES;
+        describe("takes its fence down because transactions still hold its indexes");
+      }
+      return false;
+    }
+    catchUp();
+    Set<Integer> moving = new HashSet<Integer>();
+    for (int k = 0; k < indexes.length; k++) {
+      cluster.getPlacement().moveIndex(indexes[k], target);
+      moving.add(indexes[k]);
+    }
+    for (int source : distinctSources()) {
+      for (Transaction waiting : sites[source].getWaitingTransactions()) {
+        if (moving.contains(waiting.getLastInstruction().getIndex())) {
+          sites[source].removeWaitingTransaction(waiting);
+          waiting.setState("waiting-for-locks");
+        }
+      }
+    }
+    releaseFence();
+    state = "done";
+    output.addOutput("Migration to site " + target + " moved " + indexes.length + " index(es) after copying " +
+        recopied + " again and fencing " + fences + " time(s)");
+    return true;
+  }
+
+  private void releaseFence() {
+    Site[] sites = cluster.getSites();
+    for (int source : distinctSources()) {
+      sites[source].releaseLocks(fence);
+      sites[source].promoteWaitingTransactions();
+    }
+  }
+
+  private List<Integer> distinctSources() {
+    List<Integer> distinct = new ArrayList<Integer>();
+    for (int source : sources) {
+      if (!distinct.contains(source)) {
+        distinct.add(source);
+      }
+    }
+    return distinct;
+  }
+
+  private void describe(String what) {
+    if (output.isVerbose()) {
+      output.addOutput("The migration to site " + target + " " + what);
+    }
+  }
+}
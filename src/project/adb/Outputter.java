@@ -8,26 +8,26 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
- * This singleton class, keeps track of all the outputs to be written to
+ * This class keeps track of all the outputs to be written to
  * the output file.
  * @author Darren Levy
  * @author Viswanath Kammula
  */
 public class Outputter {
-  private static final Outputter INSTANCE = new Outputter();
   private Boolean verbose = true;
+  private boolean valuesShown = true;
   private List<String> output = new ArrayList<String>();
   private FileWriter fw;
   private BufferedWriter bw;
   
   /**
-   * Private constructor is part of a singleton class.
    * Create the output file.
    * Author: Darren and Viswanath
+   * @param fileName the name of the output file
    */
-  private Outputter(){
+  public Outputter(String fileName){
     try {
-      File file = new File("dv-output.txt");
+      File file = new File(fileName);
       if (!file.exists()) {
         file.createNewFile();
       }
@@ -39,12 +39,12 @@ public class Outputter {
   }
   
   /**
-   * This is part of a singleton implementation.
-   * Author: Darren
-   * @return the instance of the transaction manager
+   * Creates an outputter that only keeps its output in memory. A site running in its
+   * own process uses one, and sends what it collected back to the transaction manager.
+   * @param verbose true if verbose output, false otherwise
    */
-  public static Outputter getInstance() {
-    return INSTANCE;
+  Outputter(boolean verbose) {
+    this.verbose = verbose;
   }
   
   /**
@@ -64,12 +64,42 @@ public class Outputter {
   }
   
   /**
-   * Writes output to file
+   * @return true if the values read are written as lines of their own
+   */
+  public boolean areValuesShown() {
+    return valuesShown;
+  }
+  
+  /**
+   * The server hides the values read, since it sends every value to the session
+   * that read it instead.
+   * @param valuesShown true if the values read are written as lines of their own
+   */
+  public void setValuesShown(boolean valuesShown) {
+    this.valuesShown = valuesShown;
+  }
+  
+  /**
+   * Writes a value read as a line of its own, unless the values are hidden.
+   * @param value the value read
+   */
+  public void addValue(Integer value) {
+    if (valuesShown) {
+      addOutput("" + value);
+    }
+  }
+  
+  /**
+   * Writes output to file. An outputter without a file keeps the output in memory
+   * instead, so a long dump to a file does not pile up in memory.
    * Author: Darren and Viswanath
    * @param newOutput the string to write to file
    */
   public void addOutput(String newOutput) {
-    output.add(newOutput);    
+    if (bw == null) {
+      output.add(newOutput);
+      return;
+    }
     try {
       bw.write(newOutput + "\n");   
     } catch (IOException e) {
@@ -77,11 +107,24 @@ public class Outputter {
     }
   }
   
+  /**
+   * Removes the output collected so far.
+   * @return the lines added since the last call
+   */
+  public List<String> takeOutput() {
+    List<String> taken = output;
+    output = new ArrayList<String>();
+    return taken;
+  }
+  
   /**
    * Close the buffer when at the end
    * Author: Darren and Viswanath
    */
   public void closeBufferWriter() {
+    if (bw == null) {
+      return;
+    }
     try {
       bw.close();
     } catch (IOException e) {
@@ -91,7 +134,7 @@ public class Outputter {
   
   /**
    * Author: Darren and Viswanath
-   * @return all the output as a String
+   * @return all the output kept in memory as a String
    */
   public String toString() {
     String outputString = "";
@@ -0,0 +1,212 @@
+package project.adb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class decides which sites hold a copy of each index.
+ * By default the odd indexes are at one site each (1 + index mod the number of sites)
+ * and the even indexes are at every site. When a replication factor is set, each even
+ * index is placed on that many sites instead. The sites are chosen by consistent hashing
+ * over a ring of virtual nodes, so adding a site only moves the copies next to it on the ring.
+ * The replica sets are kept per site and per ring position rather than per index, so
+ * the placement takes the same memory however many indexes there are.
+ * An odd index can be moved to another site while the database runs. Only the moved
+ * indexes are kept, in a map that is replaced rather than changed, so sites on other
+ * threads always see a whole placement.
+ */
+public class Placement {
+  private static final int VIRTUAL_NODES = 64;
+  private int siteCount;
+  private int indexCount;
+  private Integer replicationFactor = null;
+  private List<Integer> allSites = new ArrayList<Integer>();
+  private List<List<Integer>> singleSites = new ArrayList<List<Integer>>();
+  private int[] ringPositions = new int[0];
+  private List<List<Integer>> ringReplicas = new ArrayList<List<Integer>>();
+  private volatile Map<Integer, Integer> moved = Collections.emptyMap();
+
+  /**
+   * Creates the default placement of the twenty indexes over the given number of sites.
+   * @param siteCount the number of sites, numbered 1 to siteCount
+   */
+  public Placement(int siteCount) {
+    this(siteCount, 20);
+  }
+
+  /**
+   * Creates the default placement over the given number of sites.
+   * @param siteCount the number of sites, numbered 1 to siteCount
+   * @param indexCount the number of indexes, numbered 1 to indexCount
+   */
+  public Placement(int siteCount, int indexCount) {
+    if (siteCount < 1) {
+      throw new IllegalArgumentException("There must be at least one site");
+    }
+    if (indexCount < 1) {
+      throw new IllegalArgumentException("There must be at least one index");
+    }
+    this.siteCount = siteCount;
+    this.indexCount = indexCount;
+    for (int site = 1; site <= siteCount; site++) {
+      allSites.add(site);
+      singleSites.add(Collections.singletonList(site));
+    }
+    allSites = Collections.unmodifiableList(allSites);
+  }
+
+  /**
+   * Places each even index on the given number of sites.
+   * @param replicationFactor the number of copies of each replicated index
+   */
+  public void setReplicationFactor(int replicationFactor) {
+    if (replicationFactor < 1 || replicationFactor > siteCount) {
+      throw new IllegalArgumentException("The replication factor must be between 1 and " + siteCount);
+    }
+    this.replicationFactor = replicationFactor;
+    place();
+  }
+
+  /**
+   * @return the number of indexes
+   */
+  public int getIndexCount() {
+    return indexCount;
+  }
+
+  /**
+   * @return the number of sites
+   */
+  public int getSiteCount() {
+    return siteCount;
+  }
+
+  /**
+   * @return the number of copies of each replicated index, or null if they are at every site
+   */
+  public Integer getReplicationFactor() {
+    return replicationFactor;
+  }
+
+  /**
+   * @param index the index to look up
+   * @return the ids of the sites holding a copy of the index, in ascending order
+   */
+  public List<Integer> getSites(int index) {
+    if (index % 2 == 1) {
+      if (!moved.isEmpty()) {
+        Integer siteID = moved.get(index);
+        if (siteID != null) {
+          return singleSites.get(siteID - 1);
+        }
+      }
+      return singleSites.get(index % siteCount);
+    }
+    if (replicationFactor == null) {
+      return allSites;
+    }
+    int position = Arrays.binarySearch(ringPositions, hash(-index));
+    if (position < 0) {
+      position = -position - 1;
+    }
+    return ringReplicas.get(position == ringPositions.length ? 0 : position);
+  }
+
+  /**
+   * Moves an index that has a single copy to another site. The values are not moved;
+   * a migration copies them first.
+   * @param index an odd index
+   * @param siteID the id of the site that holds the index from now on
+   */
+  public void moveIndex(int index, int siteID) {
+    if (index % 2 == 0 || index < 1 || index > indexCount) {
+      throw new IllegalArgumentException("Only the odd indexes from 1 to " + indexCount + " can move, not " + index);
+    }
+    if (siteID < 1 || siteID > siteCount) {
+      throw new IllegalArgumentException("There is no site " + siteID);
+    }
+    Map<Integer, Integer> next = new HashMap<Integer, Integer>(moved);
+    if (siteID == index % siteCount + 1) {
+      next.remove(index);
+    } else {
+      next.put(index, siteID);
+    }
+    moved = next;
+  }
+
+  /**
+   * @return the number of indexes that were moved away from their first site
+   */
+  public int getMovedCount() {
+    return moved.size();
+  }
+
+  /**
+   * @param index the index to look up
+   * @return true if more than one site holds a copy of the index
+   */
+  public boolean isReplicated(int index) {
+    return getSites(index).size() > 1;
+  }
+
+  /**
+   * @param siteID the id of the site
+   * @param index the index to look up
+   * @return true if the site holds a copy of the index
+   */
+  public boolean holds(int siteID, int index) {
+    return getSites(index).contains(siteID);
+  }
+
+  /**
+   * Computes the replica set that starts at each position of the ring: the first
+   * sites met walking clockwise from there. An even index is placed on the set of
+   * the first position at or after its hash.
+   */
+  private void place() {
+    TreeMap<Integer, Integer> ring = new TreeMap<Integer, Integer>();
+    for (int site = 1; site <= siteCount; site++) {
+      for (int node = 0; node < VIRTUAL_NODES; node++) {
+        ring.put(hash(site * VIRTUAL_NODES + node), site);
+      }
+    }
+    ringPositions = new int[ring.size()];
+    ringReplicas.clear();
+    for (Integer position : ring.keySet()) {
+      List<Integer> sites = new ArrayList<Integer>();
+      for (Map.Entry<Integer, Integer> entry : ring.tailMap(position).entrySet()) {
+        if (sites.size() < replicationFactor && !sites.contains(entry.getValue())) {
+          sites.add(entry.getValue());
+        }
+      }
+      for (Map.Entry<Integer, Integer> entry : ring.entrySet()) {
+        if (sites.size() < replicationFactor && !sites.contains(entry.getValue())) {
+          sites.add(entry.getValue());
+        }
+      }
+      Collections.sort(sites);
+      ringPositions[ringReplicas.size()] = position;
+      ringReplicas.add(Collections.unmodifiableList(sites));
+    }
+  }
+
+  /**
+   * Spreads keys evenly over the ring.
+   * @param key the key to hash
+   * @return the position of the key on the ring
+   */
+  private static int hash(int key) {
+    int h = key * 0x9E3779B9;
+    h ^= h >>> 16;
+    h *= 0x85EBCA6B;
+    h ^= h >>> 13;
+    h *= 0xC2B2AE35;
+    h ^= h >>> 16;
+    return h;
+  }
+}
@@ -0,0 +1,502 @@
+package project.adb;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class stands in for a site that runs in its own process, see SiteServer.
+ * Each method sends a message over the site's connection instead of touching local
+ * lock tables and values. The transactions in the remote lock tables are known by
+ * their ids, so this class maps the ids it gets back to the transaction manager's
+ * transactions. The state of the site only changes through fail and recover, so it
+ * is kept here as well and does not need a message.
+ */
+public class RemoteSite extends Site {
+  static final byte STATE = 1;
+  static final byte READY_TO_BE_READ = 2;
+  static final byte WRITE_LOCK_HOLDER = 3;
+  static final byte READ_LOCK_HOLDERS = 4;
+  static final byte LOCK_HOLDERS = 5;
+  static final byte SET_WRITE_LOCK = 6;
+  static final byte REMOVE_READ_LOCKS = 7;
+  static final byte ADD_READ_LOCK = 8;
+  static final byte READ = 9;
+  static final byte GET_VALUE = 10;
+  static final byte COMMITTED_VALUE = 11;
+  static final byte COMMITTED_VALUES = 12;
+  static final byte VERSION = 13;
+  static final byte WRITE = 14;
+  static final byte RELEASE_LOCKS = 15;
+  static final byte ADD_WAITING = 16;
+  static final byte REMOVE_WAITING = 17;
+  static final byte WAITING = 18;
+  static final byte PROMOTE = 19;
+  static final byte FAIL = 20;
+  static final byte RECOVER = 21;
+  static final byte LOCK_COUNT = 22;
+  static final byte READ_COUNT = 23;
+  static final byte DESCRIBE = 24;
+  static final byte PREPARE = 25;
+  static final byte DECIDE = 26;
+  static final byte IN_DOUBT = 27;
+  static final byte LOG = 28;
+  static final byte LOAD = 29;
+  static final byte OPEN_SCAN = 30;
+  static final byte SCAN_THROUGH = 31;
+  static final byte CLOSE_SCAN = 32;
+  static final byte LOCK_BATCH = 33;
+  static final byte AGGREGATE = 34;
+  private static final int LOAD_BATCH = 8192;
+
+  private Process process;
+  private SiteConnection connection;
+  private Outputter output;
+  private Placement placement;
+  private String state = "ready";
+  private Map<Integer, Transaction> transactions = new HashMap<Integer, Transaction>();
+
+  /**
+   * Starts the processes of the given sites and connects to them. The processes
+   * are started together so their JVMs boot in parallel.
+   * @param siteIDs the ids of the sites to start
+   * @param placement the placement of the indexes on the sites
+   * @param output where the sites' output is written
+   * @param storage where the sites keep their values, memory or lsm
+   * @param storageDirectory the folder for the files of the sites' storage, or null
+   * @return the connected sites, in the order of the ids
+   */
+  public static List<RemoteSite> start(List<Integer> siteIDs, Placement placement, Outputter output,
+      String storage, String storageDirectory) {
+    String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    Integer replicationFactor = placement.getReplicationFactor();
+    List<Process> processes = new ArrayList<Process>();
+    List<RemoteSite> remoteSites = new ArrayList<RemoteSite>();
+    try {
+      for (int siteID : siteIDs) {
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+            SiteServer.class.getName(), String.valueOf(siteID), String.valueOf(placement.getSiteCount()),
+            String.valueOf(replicationFactor == null ? 0 : replicationFactor), String.valueOf(output.isVerbose()),
+            String.valueOf(placement.getIndexCount()), storage, storageDirectory == null ? "" : storageDirectory,
+            String.valueOf(output.areValuesShown()));
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        final Process process = builder.start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+          public void run() {
+            process.destroy();
+          }
+        });
+        processes.add(process);
+      }
+      for (int i = 0; i < siteIDs.size(); i++) {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(processes.get(i).getInputStream()));
+        String line = reader.readLine();
+        if (line == null || !line.startsWith("port ")) {
+          throw new IllegalStateException("Site " + siteIDs.get(i) + " did not start");
+        }
+        SiteConnection connection = new SiteConnection(Integer.parseInt(line.substring(5)));
+        remoteSites.add(new RemoteSite(siteIDs.get(i), placement, output, processes.get(i), connection));
+      }
+    } catch (IOException e) {
+      for (Process process : processes) {
+        process.destroy();
+      }
+      throw new IllegalStateException("Could not start the site processes", e);
+    }
+    return remoteSites;
+  }
+
+  private RemoteSite(int id, Placement placement, Outputter output, Process process, SiteConnection connection) {
+    super(id, placement, output, null);
+    this.output = output;
+    this.placement = placement;
+    this.process = process;
+    this.connection = connection;
+  }
+
+  /**
+   * Closes the connection and waits for the site's process to exit.
+   */
+  public void shutdown() {
+    connection.close();
+    try {
+      process.waitFor();
+    } catch (InterruptedException e) {
+      process.destroy();
+    }
+  }
+
+  /**
+   * @return the connection to the site, used to report its traffic
+   */
+  public SiteConnection getConnection() {
+    return connection;
+  }
+
+  public String getState() {
+    return state;
+  }
+
+  public int getValueAtIndex(int index) {
+    return readInt(connection.call(GET_VALUE, new SiteConnection.Payload().putInt(index).toByteArray()));
+  }
+
+  public int getReadCount() {
+    return readInt(connection.call(READ_COUNT, new byte[0]));
+  }
+
+  public int getLockCount() {
+    return readInt(connection.call(LOCK_COUNT, new byte[0]));
+  }
+
+  public Transaction getWriteLockHolder(int index) {
+    int tID = readInt(connection.call(WRITE_LOCK_HOLDER, new SiteConnection.Payload().putInt(index).toByteArray()));
+    return tID < 0 ? null : transactions.get(tID);
+  }
+
+  public void setWriteLockAtIndex(int index, Transaction transaction) {
+    connection.send(SET_WRITE_LOCK, transactionPayload(index, transaction, false));
+  }
+
+  public List<Transaction> getReadLockHolders(int index) {
+    return readTransactions(connection.call(READ_LOCK_HOLDERS, new SiteConnection.Payload().putInt(index).toByteArray()));
+  }
+
+  public Set<Transaction> getLockHolders() {
+    return new LinkedHashSet<Transaction>(readTransactions(connection.call(LOCK_HOLDERS, new byte[0])));
+  }
+
+  public void releaseLocks(Transaction transaction) {
+    connection.send(RELEASE_LOCKS, transactionPayload(0, transaction, false));
+  }
+
+  /**
+   * The whole batch costs one round trip.
+   */
+  public List<Transaction> lockBatch(int[] reads, int[] writes, Transaction transaction, int[] readValues) {
+    SiteConnection.Payload payload = new SiteConnection.Payload().putBytes(transactionPayload(0, transaction, false))
+        .putInt(reads.length);
+    for (int index : reads) {
+      payload.putInt(index);
+    }
+    payload.putInt(writes.length);
+    for (int index : writes) {
+      payload.putInt(index);
+    }
+    DataInputStream answer = connection.call(LOCK_BATCH, payload.toByteArray());
+    List<Transaction> conflicts = readTransactions(answer);
+    try {
+      if (conflicts.isEmpty()) {
+        for (int k = 0; k < reads.length; k++) {
+          readValues[k] = answer.readInt();
+        }
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return conflicts;
+  }
+
+  public void addReadLockAtIndex(int index, Transaction transaction) {
+    connection.send(ADD_READ_LOCK, transactionPayload(index, transaction, false));
+  }
+
+  public void removeReadLocksAtIndex(int index) {
+    connection.send(REMOVE_READ_LOCKS, new SiteConnection.Payload().putInt(index).toByteArray());
+  }
+
+  public void addWaitingTransaction(Transaction t) {
+    connection.send(ADD_WAITING, transactionPayload(0, t, true));
+  }
+
+  public List<Transaction> getWaitingTransactions() {
+    return readTransactions(connection.call(WAITING, new byte[0]));
+  }
+
+  public void promoteWaitingTransactions() {
+    if (state.equals("failed")) {
+      return;
+    }
+    applyEvents(connection.call(PROMOTE, new byte[0]));
+  }
+
+  public void removeWaitingTransaction(Transaction t) {
+    connection.send(REMOVE_WAITING, transactionPayload(0, t, false));
+  }
+
+  public Integer readValueAtIndex(int index, Transaction transaction) {
+    DataInputStream answer = connection.call(READ, transactionPayload(index, transaction, true));
+    try {
+      return answer.readBoolean() ? answer.readInt() : null;
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public void writeValueAtIndex(int index, int value) {
+    writeValueAtIndex(index, value, -1);
+  }
+
+  /**
+   * A version of -1 asks the site to use the next version of the index.
+   */
+  public void writeValueAtIndex(int index, int value, int version) {
+    connection.send(WRITE, new SiteConnection.Payload().putInt(index).putInt(value).putInt(version).toByteArray());
+  }
+
+  public int getVersionAtIndex(int index) {
+    return readInt(connection.call(VERSION, new SiteConnection.Payload().putInt(index).toByteArray()));
+  }
+
+  public Integer[] getCommittedValues() {
+    DataInputStream answer = connection.call(COMMITTED_VALUES, new byte[0]);
+    try {
+      Integer[] values = new Integer[answer.readInt()];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = answer.readInt();
+      }
+      return values;
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * The values the site holds are sent in batches that are pipelined, so the
+   * load costs one round trip.
+   */
+  public int load(int[] pairs) {
+    int[] batch = new int[2 * LOAD_BATCH];
+    int size = 0;
+    int kept = 0;
+    for (int k = 0; k < pairs.length; k += 2) {
+      if (placement.holds(getID(), pairs[k])) {
+        batch[size++] = pairs[k];
+        batch[size++] = pairs[k + 1];
+        kept++;
+      }
+      if (size == batch.length) {
+        connection.send(LOAD, loadPayload(batch, size));
+        size = 0;
+      }
+    }
+    connection.call(LOAD, loadPayload(batch, size));
+    return kept;
+  }
+
+  private static byte[] loadPayload(int[] batch, int size) {
+    SiteConnection.Payload payload = new SiteConnection.Payload().putInt(size);
+    for (int i = 0; i < size; i++) {
+      payload.putInt(batch[i]);
+    }
+    return payload.toByteArray();
+  }
+
+  public int openScan(int from, int to) {
+    return readInt(connection.call(OPEN_SCAN, new SiteConnection.Payload().putInt(from).putInt(to).toByteArray()));
+  }
+
+  public int[] scanThrough(int scanID, int through) {
+    DataInputStream answer = connection.call(SCAN_THROUGH,
+        new SiteConnection.Payload().putInt(scanID).putInt(through).toByteArray());
+    try {
+      int[] page = new int[answer.readInt()];
+      for (int i = 0; i < page.length; i++) {
+        page[i] = answer.readInt();
+      }
+      return page;
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public void closeScan(int scanID) {
+    connection.send(CLOSE_SCAN, new SiteConnection.Payload().putInt(scanID).toByteArray());
+  }
+
+  public Aggregate aggregate(int scanID, boolean[] up) {
+    SiteConnection.Payload payload = new SiteConnection.Payload().putInt(scanID).putInt(up.length);
+    for (boolean siteUp : up) {
+      payload.putBoolean(siteUp);
+    }
+    DataInputStream answer = connection.call(AGGREGATE, payload.toByteArray());
+    try {
+      Aggregate aggregate = new Aggregate(answer.readLong(), answer.readLong(), answer.readInt(), answer.readInt());
+      int unread = answer.readInt();
+      for (int i = 0; i < unread; i++) {
+        aggregate.addUnread(answer.readInt());
+      }
+      return aggregate;
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public Integer getCommittedValueAtIndex(int index) {
+    return readInt(connection.call(COMMITTED_VALUE, new SiteConnection.Payload().putInt(index).toByteArray()));
+  }
+
+  public void fail() {
+    connection.send(FAIL, new byte[0]);
+    state = "failed";
+  }
+
+  public Boolean isReadyToBeRead(int index) {
+    DataInputStream answer = connection.call(READY_TO_BE_READ, new SiteConnection.Payload().putInt(index).toByteArray());
+    try {
+      return answer.readBoolean();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public void recover() {
+    state = "ready";
+    applyEvents(connection.call(RECOVER, new byte[0]));
+  }
+
+  public List<Boolean> prepare(Map<Integer, List<int[]>> writesByTransaction) {
+    SiteConnection.Payload payload = new SiteConnection.Payload().putInt(writesByTransaction.size());
+    for (Map.Entry<Integer, List<int[]>> entry : writesByTransaction.entrySet()) {
+      payload.putInt(entry.getKey()).putInt(entry.getValue().size());
+      for (int[] write : entry.getValue()) {
+        payload.putInt(write[0]).putInt(write[1]).putInt(write[2]);
+      }
+    }
+    DataInputStream answer = connection.call(PREPARE, payload.toByteArray());
+    try {
+      List<Boolean> votes = new ArrayList<Boolean>();
+      for (int i = 0; i < writesByTransaction.size(); i++) {
+        votes.add(answer.readBoolean());
+      }
+      return votes;
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public void decide(Map<Integer, Boolean> decisions) {
+    SiteConnection.Payload payload = new SiteConnection.Payload().putInt(decisions.size());
+    for (Map.Entry<Integer, Boolean> entry : decisions.entrySet()) {
+      payload.putInt(entry.getKey()).putBoolean(entry.getValue());
+    }
+    connection.send(DECIDE, payload.toByteArray());
+  }
+
+  public Map<Integer, List<int[]>> getInDoubtTransactions() {
+    DataInputStream answer = connection.call(IN_DOUBT, new byte[0]);
+    try {
+      Map<Integer, List<int[]>> inDoubt = new LinkedHashMap<Integer, List<int[]>>();
+      int count = answer.readInt();
+      for (int i = 0; i < count; i++) {
+        int tID = answer.readInt();
+        List<int[]> writes = new ArrayList<int[]>();
+        int writeCount = answer.readInt();
+        for (int w = 0; w < writeCount; w++) {
+          writes.add(new int[] {answer.readInt(), answer.readInt(), answer.readInt()});
+        }
+        inDoubt.put(tID, writes);
+      }
+      return inDoubt;
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public List<String> getLog() {
+    DataInputStream answer = connection.call(LOG, new byte[0]);
+    try {
+      List<String> log = new ArrayList<String>();
+      int count = answer.readInt();
+      for (int i = 0; i < count; i++) {
+        log.add(answer.readUTF());
+      }
+      return log;
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public String toString() {
+    try {
+      return connection.call(DESCRIBE, new byte[0]).readUTF();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Encodes an index and a transaction. Only the messages that may need the
+   * transaction's instructions send them.
+   */
+  private byte[] transactionPayload(int index, Transaction transaction, boolean withInstructions) {
+    transactions.put(transaction.getID(), transaction);
+    SiteConnection.Payload payload = new SiteConnection.Payload().putInt(index)
+        .putInt(transaction.getID()).putLong(transaction.getStartTime()).putBoolean(transaction.getReadOnly());
+    if (!withInstructions) {
+      return payload.putInt(-1).toByteArray();
+    }
+    payload.putInt(transaction.getInstructions().size());
+    for (Instruction instruction : transaction.getInstructions()) {
+      boolean write = instruction.getAction().equals("write");
+      payload.putBoolean(write).putInt(instruction.getIndex())
+          .putInt(write ? instruction.getValue() : 0).putLong(instruction.getTimestamp());
+    }
+    return payload.toByteArray();
+  }
+
+  private int readInt(DataInputStream answer) {
+    try {
+      return answer.readInt();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private List<Transaction> readTransactions(DataInputStream answer) {
+    try {
+      List<Transaction> list = new ArrayList<Transaction>();
+      int count = answer.readInt();
+      for (int i = 0; i < count; i++) {
+        list.add(transactions.get(answer.readInt()));
+      }
+      return list;
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Applies what happened at the site while it promoted its waiting transactions:
+   * their new states, the values of the reads among them and the lines the site wrote.
+   */
+  private void applyEvents(DataInputStream answer) {
+    try {
+      int changes = answer.readInt();
+      for (int i = 0; i < changes; i++) {
+        Transaction transaction = transactions.get(answer.readInt());
+        transaction.setState(answer.readUTF());
+        boolean read = answer.readBoolean();
+        int value = answer.readInt();
+        if (read) {
+          transaction.getLastInstruction().complete(value);
+        }
+      }
+      int lines = answer.readInt();
+      for (int i = 0; i < lines; i++) {
+        output.addOutput(answer.readUTF());
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,227 @@
+package project.adb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class runs the lines of a script. A line holds one or more commands separated
+ * by ';', and every line is a tick of the clock. DatabaseApp runs the lines of a script
+ * file, and DatabaseServer the lines its clients send.
+ */
+public class ScriptRunner {
+  private Cluster cluster;
+  private Outputter output;
+  private File folder;
+
+  /**
+   * @param cluster the cluster the commands run on
+   * @param output where the commands write their output
+   * @param folder the folder relative files are loaded from
+   */
+  public ScriptRunner(Cluster cluster, Outputter output, File folder) {
+    this.cluster = cluster;
+    this.output = output;
+    this.folder = folder;
+  }
+
+  /**
+   * Runs the commands of a line. After every command the waiting transactions try
+   * again, and at the end of the line the commit groups commit and the clock ticks.
+   * Empty lines and comments are skipped and do not tick the clock.
+   * @param line the line to run
+   * @return the reads and writes the line sent, each with the id of its transaction
+   * @throws IOException if a file to load can't be read
+   */
+  public Map<Instruction, Integer> runLine(String line) throws IOException {
+    Map<Instruction, Integer> sent = new LinkedHashMap<Instruction, Integer>();
+    if (line.length() == 0 || line.startsWith("//")) {
+      return sent;
+    }
+    TimestampOracle oracle = cluster.getOracle();
+    if(output.isVerbose()) {
+      output.addOutput("Time: " + oracle.now() + "\n" + "--------");
+    }
+    for (String input : line.split(";")) {
+      runCommand(input.replaceAll("\\s",""), sent);
+      cluster.checkWaitingTransactions();
+    }
+    if (cluster.flushCommits()) {
+      cluster.checkWaitingTransactions();
+    }
+    oracle.advance();
+    return sent;
+  }
+
+  private void runCommand(String input, Map<Instruction, Integer> sent) throws IOException {
+    int index=input.indexOf('(');
+    String op=input.substring(0, index);
+    if(op.equals("begin") || op.equals("beginRO")) {
+      String[] arguments = input.substring(index + 1, input.length() - 1).split(",");
+      int tID = Integer.parseInt(arguments[0].substring(arguments[0].indexOf('T') + 1));
+      String priority = arguments.length > 1 ? arguments[1] : "normal";
+      String as = priority.equals("normal") ? "" : " as " + priority;
+      if (op.equals("beginRO")) {
+        if(output.isVerbose()){
+          output.addOutput("Begin read-only transaction " + String.valueOf(tID) + as);
+        }
+      } else {
+        if(output.isVerbose()) {
+          output.addOutput("Begin transaction " + String.valueOf(tID) + as);
+        }
+      }
+      cluster.intake(tID, op.equals("beginRO"), priority);
+    } else if(op.equals("R")) {
+      int tID = Integer.parseInt(input.substring(input.indexOf('T')+1,input.indexOf(',')));
+      int i = Integer.parseInt(input.substring(input.indexOf('x')+1, input.length()-1));
+      Instruction instruction = new Instruction("read", i, cluster.timestampFor(tID));
+      if(output.isVerbose()) {
+        output.addOutput("Transaction " + tID + " dispatched instruction:\n" + instruction);
+      }
+      sent.put(instruction, tID);
+      cluster.intake(instruction, tID);
+    } else if (op.equals("W")) {
+      int tID = Integer.parseInt(input.substring(input.indexOf('T')+1,input.indexOf(',')));
+      int i = Integer.parseInt(input.substring(input.indexOf('x')+1,input.lastIndexOf(',')));
+      int value = Integer.parseInt(input.substring(input.lastIndexOf(',')+1,input.lastIndexOf(')')));
+      Instruction instruction = new Instruction("write", i, value, cluster.timestampFor(tID));
+      if(output.isVerbose()) {
+        output.addOutput("Transaction " + tID + " dispatched instruction:\n" + instruction);
+      }
+      sent.put(instruction, tID);
+      cluster.intake(instruction, tID);
+    } else if(op.equals("MR") || op.equals("RR") || op.equals("MW")) {
+      String[] arguments = input.substring(input.indexOf('(')+1, input.lastIndexOf(')')).split(",");
+      int tID = Integer.parseInt(arguments[0].substring(1));
+      Instruction instruction;
+      if (op.equals("RR")) {
+        int from = Integer.parseInt(arguments[1].substring(1));
+        int to = Integer.parseInt(arguments[2].substring(1));
+        if (to < from) {
+          throw new IllegalArgumentException("The range of " + input + " is empty");
+        }
+        int[] indexes = new int[to - from + 1];
+        for (int k = 0; k < indexes.length; k++) {
+          indexes[k] = from + k;
+        }
+        instruction = new Instruction("range-read", indexes, null, cluster.timestampFor(tID));
+      } else if (op.equals("MR")) {
+        int[] indexes = new int[arguments.length - 1];
+        for (int k = 0; k < indexes.length; k++) {
+          indexes[k] = Integer.parseInt(arguments[k + 1].substring(1));
+        }
+        instruction = new Instruction("multi-read", indexes, null, cluster.timestampFor(tID));
+      } else {
+        if (arguments.length % 2 == 0) {
+          throw new IllegalArgumentException("Every variable of " + input + " needs a value");
+        }
+        int[] indexes = new int[(arguments.length - 1) / 2];
+        int[] values = new int[indexes.length];
+        for (int k = 0; k < indexes.length; k++) {
+          indexes[k] = Integer.parseInt(arguments[2 * k + 1].substring(1));
+          values[k] = Integer.parseInt(arguments[2 * k + 2]);
+        }
+        instruction = new Instruction("multi-write", indexes, values, cluster.timestampFor(tID));
+      }
+      if(output.isVerbose()) {
+        output.addOutput("Transaction " + tID + " dispatched instruction:\n" + instruction);
+      }
+      sent.put(instruction, tID);
+      cluster.intake(instruction, tID);
+    } else if(input.equals("fail(coordinator)")) {
+      if(output.isVerbose()) {
+        output.addOutput("Coordinator failure");
+      }
+      cluster.coordinatorFail();
+    } else if(input.equals("recover(coordinator)")) {
+      if(output.isVerbose()) {
+        output.addOutput("Coordinator recovered");
+      }
+      cluster.coordinatorRecover();
+    } else if(op.equals("failDuringCommit")) {
+      int siteID = Integer.parseInt(input.substring(input.indexOf('(')+1, input.length()-1));
+      if(output.isVerbose()) {
+        output.addOutput("Site " + siteID + " will fail during the next commit");
+      }
+      cluster.failDuringCommit(siteID);
+    } else if(op.equals("fail")) {
+      int siteID = Integer.parseInt(input.substring(input.indexOf('(')+1, input.length()-1));
+      if(output.isVerbose()) {
+        output.addOutput("Site failure: " + siteID);
+      }
+      cluster.siteFail(siteID);
+    } else if(op.equals("recover")) {
+      int siteID = Integer.parseInt(input.substring(input.indexOf('(')+1, input.length()-1));
+      if(output.isVerbose()) {
+        output.addOutput("Site recovered: " + siteID);
+      }
+      cluster.siteRecover(siteID);
+    } else if(op.equals("end")) {
+      int tID = Integer.parseInt(input.substring(input.indexOf('T')+1,input.indexOf(')')));
+      if(output.isVerbose()) {
+        output.addOutput("End transaction : " + tID);
+      }
+      cluster.endTransaction(tID);
+    } else if(op.equals("load")) {
+      File file = new File(input.substring(input.indexOf('(')+1, input.lastIndexOf(')')));
+      if (!file.isAbsolute()) {
+        file = new File(folder, file.getPath());
+      }
+      cluster.load(file.getPath());
+    } else if(op.equals("migrate")) {
+      String[] arguments = input.substring(input.indexOf('(')+1, input.lastIndexOf(')')).split(",");
+      int from = Integer.parseInt(arguments[0].substring(1));
+      int to = arguments.length > 2 ? Integer.parseInt(arguments[1].substring(1)) : from;
+      cluster.migrate(from, to, Integer.parseInt(arguments[arguments.length - 1]));
+    } else if(input.equals("balance()")) {
+      cluster.balance();
+    } else if(op.equals("sum") || op.equals("count") || op.equals("min") || op.equals("max")) {
+      String range = input.substring(input.indexOf('(')+1, input.lastIndexOf(')'));
+      if (range.isEmpty()) {
+        cluster.aggregate(op, 1, cluster.getPlacement().getIndexCount());
+      } else {
+        String[] bounds = range.split(",");
+        cluster.aggregate(op, Integer.parseInt(bounds[0].substring(1)), Integer.parseInt(bounds[1].substring(1)));
+      }
+    } else if(op.equals("scan")) {
+      String[] range = input.substring(input.indexOf('(')+1, input.lastIndexOf(')')).split(",");
+      cluster.scan(Integer.parseInt(range[0].substring(1)), Integer.parseInt(range[1].substring(1)),
+          Integer.parseInt(range[2]));
+    } else if(op.equals("dump")){
+      char dump = input.charAt(5);
+      if (input.equals("dump(reads)")) {
+        output.addOutput("Dump the reads served by each site");
+        cluster.dumpReadCounts();
+      } else if (input.equals("dump(stats)")) {
+        output.addOutput("Dump the committed and aborted transactions");
+        cluster.dumpStats();
+      } else if (input.equals("dump(log)")) {
+        output.addOutput("Dump the commit logs");
+        cluster.dumpLogs();
+      } else if (input.equals("dump(changes)")) {
+        output.addOutput("Dump the committed writes since the last dump(changes)");
+        cluster.dumpChanges();
+      } else if (input.equals("dump(commits)")) {
+        output.addOutput("Dump the cost of committing");
+        cluster.dumpCommitCost();
+      } else if (dump == ')') {
+        output.addOutput("Dump all");
+        cluster.dump();
+      } else if (dump == 'x'){
+        int variable = Integer.parseInt(input.substring(input.indexOf('x')+1,input.indexOf(')')));
+        output.addOutput("Dump all copies of variable at index " + variable);
+        cluster.dumpIndex(variable);
+      } else if (dump == 's'){
+        output.addOutput("Dump all the committed values");
+        cluster.shorterDump();
+      }  else {
+        int siteIndex = Integer.parseInt(input.substring(input.indexOf('(')+1,input.indexOf(')')));
+        output.addOutput("Dump all variables at site " + siteIndex);
+        cluster.dumpSite(siteIndex);
+      }
+    } else {
+      throw new IllegalArgumentException("Unknown command: " + input);
+    }
+  }
+}
@@ -0,0 +1,394 @@
+package project.adb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This class runs transactions deterministically, in the style of Calvin. The instructions
+ * of a transaction are collected until it ends, and then it joins the current epoch. An
+ * epoch closes after a given number of script lines. Its transactions are ordered by
+ * when they ended and take their locks in that order: a transaction waits for every
+ * earlier transaction of the epoch that writes a variable it uses or reads a variable it
+ * writes. So no transaction aborts because of a lock, and every run gives the same result.
+ * The transactions of an epoch then run in waves. A wave holds the transactions whose
+ * conflicting transactions all ran in earlier waves, and the sites serve the reads and
+ * then the writes of a wave in parallel.
+ */
+public class Sequencer {
+  private Cluster cluster;
+  private Outputter output;
+  private ForkJoinPool pool;
+  private int epochLength = 1;
+  private int lines = 0;
+  private Map<Integer, Transaction> open = new HashMap<Integer, Transaction>();
+  private List<Transaction> epoch = new ArrayList<Transaction>();
+  private int epochs = 0;
+  private int waves = 0;
+  private int largestWave = 0;
+  private int committedCount = 0;
+  private int abortedCount = 0;
+
+  /**
+   * Creates a sequencer that runs transactions on the cluster's sites.
+   * @param cluster the cluster whose sites the transactions use
+   * @param output where the sequencer writes its output
+   * @param pool the pool the sites serve a wave in
+   */
+  Sequencer(Cluster cluster, Outputter output, ForkJoinPool pool) {
+    this.cluster = cluster;
+    this.output = output;
+    this.pool = pool;
+  }
+
+  /**
+   * @param epochLength the number of script lines in an epoch
+   */
+  public void setEpochLength(int epochLength) {
+    if (epochLength < 1) {
+      throw new IllegalArgumentException("An epoch must be at least one line long");
+    }
+    this.epochLength = epochLength;
+  }
+
+  /**
+   * Starts collecting the instructions of a transaction.
+   * @param tID the id of the transaction
+   * @param readOnly true if the transaction is read-only
+   * @param timestamp when the transaction begins
+   */
+  public void begin(int tID, boolean readOnly, long timestamp) {
+    open.put(tID, new Transaction(tID, readOnly, timestamp));
+  }
+
+  /**
+   * Adds an instruction to a transaction that has not ended yet.
+   * @param instruction the instruction
+   * @param tID the id of the transaction
+   */
+  public void add(Instruction instruction, int tID) {
+    Transaction transaction = open.get(tID);
+    if (transaction == null) {
+      throw new IllegalArgumentException("Transaction " + tID + " has not begun or has already ended");
+    }
+    transaction.addInstruction(instruction);
+  }
+
+  /**
+   * Ends a transaction, which puts it in the current epoch after the transactions that ended before it.
+   * @param tID the id of the transaction
+   */
+  public void end(int tID) {
+    Transaction transaction = open.remove(tID);
+    if (transaction == null) {
+      throw new IllegalArgumentException("Transaction " + tID + " has not begun or has already ended");
+    }
+    transaction.setState("sequenced");
+    epoch.add(transaction);
+    if(output.isVerbose()) {
+      output.addOutput("Transaction " + tID + " is sequenced in epoch " + (epochs + 1) +
+          " at position " + epoch.size());
+    }
+  }
+
+  /**
+   * Called at the end of every script line. Runs the current epoch once it is epochLength lines long.
+   */
+  public void endLine() {
+    lines++;
+    if (lines >= epochLength) {
+      runEpoch();
+    }
+  }
+
+  /**
+   * Runs the transactions of the current epoch, however long it is, and starts a new epoch.
+   */
+  public void runEpoch() {
+    lines = 0;
+    if (epoch.isEmpty()) {
+      return;
+    }
+    List<List<Transaction>> schedule = schedule(epoch);
+    epochs++;
+    waves += schedule.size();
+    if(output.isVerbose()) {
+      output.addOutput("Epoch " + epochs + " runs " + epoch.size() + " transaction(s) in " +
+          schedule.size() + " wave(s)");
+    }
+    epoch = new ArrayList<Transaction>();
+    for (List<Transaction> wave : schedule) {
+      largestWave = Math.max(largestWave, wave.size());
+      run(wave);
+    }
+  }
+
+  /**
+   * Grants the locks of the epoch's transactions in their order and sorts them into
+   * waves. A transaction's wave is one after the wave of the last earlier transaction that
+   * writes a variable it reads or writes, or that reads a variable it writes.
+   * @param transactions the transactions in their order
+   * @return the waves, each in the order of the epoch
+   */
+  static List<List<Transaction>> schedule(List<Transaction> transactions) {
+    Map<Integer, Integer> lastWrite = new HashMap<Integer, Integer>();
+    Map<Integer, Integer> lastRead = new HashMap<Integer, Integer>();
+    List<List<Transaction>> schedule = new ArrayList<List<Transaction>>();
+    for (Transaction transaction : transactions) {
+      int wave = 0;
+      for (Instruction instruction : transaction.getInstructions()) {
+        boolean writes = instruction.getAction().endsWith("write");
+        for (int index : indexesOf(instruction)) {
+          wave = Math.max(wave, after(lastWrite, index));
+          if (writes) {
+            wave = Math.max(wave, after(lastRead, index));
+          }
+        }
+      }
+      for (Instruction instruction : transaction.getInstructions()) {
+        Map<Integer, Integer> last = instruction.getAction().endsWith("write") ? lastWrite : lastRead;
+        for (int index : indexesOf(instruction)) {
+          last.put(index, last.containsKey(index) ? Math.max(last.get(index), wave) : wave);
+        }
+      }
+      if (wave == schedule.size()) {
+        schedule.add(new ArrayList<Transaction>());
+      }
+      schedule.get(wave).add(transaction);
+    }
+    return schedule;
+  }
+
+  private static int after(Map<Integer, Integer> last, int index) {
+    return last.containsKey(index) ? last.get(index) + 1 : 0;
+  }
+
+  private static int[] indexesOf(Instruction instruction) {
+    return instruction.isBatch() ? instruction.getIndexes() : new int[] {instruction.getIndex()};
+  }
+
+  /**
+   * Runs a wave. The reads of every transaction are sent to the first ready copy of
+   * each variable, and each site serves its reads in a task of its own. Then the
+   * transactions commit or abort in their order, and each site applies its writes in
+   * a task of its own. A transaction aborts if a variable it reads or writes has no
+   * ready copy, which depends only on the script, so the outcome is still deterministic.
+   */
+  private void run(List<Transaction> wave) {
+    Site[] sites = cluster.getSites();
+    Placement placement = cluster.getPlacement();
+    Map<Integer, List<Integer>> reads = new TreeMap<Integer, List<Integer>>();
+    List<List<int[]>> plans = new ArrayList<List<int[]>>();
+    List<String> reasons = new ArrayList<String>();
+    List<Map<Integer, Integer>> allWrites = new ArrayList<Map<Integer, Integer>>();
+    for (Transaction transaction : wave) {
+      List<int[]> plan = new ArrayList<int[]>();
+      Map<Integer, Integer> writes = new LinkedHashMap<Integer, Integer>();
+      String reason = null;
+      for (Instruction instruction : transaction.getInstructions()) {
+        int[] indexes = indexesOf(instruction);
+        for (int k = 0; k < indexes.length && reason == null; k++) {
+          int index = indexes[k];
+          if (instruction.getAction().endsWith("write")) {
+            writes.put(index, instruction.isBatch() ? instruction.getValues()[k] : instruction.getValue());
+          } else if (writes.containsKey(index)) {
+            plan.add(new int[] {index, 0, writes.get(index)});
+          } else {
+            Site site = firstReadyCopy(sites, placement, index);
+            if (site == null) {
+              reason = "no site could serve its read of index " + index;
+            } else {
+              plan.add(new int[] {index, site.getID(), 0});
+            }
+          }
+        }
+      }
+      for (int index : writes.keySet()) {
+        if (reason == null && readySites(sites, placement, index).isEmpty()) {
+          reason = "no site holding index " + index + " is up";
+        }
+      }
+      if (reason == null) {
+        for (int[] read : plan) {
+          if (read[1] > 0) {
+            if (!reads.containsKey(read[1])) {
+              reads.put(read[1], new ArrayList<Integer>());
+            }
+            read[2] = reads.get(read[1]).size();
+            reads.get(read[1]).add(read[0]);
+          }
+        }
+      }
+      plans.add(plan);
+      reasons.add(reason);
+      allWrites.add(writes);
+    }
+    Map<Integer, int[]> valuesRead = new HashMap<Integer, int[]>();
+    List<SiteTask> readTasks = new ArrayList<SiteTask>();
+    for (Map.Entry<Integer, List<Integer>> entry : reads.entrySet()) {
+      int[] values = new int[entry.getValue().size()];
+      valuesRead.put(entry.getKey(), values);
+      readTasks.add(new SiteTask(sites[entry.getKey()], entry.getValue(), values));
+    }
+    runAll(readTasks);
+    Map<Integer, List<Integer>> writesBySite = new TreeMap<Integer, List<Integer>>();
+    ChangeFeed feed = cluster.getChangeFeed();
+    List<long[]> changes = new ArrayList<long[]>();
+    for (int t = 0; t < wave.size(); t++) {
+      Transaction transaction = wave.get(t);
+      if (reasons.get(t) != null) {
+        transaction.setState("aborted");
+        abortedCount++;
+        if(output.isVerbose()) {
+          output.addOutput("Transaction " + transaction.getID() + " was aborted because " + reasons.get(t) + ".");
+        }
+        continue;
+      }
+      Iterator<int[]> planned = plans.get(t).iterator();
+      for (Instruction instruction : transaction.getInstructions()) {
+        if (instruction.getAction().endsWith("write")) {
+          continue;
+        }
+        Integer[] results = new Integer[indexesOf(instruction).length];
+        for (int k = 0; k < results.length; k++) {
+          int[] read = planned.next();
+          int value = read[1] == 0 ? read[2] : valuesRead.get(read[1])[read[2]];
+          results[k] = value;
+          output.addValue(value);
+          if(output.isVerbose()) {
+            output.addOutput("Transaction " + transaction.getID() + " reads value " + value +
+                " at index " + read[0] + (read[1] == 0 ? "" : " at Site " + read[1]));
+          }
+        }
+        instruction.complete(results);
+      }
+      for (Map.Entry<Integer, Integer> write : allWrites.get(t).entrySet()) {
+        if(output.isVerbose()) {
+          output.addOutput("Transaction " + transaction.getID() + " commits write " + write.getValue()
+              + " to index " + write.getKey() + " to site(s)");
+        }
+        long siteBits = 0;
+        for (Site site : readySites(sites, placement, write.getKey())) {
+          if (feed != null) {
+            siteBits |= ChangeFeed.siteBit(site.getID());
+          }
+          if (!writesBySite.containsKey(site.getID())) {
+            writesBySite.put(site.getID(), new ArrayList<Integer>());
+          }
+          writesBySite.get(site.getID()).add(write.getKey());
+          writesBySite.get(site.getID()).add(write.getValue());
+        }
+        if (feed != null) {
+          changes.add(new long[] {cluster.timestampFor(transaction.getID()), transaction.getID(), write.getKey(),
+              write.getValue(), siteBits});
+        }
+      }
+      transaction.setState("committed");
+      committedCount++;
+    }
+    List<SiteTask> writeTasks = new ArrayList<SiteTask>();
+    for (Map.Entry<Integer, List<Integer>> entry : writesBySite.entrySet()) {
+      writeTasks.add(new SiteTask(sites[entry.getKey()], entry.getValue(), null));
+    }
+    runAll(writeTasks);
+    if (feed != null) {
+      for (long[] change : changes) {
+        feed.publish(change[0], (int) change[1], (int) change[2], (int) change[3], change[4]);
+      }
+    }
+  }
+
+  private void runAll(final List<SiteTask> tasks) {
+    if (tasks.size() == 1) {
+      tasks.get(0).compute();
+    } else if (!tasks.isEmpty()) {
+      pool.invoke(new RecursiveAction() {
+        protected void compute() {
+          invokeAll(tasks);
+        }
+      });
+    }
+  }
+
+  /**
+   * @return the lowest numbered ready site whose copy of the index can be read, or null
+   */
+  private static Site firstReadyCopy(Site[] sites, Placement placement, int index) {
+    for (int siteID : placement.getSites(index)) {
+      if (sites[siteID].getState().equals("ready") && sites[siteID].isReadyToBeRead(index)) {
+        return sites[siteID];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the ready sites holding a copy of the index
+   */
+  private static List<Site> readySites(Site[] sites, Placement placement, int index) {
+    List<Site> ready = new ArrayList<Site>();
+    for (int siteID : placement.getSites(index)) {
+      if (sites[siteID].getState().equals("ready")) {
+        ready.add(sites[siteID]);
+      }
+    }
+    return ready;
+  }
+
+  /**
+   * @return the number of transactions that committed
+   */
+  public int getCommittedCount() {
+    return committedCount;
+  }
+
+  /**
+   * @return the number of transactions that aborted
+   */
+  public int getAbortedCount() {
+    return abortedCount;
+  }
+
+  /**
+   * @return a line with the number of epochs and waves run so far
+   */
+  public String describeEpochs() {
+    return "Epochs: " + epochs + " Waves: " + waves + " Largest wave: " + largestWave;
+  }
+
+  /**
+   * The reads or the writes of a wave at one site. Reads fill values in the order
+   * of the indexes. Writes come as index and value pairs and fill nothing.
+   */
+  private static class SiteTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private Site site;
+    private List<Integer> arguments;
+    private int[] values;
+
+    SiteTask(Site site, List<Integer> arguments, int[] values) {
+      this.site = site;
+      this.arguments = arguments;
+      this.values = values;
+    }
+
+    protected void compute() {
+      if (values != null) {
+        for (int k = 0; k < values.length; k++) {
+          values[k] = site.getValueAtIndex(arguments.get(k));
+        }
+      } else {
+        for (int k = 0; k < arguments.size(); k += 2) {
+          site.writeValueAtIndex(arguments.get(k), arguments.get(k + 1));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,492 @@
+package project.adb;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class runs a site on a thread of its own, its shard. Only that thread touches
+ * the site's lock tables, waiting list and values, so they need no locks. Every method
+ * puts a message on the site's queue, which any thread can add to without taking a lock,
+ * and the shard runs the messages in the order they were added.
+ * Like RemoteSite, a method that returns nothing does not wait for the shard, so a
+ * commit hands its writes to every site and they apply them at the same time. A method
+ * that returns something waits for its answer, which comes after every message sent
+ * to the site before it. The site writes its output to an outputter of its own, and
+ * what it wrote is passed on to the cluster's output with each answer.
+ */
+public class ShardedSite extends Site {
+  private Site site;
+  private Outputter output;
+  private Outputter siteOutput;
+  private String state = "ready";
+  private ConcurrentLinkedQueue<Message> queue = new ConcurrentLinkedQueue<Message>();
+  private Thread shard;
+  private volatile boolean stopped = false;
+  private ConcurrentLinkedQueue<RuntimeException> failures = new ConcurrentLinkedQueue<RuntimeException>();
+  private AtomicLong messages = new AtomicLong();
+  private AtomicLong waits = new AtomicLong();
+  private AtomicLong waitNanos = new AtomicLong();
+
+  /**
+   * Creates the site and starts its shard.
+   * @param id the id of the site
+   * @param placement the placement telling which indexes are replicated
+   * @param output where the site's output is written
+   * @param storage where the site keeps its values
+   */
+  public ShardedSite(int id, Placement placement, Outputter output, Storage storage) {
+    super(id, placement, output, null);
+    this.output = output;
+    siteOutput = new Outputter(output.isVerbose());
+    siteOutput.setValuesShown(output.areValuesShown());
+    site = new Site(id, placement, siteOutput, storage);
+    shard = new Thread("site-" + id) {
+      public void run() {
+        serve();
+      }
+    };
+    shard.setDaemon(true);
+    shard.start();
+  }
+
+  /**
+   * The shard's loop. It runs the messages until the site is closed, and sleeps while
+   * the queue is empty.
+   */
+  private void serve() {
+    while (true) {
+      Message message = queue.poll();
+      if (message != null) {
+        message.execute(siteOutput);
+      } else if (stopped) {
+        return;
+      } else {
+        LockSupport.park(this);
+      }
+    }
+  }
+
+  /**
+   * Sends a message without waiting for it. If it fails, the next message that is
+   * waited for fails instead, with an exception that names what the message was for.
+   */
+  private void post(Message message) {
+    messages.incrementAndGet();
+    queue.add(message);
+    LockSupport.unpark(shard);
+  }
+
+  /**
+   * Sends a message and waits for its answer. If the message failed, its exception is
+   * thrown with the failures of the messages sent without waiting before it attached as
+   * suppressed; otherwise the first of those failures is thrown with the rest attached.
+   * @return the message's answer
+   */
+  private Object call(Message message) {
+    long start = System.nanoTime();
+    message.waiter = Thread.currentThread();
+    post(message);
+    while (!message.done) {
+      LockSupport.park(message);
+    }
+    waits.incrementAndGet();
+    waitNanos.addAndGet(System.nanoTime() - start);
+    for (String line : message.lines) {
+      output.addOutput(line);
+    }
+    RuntimeException failed = message.failure;
+    RuntimeException earlier = failures.poll();
+    while (earlier != null) {
+      if (failed == null) {
+        failed = earlier;
+      } else {
+        failed.addSuppressed(earlier);
+      }
+      earlier = failures.poll();
+    }
+    if (failed != null) {
+      throw failed;
+    }
+    return message.result;
+  }
+
+  /**
+   * @return a line with the number of messages sent to the site, how many were waited
+   * for and the mean wait
+   */
+  public String describeTraffic() {
+    long meanMicros = waits.get() == 0 ? 0 : waitNanos.get() / waits.get() / 1000;
+    return "Messages: " + messages.get() + " Waited for: " + waits.get() + " Mean wait: " + meanMicros + " us";
+  }
+
+  public String getState() {
+    return state;
+  }
+
+  public int getValueAtIndex(final int index) {
+    return (Integer) call(new Message() {
+      Object run() {
+        return site.getValueAtIndex(index);
+      }
+    });
+  }
+
+  public int getReadCount() {
+    return (Integer) call(new Message() {
+      Object run() {
+        return site.getReadCount();
+      }
+    });
+  }
+
+  public int getLockCount() {
+    return (Integer) call(new Message() {
+      Object run() {
+        return site.getLockCount();
+      }
+    });
+  }
+
+  public Transaction getWriteLockHolder(final int index) {
+    return (Transaction) call(new Message() {
+      Object run() {
+        return site.getWriteLockHolder(index);
+      }
+    });
+  }
+
+  public void setWriteLockAtIndex(final int index, final Transaction transaction) {
+    post(new Message("lock index " + index + " for transaction " + transaction.getID()) {
+      Object run() {
+        site.setWriteLockAtIndex(index, transaction);
+        return null;
+      }
+    });
+  }
+
+  @SuppressWarnings("unchecked")
+  public List<Transaction> getReadLockHolders(final int index) {
+    return (List<Transaction>) call(new Message() {
+      Object run() {
+        return site.getReadLockHolders(index);
+      }
+    });
+  }
+
+  @SuppressWarnings("unchecked")
+  public Set<Transaction> getLockHolders() {
+    return (Set<Transaction>) call(new Message() {
+      Object run() {
+        return site.getLockHolders();
+      }
+    });
+  }
+
+  public void releaseLocks(final Transaction transaction) {
+    post(new Message("release the locks of transaction " + transaction.getID()) {
+      Object run() {
+        site.releaseLocks(transaction);
+        return null;
+      }
+    });
+  }
+
+  public void addReadLockAtIndex(final int index, final Transaction transaction) {
+    post(new Message("read lock index " + index + " for transaction " + transaction.getID()) {
+      Object run() {
+        site.addReadLockAtIndex(index, transaction);
+        return null;
+      }
+    });
+  }
+
+  @SuppressWarnings("unchecked")
+  public List<Transaction> lockBatch(final int[] reads, final int[] writes, final Transaction transaction,
+      final int[] readValues) {
+    return (List<Transaction>) call(new Message() {
+      Object run() {
+        return site.lockBatch(reads, writes, transaction, readValues);
+      }
+    });
+  }
+
+  public void removeReadLocksAtIndex(final int index) {
+    post(new Message("remove the read locks at index " + index) {
+      Object run() {
+        site.removeReadLocksAtIndex(index);
+        return null;
+      }
+    });
+  }
+
+  public void addWaitingTransaction(final Transaction t) {
+    post(new Message("add waiting transaction " + t.getID()) {
+      Object run() {
+        site.addWaitingTransaction(t);
+        return null;
+      }
+    });
+  }
+
+  @SuppressWarnings("unchecked")
+  public List<Transaction> getWaitingTransactions() {
+    return (List<Transaction>) call(new Message() {
+      Object run() {
+        return site.getWaitingTransactions();
+      }
+    });
+  }
+
+  public void promoteWaitingTransactions() {
+    call(new Message() {
+      Object run() {
+        site.promoteWaitingTransactions();
+        return null;
+      }
+    });
+  }
+
+  public void removeWaitingTransaction(final Transaction t) {
+    post(new Message("remove waiting transaction " + t.getID()) {
+      Object run() {
+        site.removeWaitingTransaction(t);
+        return null;
+      }
+    });
+  }
+
+  public Integer readValueAtIndex(final int index, final Transaction transaction) {
+    return (Integer) call(new Message() {
+      Object run() {
+        return site.readValueAtIndex(index, transaction);
+      }
+    });
+  }
+
+  public void writeValueAtIndex(final int index, final int value) {
+    post(new Message("write " + value + " at index " + index) {
+      Object run() {
+        site.writeValueAtIndex(index, value);
+        return null;
+      }
+    });
+  }
+
+  public void writeValueAtIndex(final int index, final int value, final int version) {
+    post(new Message("write " + value + " at index " + index) {
+      Object run() {
+        site.writeValueAtIndex(index, value, version);
+        return null;
+      }
+    });
+  }
+
+  public int getVersionAtIndex(final int index) {
+    return (Integer) call(new Message() {
+      Object run() {
+        return site.getVersionAtIndex(index);
+      }
+    });
+  }
+
+  public Integer[] getCommittedValues() {
+    return (Integer[]) call(new Message() {
+      Object run() {
+        return site.getCommittedValues();
+      }
+    });
+  }
+
+  public Integer getCommittedValueAtIndex(final int index) {
+    return (Integer) call(new Message() {
+      Object run() {
+        return site.getCommittedValueAtIndex(index);
+      }
+    });
+  }
+
+  @SuppressWarnings("unchecked")
+  public List<Boolean> prepare(final Map<Integer, List<int[]>> writesByTransaction) {
+    return (List<Boolean>) call(new Message() {
+      Object run() {
+        return site.prepare(writesByTransaction);
+      }
+    });
+  }
+
+  public void decide(final Map<Integer, Boolean> decisions) {
+    post(new Message("apply the decisions " + decisions) {
+      Object run() {
+        site.decide(decisions);
+        return null;
+      }
+    });
+  }
+
+  @SuppressWarnings("unchecked")
+  public Map<Integer, List<int[]>> getInDoubtTransactions() {
+    return (Map<Integer, List<int[]>>) call(new Message() {
+      Object run() {
+        return site.getInDoubtTransactions();
+      }
+    });
+  }
+
+  @SuppressWarnings("unchecked")
+  public List<String> getLog() {
+    return (List<String>) call(new Message() {
+      Object run() {
+        return site.getLog();
+      }
+    });
+  }
+
+  public int openScan(final int from, final int to) {
+    return (Integer) call(new Message() {
+      Object run() {
+        return site.openScan(from, to);
+      }
+    });
+  }
+
+  public int[] scanThrough(final int scanID, final int through) {
+    return (int[]) call(new Message() {
+      Object run() {
+        return site.scanThrough(scanID, through);
+      }
+    });
+  }
+
+  public void closeScan(final int scanID) {
+    post(new Message("close scan " + scanID) {
+      Object run() {
+        site.closeScan(scanID);
+        return null;
+      }
+    });
+  }
+
+  public Aggregate aggregate(final int scanID, final boolean[] up) {
+    return (Aggregate) call(new Message() {
+      Object run() {
+        return site.aggregate(scanID, up);
+      }
+    });
+  }
+
+  public int load(final int[] pairs) {
+    return (Integer) call(new Message() {
+      Object run() {
+        return site.load(pairs);
+      }
+    });
+  }
+
+  public void fail() {
+    post(new Message("fail") {
+      Object run() {
+        site.fail();
+        return null;
+      }
+    });
+    state = "failed";
+  }
+
+  /**
+   * Closes the site's storage on its shard, then stops the shard.
+   */
+  public void close() {
+    call(new Message() {
+      Object run() {
+        site.close();
+        return null;
+      }
+    });
+    stopped = true;
+    LockSupport.unpark(shard);
+    try {
+      shard.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public int getIncarnation() {
+    return (Integer) call(new Message() {
+      Object run() {
+        return site.getIncarnation();
+      }
+    });
+  }
+
+  public Boolean isReadyToBeRead(final int index) {
+    return (Boolean) call(new Message() {
+      Object run() {
+        return site.isReadyToBeRead(index);
+      }
+    });
+  }
+
+  public void recover() {
+    state = "ready";
+    call(new Message() {
+      Object run() {
+        site.recover();
+        return null;
+      }
+    });
+  }
+
+  public String toString() {
+    return (String) call(new Message() {
+      Object run() {
+        return site.toString();
+      }
+    });
+  }
+
+  /**
+   * Something for the shard to do. A message that is waited for carries back its
+   * answer, or what it threw, and the lines the site wrote. A message that is not
+   * waited for says what it does, so its failure can be reported later.
+   */
+  private abstract class Message {
+    private String operation;
+    private Thread waiter = null;
+    private volatile boolean done = false;
+    private Object result = null;
+    private RuntimeException failure = null;
+    private List<String> lines = null;
+
+    Message() {
+      this(null);
+    }
+
+    Message(String operation) {
+      this.operation = operation;
+    }
+
+    abstract Object run();
+
+    void execute(Outputter siteOutput) {
+      try {
+        result = run();
+      } catch (RuntimeException e) {
+        if (waiter != null) {
+          failure = e;
+        } else {
+          failures.add(new IllegalStateException("Site " + getID() + " could not " + operation, e));
+        }
+      }
+      if (waiter != null) {
+        lines = siteOutput.takeOutput();
+        done = true;
+        LockSupport.unpark(waiter);
+      }
+    }
+  }
+}
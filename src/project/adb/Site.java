@@ -1,8 +1,15 @@
 package project.adb;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -16,28 +23,52 @@ import java.util.Set;
  */
 
 public class Site {
+  private static final int AGING = 4;
+  private static final int AGGREGATE_PAGE = 4096;
+
   private Integer id = 0;
-  private Integer[] values = {0, 10, 10, 10, 10, 10, 10, 10, 10, 10, 10, 10, 10, 10, 10, 10, 10, 10, 10, 10, 10};
-  private Boolean[] readyToBeRead = {false, true, true, true, true, true, true, true, true, true, true, true, true,
-		      true, true, true, true, true, true, true, true};
-  private Transaction[] writeLockTable = new Transaction[21];
-  private List<ArrayList<Transaction>> readLockTable = new ArrayList<ArrayList<Transaction>>(21);
-  private Set<Transaction> waitingTransactions = new LinkedHashSet<Transaction>();
+  private Storage storage;
+  private Map<Integer, Transaction> writeLockTable = new HashMap<Integer, Transaction>();
+  private Map<Integer, List<Transaction>> readLockTable = new HashMap<Integer, List<Transaction>>();
+  private Map<Transaction, int[]> waitingTransactions = new LinkedHashMap<Transaction, int[]>();
   private String state = "ready"; 
-  private Outputter output = Outputter.getInstance();
+  private Outputter output;
+  private Placement placement;
+  private int readCount = 0;
+  private List<String> log = new ArrayList<String>();
+  private Map<Integer, List<int[]>> preparedWrites = new LinkedHashMap<Integer, List<int[]>>();
+  private Map<Integer, Scan> scans = new HashMap<Integer, Scan>();
+  private int nextScanID = 1;
+  private int incarnation = 0;
 
   
   /**
    * The constructor a site takes in an ID used to keep track of the site.
-   * Also, the read lock table is initialized.
+   * Also, every index starts with the value 10. The lock tables only hold the
+   * indexes that are locked, so they stay small however many indexes there are.
+   * The values are kept in memory.
    * Author: Darren
    * @param id the id of the site
+   * @param placement the placement telling which indexes are replicated
+   * @param output where the site writes what happens to its waiting transactions
    */
-  public Site(int id) {
-    for (int i = 0; i < 21; i++) {
-      readLockTable.add(new ArrayList<Transaction>());
-    }
+  public Site(int id, Placement placement, Outputter output) {
+    this(id, placement, output, new ArrayStorage(placement));
+  }
+  
+  /**
+   * Creates a site that keeps its values in the given storage. A site whose storage
+   * lives elsewhere, such as in another process, has none here.
+   * @param id the id of the site
+   * @param placement the placement telling which indexes are replicated
+   * @param output where the site writes what happens to its waiting transactions
+   * @param storage where the site keeps its values, or null
+   */
+  public Site(int id, Placement placement, Outputter output, Storage storage) {
+    this.storage = storage;
     this.id = id;
+    this.placement = placement;
+    this.output = output;
   }
   
   /**
@@ -62,15 +93,36 @@ public class Site {
    * @return the value at the index given.
    */
   public int getValueAtIndex(int index) {
-    return values[index];
+    readCount++;
+    return storage.getValue(index);
   }
   
   /**
-   * Author: Darren
-   * @return the actual write lock table.
+   * @return the number of reads this site has served since it was created.
+   */
+  public int getReadCount() {
+    return readCount;
+  }
+  
+  /**
+   * The lock table occupancy is used as the load of the site when choosing
+   * which copy of a replicated index to read.
+   * @return the number of write locks plus the number of read locks held at this site.
+   */
+  public int getLockCount() {
+    int count = writeLockTable.size();
+    for (List<Transaction> readLocks : readLockTable.values()) {
+      count += readLocks.size();
+    }
+    return count;
+  }
+  
+  /**
+   * @param index the index to check
+   * @return the transaction holding the write lock at the index, or null
    */
-  public Transaction[] getWriteLockTable() {
-    return writeLockTable;
+  public Transaction getWriteLockHolder(int index) {
+    return writeLockTable.get(index);
   }
   
   /**
@@ -80,15 +132,125 @@ public class Site {
    * @param transaction the transaction that will hold the lock
    */
   public void setWriteLockAtIndex(int index, Transaction transaction) {
-    writeLockTable[index] = transaction;
+    if (transaction == null) {
+      writeLockTable.remove(index);
+    } else {
+      writeLockTable.put(index, transaction);
+      transaction.lease(id, incarnation);
+    }
   }
   
   /**
-   * Author: Darren
-   * @return the actual read lock table.
+   * @param index the index to check
+   * @return the transactions holding a read lock at the index
    */
-  public List<ArrayList<Transaction>> getReadLockTable() {
-    return readLockTable;
+  public List<Transaction> getReadLockHolders(int index) {
+    return new ArrayList<Transaction>(readLocksAt(index));
+  }
+  
+  /**
+   * @param index the index to check
+   * @return the read locks at the index, which must not be changed
+   */
+  private List<Transaction> readLocksAt(int index) {
+    List<Transaction> readLocks = readLockTable.get(index);
+    if (readLocks == null) {
+      return Collections.emptyList();
+    }
+    return readLocks;
+  }
+  
+  /**
+   * @return every transaction holding a read or write lock at this site
+   */
+  public Set<Transaction> getLockHolders() {
+    Set<Transaction> holders = new LinkedHashSet<Transaction>();
+    holders.addAll(writeLockTable.values());
+    for (List<Transaction> readLocks : readLockTable.values()) {
+      holders.addAll(readLocks);
+    }
+    return holders;
+  }
+  
+  /**
+   * Removes every read and write lock the given transaction holds at this site.
+   * @param transaction the transaction that aborted or ended
+   */
+  public void releaseLocks(Transaction transaction) {
+    Iterator<Transaction> writeLocks = writeLockTable.values().iterator();
+    while (writeLocks.hasNext()) {
+      if (writeLocks.next().equals(transaction)) {
+        writeLocks.remove();
+      }
+    }
+    Iterator<List<Transaction>> readLocks = readLockTable.values().iterator();
+    while (readLocks.hasNext()) {
+      List<Transaction> holders = readLocks.next();
+      holders.remove(transaction);
+      if (holders.isEmpty()) {
+        readLocks.remove();
+      }
+    }
+  }
+  
+  /**
+   * Gives a transaction a read lock at a given index without reading the value.
+   * @param index the index to lock
+   * @param transaction the transaction that will hold the lock
+   */
+  public void addReadLockAtIndex(int index, Transaction transaction) {
+    List<Transaction> readLocks = readLockTable.get(index);
+    if (readLocks == null) {
+      readLocks = new ArrayList<Transaction>();
+      readLockTable.put(index, readLocks);
+    }
+    if (!readLocks.contains(transaction)) {
+      readLocks.add(transaction);
+    }
+    transaction.lease(id, incarnation);
+  }
+  
+  /**
+   * Locks a batch of indexes for a transaction in one pass over the lock tables, and
+   * reads the ones to read. Either every lock of the batch is granted or none is: if
+   * another transaction holds a conflicting lock, nothing changes.
+   * @param reads the indexes to read lock and read
+   * @param writes the indexes to write lock
+   * @param transaction the transaction taking the locks
+   * @param readValues gets the value of each index of reads, in the same order
+   * @return the transactions holding conflicting locks, empty if the batch was granted
+   */
+  public List<Transaction> lockBatch(int[] reads, int[] writes, Transaction transaction, int[] readValues) {
+    Set<Transaction> conflicts = new LinkedHashSet<Transaction>();
+    for (int index : reads) {
+      Transaction writer = writeLockTable.get(index);
+      if (writer != null && !writer.equals(transaction)) {
+        conflicts.add(writer);
+      }
+    }
+    for (int index : writes) {
+      Transaction writer = writeLockTable.get(index);
+      if (writer != null && !writer.equals(transaction)) {
+        conflicts.add(writer);
+      }
+      for (Transaction reader : readLocksAt(index)) {
+        if (!reader.equals(transaction)) {
+          conflicts.add(reader);
+        }
+      }
+    }
+    if (!conflicts.isEmpty()) {
+      return new ArrayList<Transaction>(conflicts);
+    }
+    for (int k = 0; k < reads.length; k++) {
+      readValues[k] = readValueAtIndex(reads[k], transaction);
+    }
+    for (int index : writes) {
+      readLockTable.remove(index);
+      writeLockTable.put(index, transaction);
+    }
+    transaction.lease(id, incarnation);
+    return Collections.emptyList();
   }
   
   /**
@@ -98,7 +260,7 @@ public class Site {
    * @param index the index to remove any read locks
    */
   public void removeReadLocksAtIndex(int index) {
-    readLockTable.get(index).clear();
+    readLockTable.remove(index);
   }
   
   /**
@@ -107,7 +269,9 @@ public class Site {
    * @param t the transaction to add to the waiting list
    */
   public void addWaitingTransaction(Transaction t) {
-    waitingTransactions.add(t);
+    if (!waitingTransactions.containsKey(t)) {
+      waitingTransactions.put(t, new int[1]);
+    }
   }
   
   /**
@@ -116,7 +280,7 @@ public class Site {
    */
   public List<Transaction> getWaitingTransactions() {
     List<Transaction> transactions = new ArrayList<Transaction>();
-    for (Transaction t : waitingTransactions) {
+    for (Transaction t : waitingTransactions.keySet()) {
       transactions.add(t);
     }
     return transactions;
@@ -125,34 +289,52 @@ public class Site {
   /**
    * Author: Darren
    * Performs instructions and acquires locks for waiting transactions.
+   * The waiters are served by priority class and then in the order they arrived.
+   * Every time a transaction of the same or a higher class is served the index a waiter
+   * waits for, the waiter ages, and every few times it is served as if its class were
+   * one higher, so batch transactions are not starved by a stream of critical ones.
    */
   public void promoteWaitingTransactions() {
     if (state.equals("failed")){
       return;
     }
     Set<Transaction> transactionsNoLongerWaiting = new LinkedHashSet<Transaction>();
-    for (Transaction transaction : waitingTransactions) {
+    List<Transaction> order = new ArrayList<Transaction>(waitingTransactions.keySet());
+    if (order.size() > 1) {
+      Collections.sort(order, new Comparator<Transaction>() {
+        public int compare(Transaction a, Transaction b) {
+          return Integer.compare(servingRank(a), servingRank(b));
+        }
+      });
+    }
+    for (Transaction transaction : order) {
       Instruction instruction = transaction.getLastInstruction();
       String action = instruction.getAction();
       int index = instruction.getIndex();
-      if (action.equals("read") && readyToBeRead[index] &&
-          (writeLockTable[index] == null || transaction.equals(writeLockTable[index]))) {
+      Transaction writer = writeLockTable.get(index);
+      if (action.equals("read") && storage.isReadyToBeRead(index) &&
+          (writer == null || transaction.equals(writer))) {
         Integer value = readValueAtIndex(index, transaction);
         if (value != null){
+          FlightEvents.read(transaction, index, id, value);
           transactionsNoLongerWaiting.add(transaction);
           transaction.setState("ready");
-          output.addOutput("" +value);
+          instruction.complete(value);
+          output.addValue(value);
           if(output.isVerbose()) {
             output.addOutput("Transaction " + transaction.getID() + " reads value " + value + 
                 " at index " + index + " at Site " + id);
           }
         }
       } else {
-        if (writeLockTable[index] == null) {
-          if (readLockTable.get(index).isEmpty() || 
-              (readLockTable.get(index).size() == 1 && readLockTable.get(index).get(0).equals(transaction))) {
+        if (writer == null) {
+          List<Transaction> readLocks = readLocksAt(index);
+          if (readLocks.isEmpty() || 
+              (readLocks.size() == 1 && readLocks.get(0).equals(transaction))) {
             transaction.setState("ready");
-            writeLockTable[index] = transaction;
+            writeLockTable.put(index, transaction);
+            transaction.lease(id, incarnation);
+            FlightEvents.lockGranted(transaction, index, id);
             removeReadLocksAtIndex(instruction.getIndex());
             transactionsNoLongerWaiting.add(transaction);
             if(output.isVerbose()) {
@@ -167,6 +349,26 @@ public class Site {
     for (Transaction t : transactionsNoLongerWaiting) {
       waitingTransactions.remove(t);
     }
+    for (Map.Entry<Transaction, int[]> waiter : waitingTransactions.entrySet()) {
+      Transaction transaction = waiter.getKey();
+      for (Transaction served : transactionsNoLongerWaiting) {
+        if (served.getLastInstruction().getIndex() == transaction.getLastInstruction().getIndex() &&
+            served.getPriorityRank() <= transaction.getPriorityRank()) {
+          waiter.getValue()[0]++;
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Of the waiters of one class for one index, one that arrived earlier was passed
+   * over at least as often as a later one, so they keep the order they arrived in.
+   * @return the rank of a waiting transaction's class, less one for every few times
+   * a transaction of its class or a higher one was served its index first, lowest first
+   */
+  private int servingRank(Transaction transaction) {
+    return transaction.getPriorityRank() - waitingTransactions.get(transaction)[0] / AGING;
   }
   
   /**
@@ -186,17 +388,16 @@ public class Site {
    */
   public Integer readValueAtIndex(int index, Transaction transaction) {
     Integer value = null;
-    if (writeLockTable[index] != null && transaction.equals(writeLockTable[index])) {
+    if (transaction.equals(writeLockTable.get(index))) {
       for (Instruction instruction : transaction.getInstructions()) {
         if (instruction.getAction().equals("write") && instruction.getIndex() == index) {
           value = instruction.getValue();
         }
       }
     } else {
-      if (!readLockTable.get(index).contains(transaction)) {
-        readLockTable.get(index).add(transaction);
-      }
-      value = values[index];
+      addReadLockAtIndex(index, transaction);
+      readCount++;
+      value = storage.getValue(index);
     }
     return value;  
   }
@@ -209,8 +410,31 @@ public class Site {
    * @param value the value to write
    */
   public void writeValueAtIndex(int index, int value) {
-    values[index] = value;
-    readyToBeRead[index] = true;
+    writeValueAtIndex(index, value, storage.getVersion(index) + 1);
+  }
+  
+  /**
+   * Writes a value along with the version it was committed as. Quorum replication
+   * uses the versions to tell the freshest copy of an index apart from stale ones.
+   * @param index the index to write
+   * @param value the value to write
+   * @param version the version of the value
+   */
+  public void writeValueAtIndex(int index, int value, int version) {
+    for (Scan scan : scans.values()) {
+      if (index >= scan.next && index <= scan.to && !scan.before.containsKey(index)) {
+        scan.before.put(index, new int[] {storage.getValue(index), storage.isReadyToBeRead(index) ? 1 : 0});
+      }
+    }
+    storage.put(index, value, version);
+  }
+  
+  /**
+   * @param index the index to check
+   * @return the version of the value committed at the given index
+   */
+  public int getVersionAtIndex(int index) {
+    return storage.getVersion(index);
   }
   
   /**
@@ -218,7 +442,13 @@ public class Site {
    * @return the committed values
    */
   public Integer[] getCommittedValues() {
-    return values.clone();
+    Integer[] committed = new Integer[placement.getIndexCount() + 1];
+    int[] stored = storage.scan(1, placement.getIndexCount());
+    committed[0] = storage.getValue(0);
+    for (int i = 1; i < committed.length; i++) {
+      committed[i] = stored[2 * (i - 1)];
+    }
+    return committed;
   }
   
   /**
@@ -227,33 +457,235 @@ public class Site {
    * @return the value committed to the given index
    */
   public Integer getCommittedValueAtIndex(int index) {
-    return values[index];
+    return storage.getValue(index);
+  }
+  
+  /**
+   * Phase one of two-phase commit. The site votes for each transaction of a commit
+   * group at once. A ready site writes a prepare record with the transaction's writes
+   * to its log and keeps them until the decision arrives. Like the values, the log is
+   * stable storage and survives a failure of the site.
+   * @param writesByTransaction the writes of each transaction as index, value and version,
+   * where a version of -1 means the next version of the index
+   * @return the vote of each transaction, in the same order
+   */
+  public List<Boolean> prepare(Map<Integer, List<int[]>> writesByTransaction) {
+    List<Boolean> votes = new ArrayList<Boolean>();
+    for (Map.Entry<Integer, List<int[]>> entry : writesByTransaction.entrySet()) {
+      if (state.equals("failed")) {
+        votes.add(false);
+        continue;
+      }
+      String record = "prepare T" + entry.getKey();
+      for (int[] write : entry.getValue()) {
+        record += " x" + write[0] + "=" + write[1];
+      }
+      log.add(record);
+      preparedWrites.put(entry.getKey(), entry.getValue());
+      votes.add(true);
+    }
+    return votes;
+  }
+  
+  /**
+   * Phase two of two-phase commit. Applies the writes of the prepared transactions that
+   * committed and forgets the ones that aborted. Decisions for transactions that are not
+   * prepared at this site are ignored, so a decision can safely be sent again.
+   * @param decisions true for each transaction that commits, false for each that aborts
+   */
+  public void decide(Map<Integer, Boolean> decisions) {
+    for (Map.Entry<Integer, Boolean> entry : decisions.entrySet()) {
+      List<int[]> writes = preparedWrites.remove(entry.getKey());
+      if (writes == null) {
+        continue;
+      }
+      if (entry.getValue()) {
+        for (int[] write : writes) {
+          if (write[2] < 0) {
+            writeValueAtIndex(write[0], write[1]);
+          } else {
+            writeValueAtIndex(write[0], write[1], write[2]);
+          }
+        }
+        log.add("commit T" + entry.getKey());
+      } else {
+        log.add("abort T" + entry.getKey());
+      }
+    }
+  }
+  
+  /**
+   * @return the writes of the transactions that are prepared here but whose decision
+   * has not arrived yet
+   */
+  public Map<Integer, List<int[]>> getInDoubtTransactions() {
+    return new LinkedHashMap<Integer, List<int[]>>(preparedWrites);
+  }
+  
+  /**
+   * @return the records of the site's commit log
+   */
+  public List<String> getLog() {
+    return new ArrayList<String>(log);
+  }
+  
+  /**
+   * Opens a scan over the committed values of the indexes from..to that this site
+   * holds, as they are now. Values committed while the scan is open do not show
+   * through it: the site keeps the old value of an index written ahead of the scan
+   * until the scan passes it, so an open scan only costs memory for the indexes
+   * written while it is open.
+   * @param from the first index to scan
+   * @param to the last index to scan
+   * @return the id of the scan
+   */
+  public int openScan(int from, int to) {
+    Scan scan = new Scan();
+    scan.next = Math.max(1, from);
+    scan.to = Math.min(to, placement.getIndexCount());
+    scans.put(nextScanID, scan);
+    return nextScanID++;
+  }
+  
+  /**
+   * Reads the next page of a scan, up to the given index, with one scan of the
+   * storage. The scan closes once it has read its last index.
+   * @param scanID the id of the scan
+   * @param through the last index of the page
+   * @return the index, value and 1 if it is ready to be read or 0 if not, of every index
+   * the site holds in the page
+   */
+  public int[] scanThrough(int scanID, int through) {
+    Scan scan = scans.get(scanID);
+    if (scan == null) {
+      throw new IllegalArgumentException("Site " + id + " has no scan " + scanID);
+    }
+    through = Math.min(through, scan.to);
+    int first = scan.next;
+    int[] stored = storage.scan(first, through);
+    int[] page = new int[3 * Math.max(0, through - first + 1)];
+    int size = 0;
+    for (int i = first; i <= through; i++) {
+      if (!placement.holds(id, i)) {
+        continue;
+      }
+      int[] before = scan.before.remove(i);
+      page[size++] = i;
+      page[size++] = before == null ? stored[2 * (i - first)] : before[0];
+      page[size++] = before == null ? stored[2 * (i - first) + 1] : before[1];
+    }
+    scan.next = through + 1;
+    if (scan.next > scan.to) {
+      scans.remove(scanID);
+    }
+    return Arrays.copyOf(page, size);
+  }
+  
+  /**
+   * Closes a scan before it reads its last index.
+   * @param scanID the id of the scan
+   */
+  public void closeScan(int scanID) {
+    scans.remove(scanID);
+  }
+  
+  /**
+   * Computes the partial aggregate of this site over the committed values an open scan
+   * sees, so the values are those of the moment the scan was opened. So that every
+   * replicated index is counted once, a site is responsible for an index when it is the
+   * first of the index's sites that is up. An index the site is responsible for but
+   * could not read when the scan opened is listed as unread instead. The scan is left
+   * where it was, so an unread index can still be read through the scans of other sites.
+   * @param scanID the id of the scan
+   * @param up true for the id of each site that is up
+   * @return the partial aggregate
+   */
+  public Aggregate aggregate(int scanID, boolean[] up) {
+    Scan scan = scans.get(scanID);
+    if (scan == null) {
+      throw new IllegalArgumentException("Site " + id + " has no scan " + scanID);
+    }
+    Aggregate aggregate = new Aggregate();
+    for (int first = scan.next; first <= scan.to; first += AGGREGATE_PAGE) {
+      int last = (int) Math.min((long) first + AGGREGATE_PAGE - 1, scan.to);
+      int[] stored = storage.scan(first, last);
+      for (int i = first; i <= last; i++) {
+        for (int siteID : placement.getSites(i)) {
+          if (up[siteID]) {
+            int[] before = scan.before.get(i);
+            boolean ready = (before == null ? stored[2 * (i - first) + 1] : before[1]) == 1;
+            if (siteID == id && ready) {
+              aggregate.add(before == null ? stored[2 * (i - first)] : before[0]);
+            } else if (siteID == id) {
+              aggregate.addUnread(i);
+            }
+            break;
+          }
+        }
+      }
+    }
+    return aggregate;
   }
   
+  /**
+   * Stores the values of a bulk load straight into the site, without taking any
+   * locks or making new versions. Only the indexes the site holds are kept. It is
+   * meant for populating the database before transactions begin.
+   * @param pairs indexes and values, one after the other
+   * @return how many values the site kept
+   */
+  public int load(int[] pairs) {
+    int[] kept = new int[pairs.length];
+    int size = 0;
+    for (int k = 0; k < pairs.length; k += 2) {
+      if (placement.holds(id, pairs[k])) {
+        kept[size++] = pairs[k];
+        kept[size++] = pairs[k + 1];
+      }
+    }
+    storage.load(kept, size);
+    return size / 2;
+  }
+
+  
   /**
    * Author: Darren and Viswanath
    * When a Site fails, its read and write lock tables must be cleared and all the replicated
    * indexes are unable to be read.
    */
   public void fail() {
+    incarnation++;
     readLockTable.clear();
-    for (int i = 0; i < 21; i++) {
-      readLockTable.add(new ArrayList<Transaction>());
-      writeLockTable[i] = null;
-      if (i % 2 == 0) {
-        readyToBeRead[i] = false;
-      }
-    }
+    writeLockTable.clear();
+    storage.fail();
     state = "failed";
   }
   
+  /**
+   * A site forgets its locks when it fails, so the locks a transaction got before
+   * a failure are known by the incarnation they were granted in.
+   * @return how many times the site failed
+   */
+  public int getIncarnation() {
+    return incarnation;
+  }
+
+  /**
+   * Closes the site's storage.
+   */
+  public void close() {
+    if (storage != null) {
+      storage.close();
+    }
+  }
+  
   /**
    * Author: Darren
    * @param index the index to check if it's ready to be read
    * @return true or false depending on if the given index is ready to be read or not
    */
   public Boolean isReadyToBeRead(int index) {
-	  return readyToBeRead[index];
+	  return storage.isReadyToBeRead(index);
   }
   
   /**
@@ -272,15 +704,24 @@ public class Site {
    */
   public String toString() {
     String val = "Site " + this.getID() + "\nState: " + state + "\n";
-    for (int i = 1; i < 21; i++) {
-      if (writeLockTable[i] == null && readLockTable.get(i).isEmpty() ) {
-        val += "Index: " + i + " Value: " + values[i] + "\n";
-      } else if (writeLockTable[i] == null)  {
-        val += "Index: " + i + " Value: " + values[i] + " Read locked by: " + readLockTable.get(i) + "\n";
+    for (int i = 1; storage != null && i <= placement.getIndexCount(); i++) {
+      if (writeLockTable.get(i) == null && readLocksAt(i).isEmpty() ) {
+        val += "Index: " + i + " Value: " + storage.getValue(i) + "\n";
+      } else if (writeLockTable.get(i) == null)  {
+        val += "Index: " + i + " Value: " + storage.getValue(i) + " Read locked by: " + readLocksAt(i) + "\n";
       } else {
-        val += "Index: " + i + " Value: " + values[i] + " Write locked by: " + writeLockTable[i] + "\n";
+        val += "Index: " + i + " Value: " + storage.getValue(i) + " Write locked by: " + writeLockTable.get(i) + "\n";
       }
     }
     return val;
   }
+
+  /**
+   * The position of an open scan and the old values of the indexes written ahead of it.
+   */
+  private static class Scan {
+    private int next;
+    private int to;
+    private Map<Integer, int[]> before = new HashMap<Integer, int[]>();
+  }
 }
@@ -0,0 +1,200 @@
+package project.adb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * This class is the transaction manager's end of a loopback TCP connection to a
+ * site running in its own process.
+ * Every message is a frame holding its length, an opcode and a payload. The site
+ * answers every message in the order it was sent, with a status byte and a payload.
+ * Messages whose answer is not needed are pipelined: they are buffered and sent
+ * together with the next message that needs an answer, and their acknowledgements
+ * are read then. So the locks and writes of a command usually cost one socket write
+ * and one round trip per site.
+ */
+public class SiteConnection {
+  static final byte OK = 0;
+  static final byte ERROR = 1;
+  private Socket socket;
+  private DataOutputStream out;
+  private DataInputStream in;
+  private int pendingAcknowledgements = 0;
+  private long messages = 0;
+  private long roundTrips = 0;
+  private long batches = 0;
+  private long roundTripNanos = 0;
+  private boolean unflushed = false;
+
+  /**
+   * Connects to a site on this machine.
+   * @param port the port the site listens on
+   * @throws IOException if the site cannot be reached
+   */
+  public SiteConnection(int port) throws IOException {
+    socket = new Socket(InetAddress.getLoopbackAddress(), port);
+    socket.setTcpNoDelay(true);
+    out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+    in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+  }
+
+  /**
+   * Queues a message whose answer is not needed.
+   * @param opcode the operation
+   * @param payload the arguments of the operation
+   */
+  public void send(byte opcode, byte[] payload) {
+    try {
+      write(opcode, payload);
+      pendingAcknowledgements++;
+    } catch (IOException e) {
+      throw new IllegalStateException("Lost the connection to a site", e);
+    }
+  }
+
+  /**
+   * Sends a message along with any queued ones and waits for its answer.
+   * @param opcode the operation
+   * @param payload the arguments of the operation
+   * @return the answer
+   */
+  public DataInputStream call(byte opcode, byte[] payload) {
+    try {
+      long start = System.nanoTime();
+      write(opcode, payload);
+      flush();
+      while (pendingAcknowledgements > 0) {
+        read();
+        pendingAcknowledgements--;
+      }
+      byte[] answer = read();
+      roundTrips++;
+      roundTripNanos += System.nanoTime() - start;
+      return new DataInputStream(new ByteArrayInputStream(answer));
+    } catch (IOException e) {
+      throw new IllegalStateException("Lost the connection to a site", e);
+    }
+  }
+
+  /**
+   * Sends the queued messages without waiting for their answers.
+   */
+  public void flush() throws IOException {
+    if (unflushed) {
+      out.flush();
+      batches++;
+      unflushed = false;
+    }
+  }
+
+  /**
+   * Closes the connection, which also stops the site's process. The acknowledgements
+   * still owed are read first, so the site does not answer a closed socket.
+   */
+  public void close() {
+    try {
+      flush();
+      while (pendingAcknowledgements > 0) {
+        read();
+        pendingAcknowledgements--;
+      }
+      socket.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void write(byte opcode, byte[] payload) throws IOException {
+    out.writeInt(payload.length + 1);
+    out.writeByte(opcode);
+    out.write(payload);
+    messages++;
+    unflushed = true;
+  }
+
+  private byte[] read() throws IOException {
+    int length = in.readInt();
+    byte status = in.readByte();
+    byte[] answer = new byte[length - 1];
+    in.readFully(answer);
+    if (status == ERROR) {
+      throw new IllegalStateException("A site failed to handle a message: " +
+          new DataInputStream(new ByteArrayInputStream(answer)).readUTF());
+    }
+    return answer;
+  }
+
+  /**
+   * @return a line with the number of messages, socket writes and round trips so far
+   * and the mean round trip time
+   */
+  public String describeTraffic() {
+    long meanMicros = roundTrips == 0 ? 0 : roundTripNanos / roundTrips / 1000;
+    return "Messages: " + messages + " Socket writes: " + batches + " Round trips: " + roundTrips +
+        " Mean round trip: " + meanMicros + " us";
+  }
+
+  /**
+   * A small helper to build the payload of a message.
+   */
+  static class Payload {
+    private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private DataOutputStream data = new DataOutputStream(bytes);
+
+    Payload putInt(int value) {
+      try {
+        data.writeInt(value);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+      return this;
+    }
+
+    Payload putLong(long value) {
+      try {
+        data.writeLong(value);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+      return this;
+    }
+
+    Payload putBoolean(boolean value) {
+      try {
+        data.writeBoolean(value);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+      return this;
+    }
+
+    Payload putString(String value) {
+      try {
+        data.writeUTF(value);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+      return this;
+    }
+
+    Payload putBytes(byte[] value) {
+      try {
+        data.write(value);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+      return this;
+    }
+
+    byte[] toByteArray() {
+      return bytes.toByteArray();
+    }
+  }
+}
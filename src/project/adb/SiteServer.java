@@ -0,0 +1,459 @@
+package project.adb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class runs one site in its own process. It listens on a loopback port and
+ * serves the messages RemoteSite sends with a single threaded NIO event loop.
+ * It prints the port it listens on as its first line of output, and exits when
+ * the transaction manager closes its connection.
+ * Run it with: SiteServer site-id number-of-sites replication-factor verbose
+ * number-of-indexes storage storage-folder
+ */
+public class SiteServer {
+  private Site site;
+  private Outputter output;
+  private Map<Integer, Transaction> transactions = new HashMap<Integer, Transaction>();
+  private int openConnections = 0;
+
+  /**
+   * @param site the site to serve
+   * @param output the in-memory outputter the site writes to
+   */
+  SiteServer(Site site, Outputter output) {
+    this.site = site;
+    this.output = output;
+  }
+
+  /**
+   * Starts the site and serves it until its connection closes.
+   * @param args the site id, the number of sites, the replication factor or 0,
+   * whether the output is verbose, the number of indexes, memory or lsm storage, the
+   * folder for the storage's files or an empty string and whether the values read are shown
+   */
+  public static void main(String[] args) throws IOException {
+    Placement placement = new Placement(Integer.parseInt(args[1]), Integer.parseInt(args[4]));
+    if (Integer.parseInt(args[2]) > 0) {
+      placement.setReplicationFactor(Integer.parseInt(args[2]));
+    }
+    Outputter output = new Outputter(Boolean.valueOf(args[3]));
+    output.setValuesShown(Boolean.valueOf(args[7]));
+    int id = Integer.parseInt(args[0]);
+    Storage storage = Cluster.createStorage(args[5], args[6].isEmpty() ? null : args[6], id, placement);
+    Site site = new Site(id, placement, output, storage);
+    SiteServer server = new SiteServer(site, output);
+    server.serve();
+    site.close();
+  }
+
+  /**
+   * The event loop. Complete frames are handled in the order they arrive and their
+   * answers are queued, so many pipelined messages are answered with one write.
+   */
+  private void serve() throws IOException {
+    Selector selector = Selector.open();
+    ServerSocketChannel serverChannel = ServerSocketChannel.open();
+    serverChannel.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    serverChannel.configureBlocking(false);
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    System.out.println("port " + serverChannel.socket().getLocalPort());
+    System.out.flush();
+    boolean connected = false;
+    while (!connected || openConnections > 0) {
+      selector.select();
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        if (!key.isValid()) {
+          continue;
+        }
+        if (key.isAcceptable()) {
+          SocketChannel channel = serverChannel.accept();
+          channel.configureBlocking(false);
+          channel.socket().setTcpNoDelay(true);
+          channel.register(selector, SelectionKey.OP_READ, new Connection());
+          openConnections++;
+          connected = true;
+        } else {
+          handle(key);
+        }
+      }
+    }
+    selector.close();
+    serverChannel.close();
+  }
+
+  /**
+   * Reads what arrived on a connection, answers every complete frame and
+   * writes as much of the answers as the socket takes.
+   */
+  private void handle(SelectionKey key) throws IOException {
+    SocketChannel channel = (SocketChannel) key.channel();
+    Connection connection = (Connection) key.attachment();
+    if (key.isReadable()) {
+      if (channel.read(connection.in) < 0) {
+        key.cancel();
+        channel.close();
+        openConnections--;
+        return;
+      }
+      connection.in.flip();
+      while (connection.in.remaining() >= 4 && connection.in.remaining() >= 4 + connection.in.getInt(connection.in.position())) {
+        byte[] frame = new byte[connection.in.getInt()];
+        connection.in.get(frame);
+        connection.out.add(ByteBuffer.wrap(answer(frame)));
+      }
+      connection.in.compact();
+      if (!connection.in.hasRemaining()) {
+        ByteBuffer bigger = ByteBuffer.allocate(connection.in.capacity() * 2);
+        connection.in.flip();
+        bigger.put(connection.in);
+        connection.in = bigger;
+      }
+    }
+    while (!connection.out.isEmpty()) {
+      channel.write(connection.out.getFirst());
+      if (connection.out.getFirst().hasRemaining()) {
+        break;
+      }
+      connection.out.removeFirst();
+    }
+    key.interestOps(connection.out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+  }
+
+  /**
+   * Handles one message.
+   * @param frame the opcode followed by the payload
+   * @return the framed answer
+   */
+  private byte[] answer(byte[] frame) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream answer = new DataOutputStream(bytes);
+    byte status = SiteConnection.OK;
+    try {
+      DataInputStream request = new DataInputStream(new ByteArrayInputStream(frame, 1, frame.length - 1));
+      dispatch(frame[0], request, answer);
+    } catch (Exception e) {
+      bytes.reset();
+      status = SiteConnection.ERROR;
+      try {
+        answer.writeUTF("Site " + site.getID() + ": " + e);
+      } catch (IOException ignored) {
+      }
+    }
+    byte[] payload = bytes.toByteArray();
+    ByteBuffer framed = ByteBuffer.allocate(5 + payload.length);
+    framed.putInt(payload.length + 1).put(status).put(payload);
+    return framed.array();
+  }
+
+  private void dispatch(byte opcode, DataInputStream request, DataOutputStream answer) throws IOException {
+    switch (opcode) {
+      case RemoteSite.STATE:
+        answer.writeUTF(site.getState());
+        break;
+      case RemoteSite.READY_TO_BE_READ:
+        answer.writeBoolean(site.isReadyToBeRead(request.readInt()));
+        break;
+      case RemoteSite.WRITE_LOCK_HOLDER:
+        Transaction holder = site.getWriteLockHolder(request.readInt());
+        answer.writeInt(holder == null ? -1 : holder.getID());
+        break;
+      case RemoteSite.READ_LOCK_HOLDERS:
+        writeTransactions(site.getReadLockHolders(request.readInt()), answer);
+        break;
+      case RemoteSite.LOCK_HOLDERS:
+        writeTransactions(new LinkedList<Transaction>(site.getLockHolders()), answer);
+        break;
+      case RemoteSite.SET_WRITE_LOCK: {
+        int index = request.readInt();
+        site.setWriteLockAtIndex(index, readTransaction(request));
+        break;
+      }
+      case RemoteSite.REMOVE_READ_LOCKS:
+        site.removeReadLocksAtIndex(request.readInt());
+        break;
+      case RemoteSite.ADD_READ_LOCK: {
+        int index = request.readInt();
+        site.addReadLockAtIndex(index, readTransaction(request));
+        break;
+      }
+      case RemoteSite.READ: {
+        int index = request.readInt();
+        Integer value = site.readValueAtIndex(index, readTransaction(request));
+        answer.writeBoolean(value != null);
+        answer.writeInt(value == null ? 0 : value);
+        break;
+      }
+      case RemoteSite.LOCK_BATCH: {
+        request.readInt();
+        Transaction transaction = readTransaction(request);
+        int[] reads = new int[request.readInt()];
+        for (int k = 0; k < reads.length; k++) {
+          reads[k] = request.readInt();
+        }
+        int[] writes = new int[request.readInt()];
+        for (int k = 0; k < writes.length; k++) {
+          writes[k] = request.readInt();
+        }
+        int[] readValues = new int[reads.length];
+        List<Transaction> conflicts = site.lockBatch(reads, writes, transaction, readValues);
+        writeTransactions(conflicts, answer);
+        if (conflicts.isEmpty()) {
+          for (int value : readValues) {
+            answer.writeInt(value);
+          }
+        }
+        break;
+      }
+      case RemoteSite.GET_VALUE:
+        answer.writeInt(site.getValueAtIndex(request.readInt()));
+        break;
+      case RemoteSite.COMMITTED_VALUE:
+        answer.writeInt(site.getCommittedValueAtIndex(request.readInt()));
+        break;
+      case RemoteSite.COMMITTED_VALUES: {
+        Integer[] values = site.getCommittedValues();
+        answer.writeInt(values.length);
+        for (Integer value : values) {
+          answer.writeInt(value);
+        }
+        break;
+      }
+      case RemoteSite.VERSION:
+        answer.writeInt(site.getVersionAtIndex(request.readInt()));
+        break;
+      case RemoteSite.WRITE: {
+        int index = request.readInt();
+        int value = request.readInt();
+        int version = request.readInt();
+        if (version < 0) {
+          site.writeValueAtIndex(index, value);
+        } else {
+          site.writeValueAtIndex(index, value, version);
+        }
+        break;
+      }
+      case RemoteSite.RELEASE_LOCKS:
+        request.readInt();
+        site.releaseLocks(readTransaction(request));
+        break;
+      case RemoteSite.ADD_WAITING:
+        request.readInt();
+        site.addWaitingTransaction(readTransaction(request));
+        break;
+      case RemoteSite.REMOVE_WAITING:
+        request.readInt();
+        site.removeWaitingTransaction(readTransaction(request));
+        break;
+      case RemoteSite.WAITING:
+        writeTransactions(site.getWaitingTransactions(), answer);
+        break;
+      case RemoteSite.PROMOTE: {
+        List<Transaction> waiting = site.getWaitingTransactions();
+        site.promoteWaitingTransactions();
+        writeEvents(waiting, answer);
+        break;
+      }
+      case RemoteSite.FAIL:
+        site.fail();
+        break;
+      case RemoteSite.RECOVER: {
+        List<Transaction> waiting = site.getWaitingTransactions();
+        site.recover();
+        writeEvents(waiting, answer);
+        break;
+      }
+      case RemoteSite.LOCK_COUNT:
+        answer.writeInt(site.getLockCount());
+        break;
+      case RemoteSite.READ_COUNT:
+        answer.writeInt(site.getReadCount());
+        break;
+      case RemoteSite.DESCRIBE:
+        answer.writeUTF(site.toString());
+        break;
+      case RemoteSite.PREPARE: {
+        Map<Integer, List<int[]>> writesByTransaction = new LinkedHashMap<Integer, List<int[]>>();
+        int count = request.readInt();
+        for (int i = 0; i < count; i++) {
+          int tID = request.readInt();
+          List<int[]> writes = new ArrayList<int[]>();
+          int writeCount = request.readInt();
+          for (int w = 0; w < writeCount; w++) {
+            writes.add(new int[] {request.readInt(), request.readInt(), request.readInt()});
+          }
+          writesByTransaction.put(tID, writes);
+        }
+        for (Boolean vote : site.prepare(writesByTransaction)) {
+          answer.writeBoolean(vote);
+        }
+        break;
+      }
+      case RemoteSite.DECIDE: {
+        Map<Integer, Boolean> decisions = new LinkedHashMap<Integer, Boolean>();
+        int count = request.readInt();
+        for (int i = 0; i < count; i++) {
+          decisions.put(request.readInt(), request.readBoolean());
+        }
+        site.decide(decisions);
+        break;
+      }
+      case RemoteSite.IN_DOUBT: {
+        Map<Integer, List<int[]>> inDoubt = site.getInDoubtTransactions();
+        answer.writeInt(inDoubt.size());
+        for (Map.Entry<Integer, List<int[]>> entry : inDoubt.entrySet()) {
+          answer.writeInt(entry.getKey());
+          answer.writeInt(entry.getValue().size());
+          for (int[] write : entry.getValue()) {
+            answer.writeInt(write[0]);
+            answer.writeInt(write[1]);
+            answer.writeInt(write[2]);
+          }
+        }
+        break;
+      }
+      case RemoteSite.LOAD: {
+        int[] pairs = new int[request.readInt()];
+        for (int i = 0; i < pairs.length; i++) {
+          pairs[i] = request.readInt();
+        }
+        answer.writeInt(site.load(pairs));
+        break;
+      }
+      case RemoteSite.OPEN_SCAN: {
+        int from = request.readInt();
+        answer.writeInt(site.openScan(from, request.readInt()));
+        break;
+      }
+      case RemoteSite.SCAN_THROUGH: {
+        int scanID = request.readInt();
+        int[] page = site.scanThrough(scanID, request.readInt());
+        answer.writeInt(page.length);
+        for (int value : page) {
+          answer.writeInt(value);
+        }
+        break;
+      }
+      case RemoteSite.CLOSE_SCAN:
+        site.closeScan(request.readInt());
+        break;
+      case RemoteSite.AGGREGATE: {
+        int scanID = request.readInt();
+        boolean[] up = new boolean[request.readInt()];
+        for (int i = 0; i < up.length; i++) {
+          up[i] = request.readBoolean();
+        }
+        Aggregate aggregate = site.aggregate(scanID, up);
+        answer.writeLong(aggregate.getCount());
+        answer.writeLong(aggregate.getSum());
+        answer.writeInt(aggregate.getMin());
+        answer.writeInt(aggregate.getMax());
+        answer.writeInt(aggregate.getUnread().size());
+        for (int index : aggregate.getUnread()) {
+          answer.writeInt(index);
+        }
+        break;
+      }
+      case RemoteSite.LOG: {
+        List<String> log = site.getLog();
+        answer.writeInt(log.size());
+        for (String record : log) {
+          answer.writeUTF(record);
+        }
+        break;
+      }
+      default:
+        throw new IllegalArgumentException("Unknown opcode " + opcode);
+    }
+  }
+
+  /**
+   * Decodes a transaction. The site keeps one copy of each transaction, so its lock
+   * tables and waiting list see the latest instructions sent for it.
+   */
+  private Transaction readTransaction(DataInputStream request) throws IOException {
+    int id = request.readInt();
+    long startTime = request.readLong();
+    boolean readOnly = request.readBoolean();
+    Transaction transaction = transactions.get(id);
+    if (transaction == null) {
+      transaction = new Transaction(id, readOnly, startTime);
+      transactions.put(id, transaction);
+    }
+    int instructions = request.readInt();
+    if (instructions >= 0) {
+      transaction.getInstructions().clear();
+      for (int i = 0; i < instructions; i++) {
+        boolean write = request.readBoolean();
+        int index = request.readInt();
+        int value = request.readInt();
+        long timestamp = request.readLong();
+        transaction.addInstruction(write ? new Instruction("write", index, value, timestamp) :
+            new Instruction("read", index, timestamp));
+      }
+    }
+    return transaction;
+  }
+
+  private void writeTransactions(List<Transaction> list, DataOutputStream answer) throws IOException {
+    answer.writeInt(list.size());
+    for (Transaction transaction : list) {
+      answer.writeInt(transaction.getID());
+    }
+  }
+
+  /**
+   * Sends back the new states of the transactions that stopped waiting, the values of
+   * the reads among them and the lines the site wrote while promoting them.
+   */
+  private void writeEvents(List<Transaction> waitingBefore, DataOutputStream answer) throws IOException {
+    List<Transaction> stillWaiting = site.getWaitingTransactions();
+    List<Transaction> promoted = new LinkedList<Transaction>();
+    for (Transaction transaction : waitingBefore) {
+      if (!stillWaiting.contains(transaction)) {
+        promoted.add(transaction);
+      }
+    }
+    answer.writeInt(promoted.size());
+    for (Transaction transaction : promoted) {
+      answer.writeInt(transaction.getID());
+      answer.writeUTF(transaction.getState());
+      Instruction instruction = transaction.getLastInstruction();
+      answer.writeBoolean(instruction.isDone());
+      answer.writeInt(instruction.isDone() ? instruction.getResult() : 0);
+    }
+    List<String> lines = output.takeOutput();
+    answer.writeInt(lines.size());
+    for (String line : lines) {
+      answer.writeUTF(line);
+    }
+  }
+
+  /**
+   * The buffers of one connection.
+   */
+  private static class Connection {
+    private ByteBuffer in = ByteBuffer.allocate(1 << 16);
+    private LinkedList<ByteBuffer> out = new LinkedList<ByteBuffer>();
+  }
+}
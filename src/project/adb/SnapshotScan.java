@@ -0,0 +1,132 @@
+package project.adb;
+
+import java.util.Arrays;
+
+/**
+ * This class is a cursor over the committed values of a range of indexes, read a
+ * page at a time. It opens a scan on every site at the same moment, its snapshot
+ * time. From then on each site keeps the before-image of an index written ahead of
+ * the scan, so every page comes from what the sites held at the snapshot time even if
+ * transactions commit between pages. Only one
+ * page is held at a time, so a scan of any number of indexes runs in constant memory.
+ */
+public class SnapshotScan {
+  private Placement placement;
+  private Site[] sites;
+  private int[] scanIDs;
+  private boolean[] readyAtOpen;
+  private int next;
+  private int to;
+  private int pageSize;
+  private long snapshotTime;
+
+  /**
+   * Opens the scan.
+   * @param placement where each index is placed
+   * @param sites the sites, indexed by id
+   * @param from the first index to scan
+   * @param to the last index to scan
+   * @param pageSize the number of indexes in a page
+   * @param snapshotTime the time the scan opens, when the sites pin the before-images
+   */
+  public SnapshotScan(Placement placement, Site[] sites, int from, int to, int pageSize, long snapshotTime) {
+    if (pageSize < 1) {
+      throw new IllegalArgumentException("A page must hold at least one index");
+    }
+    this.placement = placement;
+    this.sites = sites;
+    this.next = Math.max(1, from);
+    this.to = Math.min(to, placement.getIndexCount());
+    this.pageSize = pageSize;
+    this.snapshotTime = snapshotTime;
+    scanIDs = new int[sites.length];
+    readyAtOpen = new boolean[sites.length];
+    for (int i = 1; i < sites.length && hasNext(); i++) {
+      scanIDs[i] = sites[i].openScan(next, this.to);
+      readyAtOpen[i] = sites[i].getState().equals("ready");
+    }
+  }
+
+  /**
+   * @return the time of the snapshot the scan reads, when its sites began to keep
+   * the before-images
+   */
+  public long getSnapshotTime() {
+    return snapshotTime;
+  }
+
+  /**
+   * @return true if there are pages left
+   */
+  public boolean hasNext() {
+    return next <= to;
+  }
+
+  /**
+   * @return the first index of the next page
+   */
+  public int getNextIndex() {
+    return next;
+  }
+
+  /**
+   * Reads the next page from every site.
+   * @return for each site id, the index, value and 1 or 0 for ready to be read, of every
+   * index of the page the site holds
+   */
+  public int[][] nextPages() {
+    int through = (int) Math.min((long) next + pageSize - 1, to);
+    int[][] pages = new int[sites.length][];
+    for (int i = 1; i < sites.length; i++) {
+      pages[i] = sites[i].scanThrough(scanIDs[i], through);
+    }
+    next = through + 1;
+    return pages;
+  }
+
+  /**
+   * Reads the next page, taking each index from the first of its copies that
+   * could be read when the scan opened.
+   * @return the index and value of every index of the page that has a readable copy
+   */
+  public int[] nextPage() {
+    int first = next;
+    int[][] pages = nextPages();
+    int[] values = new int[next - first];
+    boolean[] found = new boolean[next - first];
+    for (int i = 1; i < pages.length; i++) {
+      if (!readyAtOpen[i]) {
+        continue;
+      }
+      for (int k = 0; k < pages[i].length; k += 3) {
+        int slot = pages[i][k] - first;
+        if (!found[slot] && pages[i][k + 2] == 1) {
+          found[slot] = true;
+          values[slot] = pages[i][k + 1];
+        }
+      }
+    }
+    int[] page = new int[2 * values.length];
+    int size = 0;
+    for (int slot = 0; slot < values.length; slot++) {
+      if (found[slot]) {
+        page[size++] = first + slot;
+        page[size++] = values[slot];
+      }
+    }
+    return Arrays.copyOf(page, size);
+  }
+
+  /**
+   * Closes the scan at every site before it reads its last page.
+   */
+  public void close() {
+    if (!hasNext()) {
+      return;
+    }
+    for (int i = 1; i < sites.length; i++) {
+      sites[i].closeScan(scanIDs[i]);
+    }
+    next = to + 1;
+  }
+}
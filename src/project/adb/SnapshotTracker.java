@@ -0,0 +1,224 @@
+package project.adb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class keeps what snapshot isolation needs to know about the update transactions
+ * of every coordinator. Commits are counted, and a transaction's snapshot holds the
+ * commits counted when it began. The committed writes to each index are kept while a
+ * transaction whose snapshot misses them is active, so a transaction that writes an
+ * index another transaction committed after its snapshot aborts: the first committer wins.
+ * Serializable snapshot isolation also keeps which transactions read each index from
+ * their snapshot, and marks the read-write antidependencies between concurrent
+ * transactions. A transaction with one into it and one out of it is a pivot that may
+ * close a cycle, so it aborts, or the transaction that made a committed one a pivot does.
+ */
+public class SnapshotTracker {
+  private static final int PRUNE_EVERY = 64;
+
+  private long commits = 0;
+  private Set<Transaction> active = new LinkedHashSet<Transaction>();
+  private Map<Integer, List<Transaction>> writers = new HashMap<Integer, List<Transaction>>();
+  private Map<Integer, List<Transaction>> readers = new HashMap<Integer, List<Transaction>>();
+  private int ends = 0;
+  private int writeConflicts = 0;
+  private int pivots = 0;
+
+  /**
+   * Gives a transaction a snapshot of the commits so far. The values are read into it
+   * by the transaction manager.
+   * @param transaction the update transaction that begins or restarts
+   */
+  void begin(Transaction transaction) {
+    finish(transaction);
+    transaction.takeSnapshot(commits);
+    active.add(transaction);
+  }
+
+  /**
+   * @param index the index the transaction writes
+   * @param transaction an active transaction
+   * @return the transaction that committed a write to the index after the transaction's
+   * snapshot, or null if there is none
+   */
+  Transaction writtenSince(int index, Transaction transaction) {
+    List<Transaction> written = writers.get(index);
+    if (written == null || written.isEmpty()) {
+      return null;
+    }
+    Transaction last = written.get(written.size() - 1);
+    return last.getCommitSequence() > transaction.getSnapshotCommits() ? last : null;
+  }
+
+  /**
+   * Records a write conflict that aborts a transaction.
+   * @return the reason for the abort
+   */
+  String writeConflict(int index, Transaction transaction, Transaction writer) {
+    writeConflicts++;
+    return "transaction " + writer.getID() + " committed a write to index " + index +
+        " after transaction " + transaction.getID() + " took its snapshot";
+  }
+
+  /**
+   * Records a read from the snapshot under serializable snapshot isolation. The reader
+   * has an antidependency on every concurrent writer of the index: the ones that
+   * committed after its snapshot, and the one holding the write lock.
+   * @param index the index read
+   * @param transaction the reader
+   * @param lockHolder the transaction holding the write lock of the index, or null
+   * @return the reason the reader must abort, or null
+   */
+  String read(int index, Transaction transaction, Transaction lockHolder) {
+    List<Transaction> indexReaders = readers.get(index);
+    if (indexReaders == null) {
+      indexReaders = new ArrayList<Transaction>();
+      readers.put(index, indexReaders);
+    }
+    if (!indexReaders.contains(transaction)) {
+      indexReaders.add(transaction);
+    }
+    List<Transaction> concurrentWriters = new ArrayList<Transaction>();
+    if (writers.containsKey(index)) {
+      for (Transaction writer : writers.get(index)) {
+        if (writer.getCommitSequence() > transaction.getSnapshotCommits()) {
+          concurrentWriters.add(writer);
+        }
+      }
+    }
+    if (lockHolder != null && !lockHolder.equals(transaction)) {
+      concurrentWriters.add(lockHolder);
+    }
+    for (Transaction writer : concurrentWriters) {
+      transaction.setOutConflict();
+      writer.setInConflict();
+      if (writer.getCommitSequence() > 0 && writer.isPivot()) {
+        pivots++;
+        return "transaction " + writer.getID() + " committed with read-write conflicts into and out of it";
+      }
+    }
+    if (transaction.isPivot()) {
+      pivots++;
+      return "it has read-write conflicts into and out of it";
+    }
+    return null;
+  }
+
+  /**
+   * Checks if a transaction may commit its writes. Under serializable snapshot isolation
+   * every concurrent reader of an index it writes has an antidependency on it.
+   * @param transaction the ending transaction
+   * @param written the indexes the transaction writes
+   * @param serializable true under serializable snapshot isolation
+   * @return the reason the transaction must abort, or null if it may commit
+   */
+  String validate(Transaction transaction, Set<Integer> written, boolean serializable) {
+    for (int index : written) {
+      Transaction writer = writtenSince(index, transaction);
+      if (writer != null) {
+        return writeConflict(index, transaction, writer);
+      }
+    }
+    if (!serializable) {
+      return null;
+    }
+    for (int index : written) {
+      if (!readers.containsKey(index)) {
+        continue;
+      }
+      for (Transaction reader : readers.get(index)) {
+        if (reader.equals(transaction) || !(active.contains(reader) ||
+            reader.getCommitSequence() > transaction.getSnapshotCommits())) {
+          continue;
+        }
+        reader.setOutConflict();
+        transaction.setInConflict();
+        if (reader.getCommitSequence() > 0 && reader.isPivot()) {
+          pivots++;
+          return "transaction " + reader.getID() + " committed with read-write conflicts into and out of it";
+        }
+      }
+    }
+    if (transaction.isPivot()) {
+      pivots++;
+      return "it has read-write conflicts into and out of it";
+    }
+    return null;
+  }
+
+  /**
+   * Counts a commit and keeps the indexes it wrote.
+   * @param transaction the committed transaction
+   * @param written the indexes it wrote
+   */
+  void commit(Transaction transaction, Set<Integer> written) {
+    commits++;
+    transaction.setCommitSequence(commits);
+    active.remove(transaction);
+    for (int index : written) {
+      if (!writers.containsKey(index)) {
+        writers.put(index, new ArrayList<Transaction>());
+      }
+      writers.get(index).add(transaction);
+    }
+    ended();
+  }
+
+  /**
+   * Forgets the reads of a transaction that aborted or restarts.
+   * @param transaction the transaction
+   */
+  void finish(Transaction transaction) {
+    if (!active.remove(transaction)) {
+      return;
+    }
+    for (List<Transaction> indexReaders : readers.values()) {
+      indexReaders.remove(transaction);
+    }
+    ended();
+  }
+
+  /**
+   * Every so often, drops the writes and reads that no active transaction is concurrent
+   * with any more: the ones committed before the oldest active snapshot.
+   */
+  private void ended() {
+    if (++ends % PRUNE_EVERY != 0) {
+      return;
+    }
+    long oldest = commits;
+    for (Transaction transaction : active) {
+      oldest = Math.min(oldest, transaction.getSnapshotCommits());
+    }
+    for (List<Transaction> transactions : writers.values()) {
+      Iterator<Transaction> iterator = transactions.iterator();
+      while (iterator.hasNext()) {
+        if (iterator.next().getCommitSequence() <= oldest) {
+          iterator.remove();
+        }
+      }
+    }
+    for (List<Transaction> transactions : readers.values()) {
+      Iterator<Transaction> iterator = transactions.iterator();
+      while (iterator.hasNext()) {
+        Transaction reader = iterator.next();
+        if (!active.contains(reader) && reader.getCommitSequence() <= oldest) {
+          iterator.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the number of aborts because the first committer won, and because of a pivot
+   */
+  int[] getAbortCounts() {
+    return new int[] {writeConflicts, pivots};
+  }
+}
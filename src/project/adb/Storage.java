@@ -0,0 +1,65 @@
+package project.adb;
+
+/**
+ * This interface is where a site keeps the committed value, version and readiness
+ * of each index it holds. Locks and waiting transactions stay in the site.
+ * An index that was never written has the value 10 and version 0 and is ready to be read.
+ */
+public interface Storage {
+
+  /**
+   * @param index the index to read
+   * @return the committed value at the index
+   */
+  int getValue(int index);
+
+  /**
+   * @param index the index to read
+   * @return the version of the committed value at the index
+   */
+  int getVersion(int index);
+
+  /**
+   * @param index the index to check
+   * @return true if the copy at the index can be read
+   */
+  boolean isReadyToBeRead(int index);
+
+  /**
+   * Reads the committed values of the indexes from..to in one pass, which is cheaper
+   * than reading them one at a time.
+   * @param from the first index to read
+   * @param to the last index to read
+   * @return the value and 1 if it is ready to be read or 0 if not, of every index from..to
+   * in order
+   */
+  int[] scan(int from, int to);
+
+  /**
+   * Commits a value. The index becomes ready to be read.
+   * @param index the index to write
+   * @param value the value to write
+   * @param version the version of the value
+   */
+  void put(int index, int value, int version);
+
+  /**
+   * Stores bulk-loaded values. Each keeps its version and becomes ready to be read.
+   * @param pairs indexes and values, one after the other
+   * @param size how many ints of pairs are used
+   */
+  void load(int[] pairs, int size);
+
+  /**
+   * Called when the site fails: every replicated index becomes unready to be read
+   * until it is written again.
+   */
+  void fail();
+
+  /**
+   * Releases the resources of the storage. The committed values stay where
+   * the storage keeps them.
+   * @throws IllegalStateException if the resources cannot be released
+   */
+  void close();
+}
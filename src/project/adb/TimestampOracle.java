@@ -0,0 +1,28 @@
+package project.adb;
+
+/**
+ * This class hands out the script time of a cluster. With the default script clock
+ * every coordinator takes the start times of its transactions from the same oracle,
+ * so wait-die compares the ages of transactions consistently whichever coordinator
+ * began them. The time is logical: it moves forward once per line of the script.
+ * Coordinators that use their own {@link HybridClock} only use it for the time
+ * shown in the output.
+ */
+public class TimestampOracle {
+  private int time = 0;
+
+  /**
+   * @return the current time
+   */
+  public synchronized int now() {
+    return time;
+  }
+
+  /**
+   * Moves the time forward.
+   * @return the new time
+   */
+  public synchronized int advance() {
+    return ++time;
+  }
+}
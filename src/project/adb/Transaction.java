@@ -1,7 +1,10 @@
 package project.adb;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * This is the class to hold each transaction and all of its instructions
@@ -13,8 +16,25 @@ public class Transaction {
   private boolean readOnly;
   private List<Instruction> instructions = new ArrayList<Instruction>();
   private String state;
-  private int startTime;
+  private long startTime;
   private Integer[] databaseSnapshot = new Integer[21];
+  private int retryDelay = 0;
+  private long nextRetry = 0;
+  private List<Instruction> issued = new ArrayList<Instruction>();
+  private List<Instruction> held = new ArrayList<Instruction>();
+  private Transaction restartAfter = null;
+  private int restarts = 0;
+  private boolean ended = false;
+  private boolean endHeld = false;
+  private boolean snapshotIsolated = false;
+  private long snapshotCommits = 0;
+  private long commitSequence = 0;
+  private boolean inConflict = false;
+  private boolean outConflict = false;
+  private Map<Integer, Integer> leases = new HashMap<Integer, Integer>();
+  private long waitingSince = 0;
+  private FlightEvents.Commit commitEvent = null;
+  private String priority = "normal";
   
   /**
    * Constructor initializes values
@@ -23,7 +43,7 @@ public class Transaction {
    * @param readOnly true if the transaction is read-only, false otherwise
    * @param startTime the time the transaction starts
    */
-  Transaction(int id, boolean readOnly, int startTime) {
+  Transaction(int id, boolean readOnly, long startTime) {
     this.id = id;
     this.setState("ready");
     this.readOnly = readOnly;
@@ -50,16 +70,17 @@ public class Transaction {
    * Author: Darren
    * @return the state of the transaction:
    */
-  public String getState() {
+  public synchronized String getState() {
     return state;
   }
 
   /**
-   * Sets the state of the transaction
+   * Sets the state of the transaction. A sharded site sets it from its own thread when
+   * it promotes the transaction, so the state is only touched while holding the lock.
    * Author: Darren
    * @param state ready, waiting or aborted
    */
-  public void setState(String state) {
+  public synchronized void setState(String state) {
     this.state = state;
   }
   
@@ -67,7 +88,7 @@ public class Transaction {
    * Author: Darren
    * @return the time the transaction started
    */
-  public int getStartTime() {
+  public long getStartTime() {
     return startTime;
   }
   
@@ -89,12 +110,14 @@ public class Transaction {
   }
 
   /**
-   * For read-only transactions a database snapshot is collected
+   * For read-only transactions, and update transactions under snapshot isolation,
+   * a database snapshot is collected
    * Author: Darren
-   * @return the snapshot of the database
+   * @param index the index to look up
+   * @return the value of the index in the snapshot, or null if it is not collected yet
    */
-  public Integer[] getDatabaseSnapshot() {
-    return databaseSnapshot;
+  public Integer getDatabaseSnapshotAtIndex(int index) {
+    return index < databaseSnapshot.length ? databaseSnapshot[index] : null;
   }
 
   /**
@@ -104,6 +127,9 @@ public class Transaction {
    * @param value the value to set the index with
    */
   public void setDatabaseSnapshotAtIndex(int index, int value) {
+    if (index >= databaseSnapshot.length) {
+      databaseSnapshot = Arrays.copyOf(databaseSnapshot, Math.max(index + 1, databaseSnapshot.length * 2));
+    }
     databaseSnapshot[index] = value;
   }
   
@@ -117,6 +143,321 @@ public class Transaction {
     return instructions.get(instructions.size() - 1);
   }
 
+  /**
+   * @param now the current time
+   * @return true if the transaction's backoff has passed and it may try again
+   */
+  public boolean isDueForRetry(long now) {
+    return now >= nextRetry;
+  }
+  
+  /**
+   * Puts off the next try, twice as long as the last time up to the given limit.
+   * @param now the current time
+   * @param maxDelay the longest delay
+   */
+  public void backOff(long now, int maxDelay) {
+    retryDelay = Math.min(maxDelay, Math.max(1, 2 * retryDelay));
+    nextRetry = now + retryDelay;
+  }
+  
+  /**
+   * Lets the transaction try again right away.
+   */
+  public void resetBackoff() {
+    retryDelay = 0;
+    nextRetry = 0;
+  }
+  
+  /**
+   * Remembers an instruction the transaction was sent, so it can be sent again if the transaction restarts.
+   * @param instruction the instruction
+   */
+  public void addIssued(Instruction instruction) {
+    issued.add(instruction);
+  }
+  
+  /**
+   * Marks an aborted transaction to restart once the given transaction has ended.
+   * @param lockHolder the transaction whose lock the transaction died for
+   */
+  public void restartAfter(Transaction lockHolder) {
+    restartAfter = lockHolder;
+  }
+  
+  /**
+   * @return true if the transaction is aborted but will restart
+   */
+  public boolean isRestartPending() {
+    return restartAfter != null;
+  }
+  
+  /**
+   * @return true if the transaction will restart and the lock holder it died for has
+   * released its locks, by committing or aborting
+   */
+  public boolean isDueForRestart() {
+    return restartAfter != null && (restartAfter.getState().equals("aborted") ||
+        restartAfter.isEnded() && !restartAfter.getState().equals("prepared"));
+  }
+  
+  /**
+   * Keeps an instruction sent while the transaction waits to restart.
+   * @param instruction the instruction
+   */
+  public void hold(Instruction instruction) {
+    held.add(instruction);
+  }
+  
+  /**
+   * Keeps the end of the transaction until it has restarted and replayed its instructions.
+   */
+  public void holdEnd() {
+    endHeld = true;
+  }
+  
+  /**
+   * @return true if the transaction ended while it waited to restart
+   */
+  public boolean isEndHeld() {
+    return endHeld;
+  }
+
+  /**
+   * @return true if the transaction restarted but waited before it had replayed all of
+   * its instructions, so it still holds the rest of them
+   */
+  public boolean isReplayPending() {
+    return restartAfter == null && (!held.isEmpty() || endHeld);
+  }
+
+  /**
+   * Hands back the instructions held for a replay, to be sent again in order.
+   * @return the held instructions
+   */
+  public List<Instruction> resume() {
+    List<Instruction> replay = held;
+    held = new ArrayList<Instruction>();
+    endHeld = false;
+    return replay;
+  }
+  
+  /**
+   * @return how many instructions the transaction was sent before it aborted
+   */
+  public int getIssuedCount() {
+    return issued.size();
+  }
+  
+  /**
+   * Starts the transaction over with the same start time. It forgets its instructions
+   * and must be sent the returned instructions again.
+   * @return the instructions it was sent before it aborted and while it waited, in order
+   */
+  public List<Instruction> restart() {
+    List<Instruction> replay = new ArrayList<Instruction>(issued);
+    replay.addAll(held);
+    instructions = new ArrayList<Instruction>();
+    issued = new ArrayList<Instruction>();
+    held = new ArrayList<Instruction>();
+    restartAfter = null;
+    endHeld = false;
+    clearLeases();
+    restarts++;
+    setState("ready");
+    resetBackoff();
+    return replay;
+  }
+  
+  /**
+   * @return how many times the transaction restarted
+   */
+  public int getRestarts() {
+    return restarts;
+  }
+  
+  /**
+   * Marks that the script ended the transaction.
+   */
+  public void end() {
+    ended = true;
+  }
+  
+  /**
+   * @return true if the script ended the transaction
+   */
+  public boolean isEnded() {
+    return ended;
+  }
+  
+  /**
+   * Gives an update transaction a new snapshot under snapshot isolation. It forgets
+   * the values of an earlier snapshot and the conflicts found with it.
+   * @param commits the number of commits the snapshot holds
+   */
+  void takeSnapshot(long commits) {
+    snapshotIsolated = true;
+    snapshotCommits = commits;
+    databaseSnapshot = new Integer[databaseSnapshot.length];
+    inConflict = false;
+    outConflict = false;
+  }
+  
+  /**
+   * @return true if the transaction is an update transaction that reads from a snapshot
+   */
+  public boolean isSnapshotIsolated() {
+    return snapshotIsolated;
+  }
+  
+  /**
+   * @return the number of commits the transaction's snapshot holds
+   */
+  long getSnapshotCommits() {
+    return snapshotCommits;
+  }
+  
+  /**
+   * @param commitSequence the number of commits up to and including the transaction's
+   */
+  void setCommitSequence(long commitSequence) {
+    this.commitSequence = commitSequence;
+  }
+  
+  /**
+   * @return the number of commits up to and including the transaction's, or 0 if it
+   * has not committed
+   */
+  long getCommitSequence() {
+    return commitSequence;
+  }
+  
+  /**
+   * Records a read-write antidependency into the transaction: a concurrent
+   * transaction read a value this one wrote over.
+   */
+  void setInConflict() {
+    inConflict = true;
+  }
+  
+  /**
+   * Records a read-write antidependency out of the transaction: it read a value a
+   * concurrent transaction wrote over.
+   */
+  void setOutConflict() {
+    outConflict = true;
+  }
+  
+  /**
+   * @return true if the transaction has read-write antidependencies both into and
+   * out of it, so it may close a cycle that no serial order has
+   */
+  boolean isPivot() {
+    return inConflict && outConflict;
+  }
+  
+  /**
+   * Records that a site granted the transaction a lock. Only the first lock at a site
+   * counts, since the site forgets all of them together when it fails.
+   * @param siteID the id of the site
+   * @param incarnation how many times the site had failed when it granted the lock
+   */
+  synchronized void lease(int siteID, int incarnation) {
+    if (!leases.containsKey(siteID)) {
+      leases.put(siteID, incarnation);
+    }
+  }
+
+  /**
+   * @return the incarnation of each site the transaction holds locks at, by site id
+   */
+  synchronized Map<Integer, Integer> getLeases() {
+    return new HashMap<Integer, Integer>(leases);
+  }
+
+  /**
+   * Forgets the sites the transaction held locks at, once it released them.
+   */
+  synchronized void clearLeases() {
+    leases.clear();
+  }
+
+  /**
+   * Sets the priority class the sites serve the transaction in when it waits for a lock.
+   * @param priority critical, normal or batch
+   */
+  public void setPriority(String priority) {
+    rankOf(priority);
+    this.priority = priority;
+  }
+
+  /**
+   * @return critical, normal or batch
+   */
+  public String getPriority() {
+    return priority;
+  }
+
+  /**
+   * @return 0 for critical, 1 for normal and 2 for batch transactions
+   */
+  int getPriorityRank() {
+    return rankOf(priority);
+  }
+
+  /**
+   * @param priority critical, normal or batch
+   * @return the rank of the priority class, lowest first
+   */
+  static int rankOf(String priority) {
+    if (priority.equals("critical")) {
+      return 0;
+    } else if (priority.equals("normal")) {
+      return 1;
+    } else if (priority.equals("batch")) {
+      return 2;
+    }
+    throw new IllegalArgumentException("Unknown priority class " + priority);
+  }
+
+  /**
+   * Remembers when the transaction began to wait for a lock.
+   */
+  synchronized void startWaiting() {
+    waitingSince = System.nanoTime();
+  }
+
+  /**
+   * Called when the transaction gets a lock or reads.
+   * @return how many nanoseconds it waited for it, or 0 if it did not wait
+   */
+  synchronized long stopWaiting() {
+    if (waitingSince == 0) {
+      return 0;
+    }
+    long waited = System.nanoTime() - waitingSince;
+    waitingSince = 0;
+    return waited;
+  }
+
+  /**
+   * Keeps the commit event of a transaction that waits in a commit group, so the event
+   * lasts until the group's decision arrives.
+   * @param commitEvent the event begun when the transaction ended
+   */
+  void setCommitEvent(FlightEvents.Commit commitEvent) {
+    this.commitEvent = commitEvent;
+  }
+
+  /**
+   * @return the commit event kept for the transaction, or null if there is none
+   */
+  FlightEvents.Commit takeCommitEvent() {
+    FlightEvents.Commit event = commitEvent;
+    commitEvent = null;
+    return event;
+  }
+
   /**
    * Author: Darren
    * Determines if two objects are equal
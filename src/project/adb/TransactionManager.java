@@ -1,15 +1,22 @@
 package project.adb;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 /**
- * A singleton class to hold the instance of the transaction manager.
- * This class manages which sites to contact and lock given an instruction.
- * It maintains a linked list of all the transactions.
+ * This class is a coordinator: it manages which sites to contact and lock given an
+ * instruction, for the transactions whose ids the cluster routes to it.
+ * It maintains a linked list of its transactions.
  * 
  * @author Darren Levy
  * @author Viswanath Kammula
@@ -17,28 +24,372 @@ import java.util.Set;
  */
 public class TransactionManager {
 	 
-  private static final TransactionManager INSTANCE = 
-      new TransactionManager();
-  private Outputter output = Outputter.getInstance();
+  private Cluster cluster;
+  private int id;
+  private Outputter output;
   private LinkedList<Transaction> transactions = new LinkedList<Transaction>();
-  private Site[] sites = new Site[11];
+  private Placement placement;
+  private Site[] sites;
+  private String clockMode = "script";
+  private HybridClock clock = null;
+  private String readPolicy = "first";
+  private int nextReadSite = 1;
+  private Random random = new Random(42);
+  private String replication = "available-copies";
+  private Integer readQuorum = null;
+  private Integer writeQuorum = null;
+  private int committedCount = 0;
+  private int abortedCount = 0;
+  private String commitProtocol = "direct";
+  private List<Transaction> commitGroup = new ArrayList<Transaction>();
+  private List<String> coordinatorLog = new ArrayList<String>();
+  private Map<Integer, Boolean> decisions = new HashMap<Integer, Boolean>();
+  private Map<Integer, Set<Integer>> unacknowledged = new HashMap<Integer, Set<Integer>>();
+  private Map<Integer, Map<Integer, List<int[]>>> preparedWrites = new HashMap<Integer, Map<Integer, List<int[]>>>();
+  private boolean coordinatorFailing = false;
+  private boolean coordinatorDown = false;
+  private int commitGroups = 0;
+  private int commitMessages = 0;
+  private long commitNanos = 0;
+  private static final int DUMP_PAGE = 1024;
+  private static final int MAX_RETRY_DELAY = 32;
+  private String retry = "immediate";
+  private int retries = 0;
+  private int retriesPutOff = 0;
+  private int restartBudget = 0;
+  private int restartCount = 0;
+  private int replayedInstructions = 0;
+  private int outOfRestarts = 0;
+  private String isolation = "2pl";
+  private int leaseAborts = 0;
+  
   /**
-   * This private constructor populates the transaction manager's sites.
-   * Author: Darren
+   * Creates a coordinator of the given cluster. It uses the cluster's sites.
+   * @param cluster the cluster the coordinator belongs to
+   * @param id the id of the coordinator within the cluster
+   * @param output where the coordinator writes its output
+   */
+  TransactionManager(Cluster cluster, int id, Outputter output) {
+    this.cluster = cluster;
+    this.id = id;
+    this.output = output;
+    useSites(cluster.getPlacement(), cluster.getSites());
+  }
+  
+  /**
+   * Points the coordinator to the cluster's sites after they are created again.
+   * @param placement where each index is placed
+   * @param sites the sites, indexed by id
+   */
+  void useSites(Placement placement, Site[] sites) {
+    this.placement = placement;
+    this.sites = sites;
+  }
+  
+  /**
+   * Copies the settings of another coordinator, so that the coordinators
+   * of a cluster all behave alike.
+   * @param other the coordinator to copy
+   */
+  void copySettingsFrom(TransactionManager other) {
+    setClock(other.clockMode);
+    readPolicy = other.readPolicy;
+    replication = other.replication;
+    readQuorum = other.readQuorum;
+    writeQuorum = other.writeQuorum;
+    commitProtocol = other.commitProtocol;
+    retry = other.retry;
+    restartBudget = other.restartBudget;
+    isolation = other.isolation;
+  }
+  
+  /**
+   * Sets how many times a transaction that wait-die aborts restarts on its own. A
+   * restarted transaction keeps its start time, so it gets older each time and at last
+   * wins its locks.
+   * @param restartBudget the most restarts of each transaction, 0 to never restart
    */
-  private TransactionManager(){
-    for (int i = 0; i < sites.length; i++) {
-      sites[i] = new Site(i);
+  public void setRestarts(int restartBudget) {
+    if (restartBudget < 0) {
+      throw new IllegalArgumentException("The number of restarts cannot be negative");
     }
+    this.restartBudget = restartBudget;
   }
   
   /**
-   * This is part of a singleton implementation.
-   * Author: Darren
-   * @return the instance of the transaction manager
+   * Sets where the timestamps of transactions and instructions come from. "script"
+   * uses the line of the script, so transactions that begin on the same line are as
+   * old as each other. "counter" and "hybrid" give every timestamp its own value
+   * from a clock of this coordinator: a counter, or a hybrid logical clock that
+   * follows the wall clock for clients that are not scripts.
+   * @param clockMode script, counter or hybrid
+   */
+  public void setClock(String clockMode) {
+    if (clockMode.equals("script")) {
+      clock = null;
+    } else if (clockMode.equals("counter") || clockMode.equals("hybrid")) {
+      clock = new HybridClock(id, clockMode.equals("hybrid"));
+    } else {
+      throw new IllegalArgumentException("Unknown clock: " + clockMode);
+    }
+    this.clockMode = clockMode;
+  }
+  
+  /**
+   * @return a timestamp for a transaction of this coordinator that begins or
+   * sends an instruction now
+   */
+  public long timestamp() {
+    if (clock == null) {
+      return cluster.getOracle().now();
+    }
+    return clock.next();
+  }
+  
+  /**
+   * Lets the clock of this coordinator receive a timestamp of another coordinator.
+   * @param timestamp the timestamp
+   */
+  public void receive(long timestamp) {
+    if (clock != null) {
+      clock.receive(timestamp);
+    }
+  }
+  
+  /**
+   * Tells the other coordinators that a transaction committed. Its writes reach them
+   * through the sites, so their clocks receive its latest timestamp, and every
+   * transaction that could have seen the writes is younger than it.
+   */
+  private void announceCommit(Transaction transaction) {
+    if (clock == null) {
+      return;
+    }
+    long latest = transaction.getStartTime();
+    for (Instruction instruction : transaction.getInstructions()) {
+      latest = Math.max(latest, instruction.getTimestamp());
+    }
+    for (TransactionManager coordinator : cluster.getCoordinators()) {
+      if (coordinator != this) {
+        coordinator.receive(latest);
+      }
+    }
+  }
+  
+  /**
+   * Sets how update transactions are isolated. "2pl" read locks what they read, so
+   * readers and writers wait for each other. "si" gives each one a snapshot when it
+   * begins, like a read-only transaction. It reads the snapshot or its own writes without
+   * locks, still write locks what it writes, and aborts if a transaction that committed
+   * after its snapshot wrote an index it writes. "ssi" also aborts transactions whose
+   * read-write conflicts could make the outcome differ from every serial order.
+   * Read-only transactions always read their snapshot.
+   * @param isolation one of 2pl, si or ssi
+   */
+  public void setIsolation(String isolation) {
+    if (!isolation.equals("2pl") && !isolation.equals("si") && !isolation.equals("ssi")) {
+      throw new IllegalArgumentException("Unknown isolation: " + isolation);
+    }
+    this.isolation = isolation;
+  }
+  
+  /**
+   * @return how update transactions are isolated: 2pl, si or ssi
+   */
+  public String getIsolation() {
+    return isolation;
+  }
+  
+  /**
+   * Sets how a transaction's writes are committed. "direct" applies the writes to
+   * every site holding the transaction's write locks when it ends. "two-phase" runs
+   * two-phase commit: the transactions that end during the same script line form a
+   * commit group, and each site gets one prepare message and one decision message
+   * for the whole group.
+   * @param commitProtocol either direct or two-phase
+   */
+  public void setCommitProtocol(String commitProtocol) {
+    if (!commitProtocol.equals("direct") && !commitProtocol.equals("two-phase")) {
+      throw new IllegalArgumentException("Unknown commit protocol: " + commitProtocol);
+    }
+    this.commitProtocol = commitProtocol;
+  }
+  
+  /**
+   * Sets when a transaction that found no ready site tries again. "immediate" tries
+   * every time waiting transactions are checked. "exponential" tries after one line,
+   * then waits twice as many lines after each failed try, up to 32 lines. A site
+   * recovering lets every such transaction try again right away.
+   * @param retry either immediate or exponential
+   */
+  public void setRetry(String retry) {
+    if (!retry.equals("immediate") && !retry.equals("exponential")) {
+      throw new IllegalArgumentException("Unknown retry policy: " + retry);
+    }
+    this.retry = retry;
+  }
+  
+  /**
+   * Sets how the copy of a replicated index is chosen for a read.
+   * "first" reads the lowest numbered ready site, "round-robin" rotates through
+   * the ready sites, "least-loaded" reads the site with the fewest locks held and
+   * "two-choices" samples two different ready sites and reads the less loaded one.
+   * @param readPolicy one of first, round-robin, least-loaded or two-choices
+   */
+  public void setReadPolicy(String readPolicy) {
+    if (!readPolicy.equals("first") && !readPolicy.equals("round-robin") &&
+        !readPolicy.equals("least-loaded") && !readPolicy.equals("two-choices")) {
+      throw new IllegalArgumentException("Unknown read policy: " + readPolicy);
+    }
+    this.readPolicy = readPolicy;
+  }
+  
+  /**
+   * Sets the replication scheme for replicated indexes. "available-copies" reads
+   * one copy and writes every ready copy. "quorum" writes a write quorum and reads
+   * the freshest version out of a read quorum, so a single site failure does not
+   * abort the transactions that used it.
+   * @param replication either available-copies or quorum
    */
-  public static TransactionManager getInstance() {
-    return INSTANCE;
+  public void setReplication(String replication) {
+    if (!replication.equals("available-copies") && !replication.equals("quorum")) {
+      throw new IllegalArgumentException("Unknown replication scheme: " + replication);
+    }
+    this.replication = replication;
+  }
+  
+  /**
+   * Sets the number of copies a quorum read must read.
+   * @param readQuorum the read quorum R, with R + W greater than the number of copies
+   */
+  public void setReadQuorum(int readQuorum) {
+    if (readQuorum < 1) {
+      throw new IllegalArgumentException("Invalid read quorum: " + readQuorum);
+    }
+    this.readQuorum = readQuorum;
+  }
+  
+  /**
+   * Sets the number of copies a quorum write must lock and commit to.
+   * @param writeQuorum the write quorum W, a majority of the copies
+   */
+  public void setWriteQuorum(int writeQuorum) {
+    if (writeQuorum < 1) {
+      throw new IllegalArgumentException("Invalid write quorum: " + writeQuorum);
+    }
+    this.writeQuorum = writeQuorum;
+  }
+  
+  /**
+   * @param index the replicated index
+   * @return the write quorum, a majority of the copies of the index unless it was set
+   */
+  private int getWriteQuorum(int index) {
+    int copies = placement.getSites(index).size();
+    if (writeQuorum != null) {
+      if (writeQuorum <= copies / 2 || writeQuorum > copies) {
+        throw new IllegalStateException("Write quorum " + writeQuorum + " is not a majority of the " +
+            copies + " copies of index " + index);
+      }
+      return writeQuorum;
+    } else if (readQuorum != null) {
+      return Math.min(copies, Math.max(copies / 2 + 1, copies - readQuorum + 1));
+    }
+    return copies / 2 + 1;
+  }
+  
+  /**
+   * @param index the replicated index
+   * @return the read quorum, the smallest one that overlaps every write quorum unless it was set
+   */
+  private int getReadQuorum(int index) {
+    int copies = placement.getSites(index).size();
+    if (readQuorum != null) {
+      if (readQuorum > copies || readQuorum + getWriteQuorum(index) <= copies) {
+        throw new IllegalStateException("Read quorum " + readQuorum + " does not overlap the write quorum of the " +
+            copies + " copies of index " + index);
+      }
+      return readQuorum;
+    }
+    return copies - getWriteQuorum(index) + 1;
+  }
+  
+  /**
+   * @param index the index to check
+   * @return true if the index is replicated and handled by quorums
+   */
+  private boolean usesQuorum(int index) {
+    return replication.equals("quorum") && placement.isReplicated(index);
+  }
+  
+  /**
+   * @param index the index to look up
+   * @return the sites holding a copy of the index
+   */
+  private List<Site> sitesHolding(int index) {
+    List<Site> holding = new ArrayList<Site>();
+    for (int siteID : placement.getSites(index)) {
+      holding.add(sites[siteID]);
+    }
+    return holding;
+  }
+  
+  /**
+   * Chooses which copy of a replicated index to read according to the read policy.
+   * Only sites that are up and whose copy is ready to be read are considered.
+   * @param index the replicated index to read
+   * @return the site to read from, or null if no copy can be read
+   */
+  private Site chooseReadSite(int index) {
+    List<Site> candidates = new ArrayList<Site>();
+    for (Site site : sitesHolding(index)) {
+      if (site.getState().equals("ready") && site.isReadyToBeRead(index)) {
+        candidates.add(site);
+      }
+    }
+    if (candidates.isEmpty()) {
+      return null;
+    }
+    if (readPolicy.equals("round-robin")) {
+      for (Site site : candidates) {
+        if (site.getID() >= nextReadSite) {
+          nextReadSite = site.getID() % placement.getSiteCount() + 1;
+          return site;
+        }
+      }
+      nextReadSite = candidates.get(0).getID() % placement.getSiteCount() + 1;
+      return candidates.get(0);
+    } else if (readPolicy.equals("least-loaded")) {
+      Site leastLoaded = candidates.get(0);
+      for (Site site : candidates) {
+        if (isLessLoaded(site, leastLoaded)) {
+          leastLoaded = site;
+        }
+      }
+      return leastLoaded;
+    } else if (readPolicy.equals("two-choices") && candidates.size() > 1) {
+      int firstIndex = random.nextInt(candidates.size());
+      int secondIndex = random.nextInt(candidates.size() - 1);
+      if (secondIndex >= firstIndex) {
+        secondIndex++;
+      }
+      Site first = candidates.get(firstIndex);
+      Site second = candidates.get(secondIndex);
+      return isLessLoaded(second, first) ? second : first;
+    }
+    return candidates.get(0);
+  }
+  
+  /**
+   * Compares the load of two sites by the locks they hold, breaking ties by
+   * the reads they have served so far.
+   * @return true if site a is less loaded than site b
+   */
+  private boolean isLessLoaded(Site a, Site b) {
+    if (a.getLockCount() != b.getLockCount()) {
+      return a.getLockCount() < b.getLockCount();
+    }
+    return a.getReadCount() < b.getReadCount();
   }
   
   /**
@@ -72,20 +423,102 @@ public class TransactionManager {
    * @param transaction the transaction to abort
    */
   private void abort(Transaction transaction, String reason) {
+    abortedCount++;
+    stop(transaction, reason);
+  }
+  
+  /**
+   * Aborts a transaction that wait-die does not let wait for an older lock holder.
+   * While the transaction has restarts left, it restarts once the lock holder has ended
+   * instead of staying aborted.
+   * @param transaction the younger transaction
+   * @param lockHolder the older transaction holding the lock
+   */
+  private void die(Transaction transaction, Transaction lockHolder) {
+    String reason = "Transaction " + transaction.getID() + " is younger than " + lockHolder.getID();
+    FlightEvents.waitDie(transaction, lockHolder, transaction.getRestarts() < restartBudget);
+    if (transaction.getRestarts() < restartBudget) {
+      stop(transaction, reason);
+      transaction.restartAfter(lockHolder);
+      if(output.isVerbose()) {
+        output.addOutput("Transaction " + transaction.getID() + " restarts once transaction " +
+            lockHolder.getID() + " ends");
+      }
+    } else {
+      if (restartBudget > 0) {
+        outOfRestarts++;
+      }
+      abort(transaction, reason);
+    }
+  }
+  
+  /**
+   * Starts a transaction over after wait-die aborted it. It keeps its start time and is
+   * sent again the instructions it had been sent, and its end if it had ended.
+   * @param transaction the transaction to restart
+   */
+  private void restart(Transaction transaction) {
+    boolean ended = transaction.isEndHeld();
+    int wasted = transaction.getIssuedCount();
+    List<Instruction> replay = transaction.restart();
+    if (transaction.isSnapshotIsolated()) {
+      takeSnapshot(transaction);
+    }
+    restartCount++;
+    replayedInstructions += wasted;
+    if(output.isVerbose()) {
+      output.addOutput("Transaction " + transaction.getID() + " restarts with start time " +
+          transaction.getStartTime() + " and replays " + replay.size() + " instruction(s)");
+    }
+    replay(transaction, replay, ended);
+  }
+  
+  /**
+   * Sends a restarted transaction its instructions again one at a time, as its client
+   * would. If one of them makes it wait, the transaction holds the rest, and its end,
+   * until it is ready again, so it never waits at one site for an instruction while
+   * it locks for the next one.
+   * @param transaction the restarted transaction
+   * @param replay the instructions to send again, in order
+   * @param ended true if the transaction ended before it restarted
+   */
+  private void replay(Transaction transaction, List<Instruction> replay, boolean ended) {
+    for (Instruction instruction : replay) {
+      if (waitsInReplay(transaction)) {
+        transaction.hold(instruction);
+      } else {
+        intake(instruction, transaction.getID());
+      }
+    }
+    if (ended && waitsInReplay(transaction)) {
+      transaction.holdEnd();
+    } else if (ended) {
+      endTransaction(transaction.getID());
+    }
+  }
+  
+  /**
+   * @return true if a replaying transaction must hold its next instruction
+   */
+  private boolean waitsInReplay(Transaction transaction) {
+    String state = transaction.getState();
+    return transaction.isReplayPending() || !state.equals("ready") && !state.equals("aborted");
+  }
+  
+  /**
+   * Stops a transaction and releases everything it holds at the sites.
+   */
+  private void stop(Transaction transaction, String reason) {
+    FlightEvents.abort(transaction, reason);
     transaction.setState("aborted");
-    for (int i = 1; i < 11; i++){
+    if (transaction.isSnapshotIsolated()) {
+      cluster.getSnapshots().finish(transaction);
+    }
+    for (int i = 1; i < sites.length; i++){
       sites[i].removeWaitingTransaction(transaction);
-      Transaction[] writeLockTable = sites[i].getWriteLockTable();
-      List<ArrayList<Transaction>> readLockTable = sites[i].getReadLockTable();
-      for (int z = 1; z < 21; z++) {
-        if (writeLockTable[z] != null && writeLockTable[z].equals(transaction)) {
-          writeLockTable[z] = null;
-        }
-        if (readLockTable.get(z).contains(transaction)) {
-          readLockTable.get(z).remove(transaction);
-        } 
-      }
+      sites[i].releaseLocks(transaction);
     }
+    transaction.clearLeases();
     if(output.isVerbose()) {
       output.addOutput("Transaction " + transaction.getID() + " was aborted because " + reason + ".");
     }
@@ -96,39 +529,71 @@ public class TransactionManager {
    * Author: Darren and Viswanath
    */
   public void checkWaitingTransactions() {
+    if (cluster.detectsFailures()) {
+      for (Transaction transaction : transactions) {
+        abortsOnLostLocks(transaction, false);
+      }
+    }
     for (Transaction transaction : transactions) {
-      if (transaction.getState().equals("waiting")) {
+      if (transaction.isDueForRestart()) {
+        restart(transaction);
+      } else if (transaction.isReplayPending() && transaction.getState().equals("ready")) {
+        boolean ended = transaction.isEndHeld();
+        replay(transaction, transaction.resume(), ended);
+      } else if (transaction.getState().equals("waiting")) {
         if (transaction.getReadOnly()) {
           output.addOutput("Read-only transaction " + transaction.getID() + " is checking if missing index(es) are readable yet.");
           readonlySnap(transaction);
         }
       } else if (transaction.getState().equals("no-ready-site")) {
+        long now = cluster.getOracle().now();
+        if (retry.equals("exponential") && !transaction.isDueForRetry(now)) {
+          retriesPutOff++;
+          continue;
+        }
         if(output.isVerbose()) {
           output.addOutput("No site was up so transaction " + transaction.getID() +
               " tries again to dispatch instruction:\n" + transaction.getLastInstruction());
         }
+        retries++;
+        intake(transaction.getLastInstruction(), transaction.getID());
+        if (transaction.getState().equals("no-ready-site")) {
+          transaction.backOff(now, MAX_RETRY_DELAY);
+        } else {
+          transaction.resetBackoff();
+        }
+      } else if (transaction.getState().equals("waiting-for-quorum")) {
+        if(output.isVerbose()) {
+          output.addOutput("Transaction " + transaction.getID() +
+              " tries again to get a quorum for instruction:\n" + transaction.getLastInstruction());
+        }
+        intake(transaction.getLastInstruction(), transaction.getID());
+      } else if (transaction.getState().equals("waiting-for-locks")) {
+        if(output.isVerbose()) {
+          output.addOutput("Transaction " + transaction.getID() +
+              " tries again to lock the indexes of instruction:\n" + transaction.getLastInstruction());
+        }
         intake(transaction.getLastInstruction(), transaction.getID());
       }
     }
-    for (int i = 1; i < 11; i++) {
+    for (int i = 1; i < sites.length; i++) {
       sites[i].promoteWaitingTransactions();
-      Transaction[] writeLockTable = sites[i].getWriteLockTable();
-      List<ArrayList<Transaction>> readLockTable = sites[i].getReadLockTable();
       for (Transaction transaction : sites[i].getWaitingTransactions()) {
         transaction.setState("waiting");
         Instruction instruction = transaction.getLastInstruction();
         int index = instruction.getIndex();
-        if (writeLockTable[index] == null) {
-          for (Transaction lockHolder : readLockTable.get(index)) {
+        Transaction writer = sites[i].getWriteLockHolder(index);
+        if (writer == null) {
+          for (Transaction lockHolder : sites[i].getReadLockHolders(index)) {
             if (lockHolder.getStartTime() < transaction.getStartTime()) {
-              abort(transaction, "Transaction " + transaction.getID() + " is younger than " + lockHolder.getID());
+              die(transaction, lockHolder);
               break;
             }        
           }  
         } else {
-          Transaction lockHolder = writeLockTable[index];
+          Transaction lockHolder = writer;
           if (lockHolder.getStartTime() < transaction.getStartTime()) {
-            abort(transaction, "Transaction " + transaction.getID() + " is younger than " + lockHolder.getID());
+            die(transaction, lockHolder);
           }
         }
       }
@@ -137,21 +602,36 @@ public class TransactionManager {
   
   /**
    * This intake method is called when a transaction begins.
-   * If it is a read-only transaction, then a snapshot for that
-   * transaction is saved.
+   * If it is a read-only transaction, or an update transaction under snapshot
+   * isolation, then a snapshot for that transaction is saved.
    * Author: Darren and Viswanath
    * @param tID the id of the transaction
    * @param readOnly true if the transaction is read-only, false otherwise
    * @param timestamp the time the transaction begins
+   * @param priority the class the sites serve it in when it waits: critical, normal or batch
    */
-  public void intake(int tID, boolean readOnly, int timestamp) {
+  public void intake(int tID, boolean readOnly, long timestamp, String priority) {
     Transaction transaction = new Transaction(tID, readOnly, timestamp);
+    transaction.setPriority(priority);
     addTransaction(transaction);
+    FlightEvents.begin(transaction);
     if (readOnly) {
       readonlySnap(transaction);
+    } else if (!isolation.equals("2pl")) {
+      takeSnapshot(transaction);
     }
   }
   
+  /**
+   * Gives an update transaction its snapshot under snapshot isolation. An index with
+   * no readable copy is left out of the snapshot, and the transaction aborts if it reads it.
+   */
+  private void takeSnapshot(Transaction transaction) {
+    cluster.getSnapshots().begin(transaction);
+    readonlySnap(transaction);
+    transaction.setState("ready");
+  }
+  
   /**
    * This intake method is called when an instruction is either read or write
    * Author: Darren and Viswanath
@@ -160,30 +640,139 @@ public class TransactionManager {
    */
   public void intake(Instruction instruction, int tID) { 
     Transaction transaction = findTransactionBy(tID);
-    if (transaction.getState().equals("aborted")) {
+    if (transaction.isRestartPending() || transaction.isReplayPending()) {
+      transaction.hold(instruction);
+      if(output.isVerbose()) {
+        output.addOutput("Transaction " + tID + " keeps the instruction until it " +
+            (transaction.isRestartPending() ? "restarts." : "has replayed the ones before it."));
+      }
+    } else if (transaction.getState().equals("aborted")) {
       if(output.isVerbose()) {
         output.addOutput("This transaction was aborted already.");
       }
+    } else if (cluster.detectsFailures() && abortsOnLostLocks(transaction, true)) {
+      return;
     } else {
       if (!transaction.getState().equals("waiting") &&
-          !transaction.getState().equals("no-ready-site")) {
+          !transaction.getState().equals("no-ready-site") &&
+          !transaction.getState().equals("waiting-for-quorum") &&
+          !transaction.getState().equals("waiting-for-locks")) {
         transaction.addInstruction(instruction);
+        transaction.addIssued(instruction);
       }
-      if (transaction.getReadOnly()) {
-        Integer[] snapshot = transaction.getDatabaseSnapshot();
+      if (instruction.isBatch()) {
+        performBatch(instruction, transaction);
+      } else if (transaction.getReadOnly()) {
+        Integer value = transaction.getDatabaseSnapshotAtIndex(instruction.getIndex());
+        instruction.complete(value);
         if(output.isVerbose()) {
-         output.addOutput("" +snapshot[instruction.getIndex()]);
+         output.addValue(value);
          output.addOutput("Read-only transaction " + transaction.getID() + " reads value " + 
-             snapshot[instruction.getIndex()] + " at index " + instruction.getIndex());
+             value + " at index " + instruction.getIndex());
         }
+      } else if (transaction.isSnapshotIsolated() && instruction.getAction().equals("read")) {
+        performSnapshotRead(instruction, transaction);
+      } else if (transaction.isSnapshotIsolated() && abortsOnWriteConflict(transaction, instruction.getIndex())) {
+        return;
       } else {
         if (instruction.getAction().equals("read")) {
-         performRead(instruction, transaction);
+          if (usesQuorum(instruction.getIndex())) {
+            performQuorumRead(instruction, transaction);
+          } else {
+            performRead(instruction, transaction);
+          }
         } else {
-          performWrite(instruction, transaction);
+          if (usesQuorum(instruction.getIndex())) {
+            performQuorumWrite(instruction, transaction);
+          } else {
+            performWrite(instruction, transaction);
+          }
+        }
+      }
+    }
+  }
+  
+  /**
+   * Reads an index for an update transaction under snapshot isolation. It takes no
+   * read lock, so it neither waits for writers nor makes them wait.
+   * @param instruction the read instruction
+   * @param transaction the transaction that sent the instruction
+   */
+  private void performSnapshotRead(Instruction instruction, Transaction transaction) {
+    Integer value = readSnapshot(transaction, instruction.getIndex());
+    if (value == null) {
+      return;
+    }
+    instruction.complete(value);
+    output.addValue(value);
+    if(output.isVerbose()) {
+      output.addOutput("Transaction " + transaction.getID() + " reads value " + value +
+          " at index " + instruction.getIndex() + " from its snapshot");
+    }
+  }
+  
+  /**
+   * Finds the value a transaction under snapshot isolation reads: its own last write
+   * to the index, or else the value in its snapshot. Under serializable snapshot
+   * isolation the read is tracked for read-write conflicts.
+   * @return the value, or null if the transaction aborted
+   */
+  private Integer readSnapshot(Transaction transaction, int index) {
+    Integer value = null;
+    for (Instruction instruction : transaction.getInstructions()) {
+      if (instruction.getAction().equals("write") && instruction.getIndex() == index) {
+        value = instruction.getValue();
+      }
+    }
+    if (value != null) {
+      return value;
+    }
+    value = transaction.getDatabaseSnapshotAtIndex(index);
+    if (value == null) {
+      abort(transaction, "no copy of index " + index + " could be read when it took its snapshot");
+      return null;
+    }
+    if (isolation.equals("ssi")) {
+      Transaction lockHolder = null;
+      for (Site site : sitesHolding(index)) {
+        if (lockHolder == null && site.getState().equals("ready")) {
+          lockHolder = site.getWriteLockHolder(index);
         }
       }
+      String reason = cluster.getSnapshots().read(index, transaction, lockHolder);
+      if (reason != null) {
+        abort(transaction, reason);
+        return null;
+      }
+    }
+    return value;
+  }
+  
+  /**
+   * Aborts a transaction under snapshot isolation that writes an index another
+   * transaction committed after its snapshot, since it would lose at its commit anyway.
+   * @return true if the transaction aborted
+   */
+  private boolean abortsOnWriteConflict(Transaction transaction, int index) {
+    Transaction writer = cluster.getSnapshots().writtenSince(index, transaction);
+    if (writer == null) {
+      return false;
+    }
+    abort(transaction, cluster.getSnapshots().writeConflict(index, transaction, writer));
+    return true;
+  }
+  
+  /**
+   * @return the indexes a transaction writes
+   */
+  private Set<Integer> writtenIndexes(Transaction transaction) {
+    Set<Integer> written = new TreeSet<Integer>();
+    for (Instruction instruction : transaction.getInstructions()) {
+      if (instruction.getAction().equals("write")) {
+        written.add(instruction.getIndex());
+      }
     }
+    return written;
   }
   
   /**
@@ -194,25 +783,29 @@ public class TransactionManager {
   private void readonlySnap(Transaction transaction) {
     Boolean allSitesFail = true;
     transaction.setState("ready");
-	for(int i=1; i<21; i++) {
-	  if (transaction.getDatabaseSnapshot()[i] != null) {
+	for(int i=1; i<=placement.getIndexCount(); i++) {
+	  if (transaction.getDatabaseSnapshotAtIndex(i) != null) {
 	    continue;
 	  }
-	  if (transaction.getDatabaseSnapshot()[i] == null && transaction.getState() != "aborted") {	
-        if (i % 2 == 0) {
-	      for(int j=1; j<11; j++){
-		    Site site = sites[j];
-		    if(site.getState() == "ready" && site.isReadyToBeRead(i)) {
-			  transaction.setDatabaseSnapshotAtIndex(i, site.getValueAtIndex(i));
-			  allSitesFail = false;
-		  	  break;
-		    } 
-		  }
+	  if (transaction.getDatabaseSnapshotAtIndex(i) == null && transaction.getState() != "aborted") {	
+        if (usesQuorum(i)) {
+          Site site = freshestCopy(readQuorumSites(i, transaction), i);
+          if (site != null) {
+            transaction.setDatabaseSnapshotAtIndex(i, site.getValueAtIndex(i));
+          } else {
+            transaction.setState("waiting");
+          }
+        } else if (placement.isReplicated(i)) {
+          Site site = chooseReadSite(i);
+          if (site != null) {
+            transaction.setDatabaseSnapshotAtIndex(i, site.getValueAtIndex(i));
+            allSitesFail = false;
+          }
 	      if (allSitesFail) {
 	        transaction.setState("waiting");
 	      }
 	    } else {
-		  Site site = sites[(i % 10) + 1]; 
+		  Site site = sitesHolding(i).get(0); 
 		  if(site.getState() == "ready" && site.isReadyToBeRead(i)) {
 		    transaction.setDatabaseSnapshotAtIndex(i, site.getValueAtIndex(i));
 		  } else {
@@ -224,66 +817,244 @@ public class TransactionManager {
   }
  
   /**
-   * Performs the locks required to prepare the site(s) for a write.
-   * If the transaction cannot obtain the locks, it will wait or abort.
-   * Author: Darren and Viswanath
-   * @param instruction the write instruction
+   * Performs a multi-read, range-read or multi-write. The indexes are grouped by the
+   * site they are read from or written to, and each site locks its whole group in one
+   * pass and serves its reads in the same pass. If another transaction holds a
+   * conflicting lock at a site, that site grants nothing and wait-die decides against
+   * the holders: the transaction aborts if one of them is older, otherwise it keeps the
+   * locks it got and tries the whole instruction again when waiting transactions are checked.
+   * A read-only transaction, or a reading one under snapshot isolation, reads the
+   * indexes from its snapshot.
+   * @param instruction the batch instruction
    * @param transaction the transaction that gave the instruction
    */
-  private void performWrite(Instruction instruction, Transaction transaction) {
-    if (instruction.getIndex() % 2 == 0) {
-      int numberOfSitesDown = 0;
-      int skippedCount = 0;
-      for (int i = 1; i < 11; i++) {
-        boolean skip = false;
-        Site site = sites[i];
-        if (site.getState().equals("failed")) {
-          numberOfSitesDown++;
-          if (numberOfSitesDown == 10) {
-            transaction.setState("no-ready-site");
-          }
-          continue;
-        } 
-        List<Transaction> readLocks = site.getReadLockTable().get(instruction.getIndex());
-        if (readLocks.size() > 1 || (readLocks.size() == 1 && !readLocks.contains(transaction.getID()))) {
-          for (Transaction lockHolder : readLocks) {
-            if (lockHolder.equals(transaction)) {
-              continue;
-            }
-            if (lockHolder.getStartTime() >= transaction.getStartTime()) {
-              transaction.setState("waiting");
-              site.addWaitingTransaction(transaction);
-              output.addOutput("Transaction " + transaction.getID() + " waits because it is older than " + lockHolder.getID());
-              skip = true;
-            } else {
-              abort(transaction, "Transaction " + transaction.getID() + " is younger than " + lockHolder.getID());
-              break;
-            }        
-          }
+  private void performBatch(Instruction instruction, Transaction transaction) {
+    int[] indexes = instruction.getIndexes();
+    for (int index : indexes) {
+      if (index < 1 || index > placement.getIndexCount()) {
+        throw new IllegalArgumentException("There is no variable x" + index);
+      }
+    }
+    boolean write = instruction.getValues() != null;
+    if (write && transaction.getReadOnly()) {
+      throw new IllegalStateException("Read-only transaction " + transaction.getID() + " cannot write");
+    }
+    if (transaction.getReadOnly()) {
+      Integer[] results = new Integer[indexes.length];
+      for (int k = 0; k < indexes.length; k++) {
+        int index = indexes[k];
+        Integer value = transaction.getDatabaseSnapshotAtIndex(index);
+        results[k] = value;
+        output.addValue(value);
+        if(output.isVerbose()) {
+          output.addOutput("Read-only transaction " + transaction.getID() + " reads value " +
+              value + " at index " + index);
         }
-        if (skip) {
-          skippedCount++;
-          continue;
-        } else if (transaction.getState().equals("aborted")) {
+      }
+      instruction.complete(results);
+      return;
+    }
+    if (transaction.isSnapshotIsolated() && !write) {
+      Integer[] results = new Integer[indexes.length];
+      for (int k = 0; k < indexes.length; k++) {
+        Integer value = readSnapshot(transaction, indexes[k]);
+        if (value == null) {
           return;
-        } else if (site.getWriteLockTable()[instruction.getIndex()] != null &&
-            !site.getWriteLockTable()[instruction.getIndex()].equals(transaction)) {
-          Transaction lockHolder = site.getWriteLockTable()[instruction.getIndex()];
-          if (lockHolder.getStartTime() >= transaction.getStartTime()) {
-            transaction.setState("waiting");
-            site.addWaitingTransaction(transaction);
-            output.addOutput("Transaction " + transaction.getID() + " waits because it is older than " + lockHolder.getID() +
-                " on Site " + sites[i].getID());
-            skippedCount++;
-            continue;
-          } else {
-            abort(transaction, "Transaction " + transaction.getID() + " is younger than " + lockHolder.getID());
-            break;
+        }
+        results[k] = value;
+        output.addValue(value);
+        if(output.isVerbose()) {
+          output.addOutput("Transaction " + transaction.getID() + " reads value " + value +
+              " at index " + indexes[k] + " from its snapshot");
+        }
+      }
+      instruction.complete(results);
+      return;
+    }
+    for (int index : indexes) {
+      if (transaction.isSnapshotIsolated() && abortsOnWriteConflict(transaction, index)) {
+        return;
+      }
+    }
+    for (int index : indexes) {
+      if (usesQuorum(index)) {
+        throw new IllegalStateException("A " + instruction.getAction() +
+            " needs available copies replication, but index " + index + " uses quorums");
+      }
+    }
+    Map<Integer, Integer> ownWrites = new HashMap<Integer, Integer>();
+    for (Instruction earlier : transaction.getInstructions()) {
+      if (earlier.getAction().equals("write")) {
+        ownWrites.put(earlier.getIndex(), earlier.getValue());
+      }
+    }
+    TreeMap<Integer, List<Integer>> batches = new TreeMap<Integer, List<Integer>>();
+    Site[] readFrom = new Site[indexes.length];
+    for (int k = 0; k < indexes.length; k++) {
+      int index = indexes[k];
+      List<Site> targets = new ArrayList<Site>();
+      if (write) {
+        for (Site site : sitesHolding(index)) {
+          if (site.getState().equals("ready")) {
+            targets.add(site);
+          }
+        }
+      } else if (!ownWrites.containsKey(index)) {
+        Site site = placement.isReplicated(index) ? chooseReadSite(index) : sitesHolding(index).get(0);
+        if (site != null && site.getState().equals("ready") && site.isReadyToBeRead(index)) {
+          targets.add(site);
+          readFrom[k] = site;
+        }
+      } else {
+        continue;
+      }
+      if (targets.isEmpty()) {
+        transaction.setState("no-ready-site");
+        if(output.isVerbose()) {
+          output.addOutput("Transaction " + transaction.getID() + " is waiting for an available site for index " + index);
+        }
+        return;
+      }
+      for (Site site : targets) {
+        if (!batches.containsKey(site.getID())) {
+          batches.put(site.getID(), new ArrayList<Integer>());
+        }
+        batches.get(site.getID()).add(index);
+      }
+    }
+    Map<Integer, int[]> valuesRead = new HashMap<Integer, int[]>();
+    Set<Transaction> conflicts = new LinkedHashSet<Transaction>();
+    for (Map.Entry<Integer, List<Integer>> entry : batches.entrySet()) {
+      int[] batch = new int[entry.getValue().size()];
+      for (int k = 0; k < batch.length; k++) {
+        batch[k] = entry.getValue().get(k);
+      }
+      int[] readValues = new int[write ? 0 : batch.length];
+      List<Transaction> holders = write ? sites[entry.getKey()].lockBatch(new int[0], batch, transaction, readValues) :
+          sites[entry.getKey()].lockBatch(batch, new int[0], transaction, readValues);
+      conflicts.addAll(holders);
+      if (holders.isEmpty()) {
+        valuesRead.put(entry.getKey(), readValues);
+      }
+    }
+    if (!conflicts.isEmpty()) {
+      for (Transaction lockHolder : conflicts) {
+        if (lockHolder.getStartTime() < transaction.getStartTime()) {
+          die(transaction, lockHolder);
+          return;
+        }
+      }
+      transaction.setState("waiting-for-locks");
+      output.addOutput("Transaction " + transaction.getID() + " waits because it is older than " +
+          conflicts.iterator().next().getID());
+      return;
+    }
+    transaction.setState("ready");
+    if (write) {
+      for (Map.Entry<Integer, List<Integer>> entry : batches.entrySet()) {
+        for (int index : entry.getValue()) {
+          FlightEvents.lockGranted(transaction, index, entry.getKey());
+        }
+      }
+      for (int k = 0; k < indexes.length; k++) {
+        transaction.addInstruction(new Instruction("write", indexes[k], instruction.getValues()[k],
+            instruction.getTimestamp()));
+      }
+      if(output.isVerbose()) {
+        output.addOutput("Transaction " + transaction.getID() + " locked " + indexes.length +
+            " indexes on all available sites");
+      }
+      return;
+    }
+    Map<Integer, Integer> positions = new HashMap<Integer, Integer>();
+    Integer[] results = new Integer[indexes.length];
+    for (int k = 0; k < indexes.length; k++) {
+      int value;
+      String where = "";
+      if (readFrom[k] == null) {
+        value = ownWrites.get(indexes[k]);
+      } else {
+        int siteID = readFrom[k].getID();
+        int position = positions.containsKey(siteID) ? positions.get(siteID) : 0;
+        positions.put(siteID, position + 1);
+        value = valuesRead.get(siteID)[position];
+        where = " at Site " + siteID;
+        FlightEvents.read(transaction, indexes[k], siteID, value);
+      }
+      results[k] = value;
+      output.addValue(value);
+      if(output.isVerbose()) {
+        output.addOutput("Transaction " + transaction.getID() + " reads value " + value +
+            " at index " + indexes[k] + where);
+      }
+    }
+    instruction.complete(results);
+  }
+  
+  /**
+   * Performs the locks required to prepare the site(s) for a write.
+   * If the transaction cannot obtain the locks, it will wait or abort.
+   * Author: Darren and Viswanath
+   * @param instruction the write instruction
+   * @param transaction the transaction that gave the instruction
+   */
+  private void performWrite(Instruction instruction, Transaction transaction) {
+    if (placement.isReplicated(instruction.getIndex())) {
+      int numberOfSitesDown = 0;
+      int skippedCount = 0;
+      for (Site site : sitesHolding(instruction.getIndex())) {
+        boolean skip = false;
+        if (site.getState().equals("failed")) {
+          numberOfSitesDown++;
+          if (numberOfSitesDown == placement.getSites(instruction.getIndex()).size()) {
+            transaction.setState("no-ready-site");
+          }
+          continue;
+        } 
+        List<Transaction> readLocks = site.getReadLockHolders(instruction.getIndex());
+        if (readLocks.size() > 1 || (readLocks.size() == 1 && !readLocks.contains(transaction.getID()))) {
+          for (Transaction lockHolder : readLocks) {
+            if (lockHolder.equals(transaction)) {
+              continue;
+            }
+            if (lockHolder.getStartTime() >= transaction.getStartTime()) {
+              transaction.setState("waiting");
+              site.addWaitingTransaction(transaction);
+              FlightEvents.lockWait(transaction, instruction.getIndex(), site.getID(), "write", lockHolder);
+              output.addOutput("Transaction " + transaction.getID() + " waits because it is older than " + lockHolder.getID());
+              skip = true;
+            } else {
+              die(transaction, lockHolder);
+              break;
+            }        
+          }
+        }
+        if (transaction.getState().equals("aborted")) {
+          return;
+        } else if (skip) {
+          skippedCount++;
+          continue;
+        }
+        Transaction writer = site.getWriteLockHolder(instruction.getIndex());
+        if (writer != null && !writer.equals(transaction)) {
+          Transaction lockHolder = writer;
+          if (lockHolder.getStartTime() >= transaction.getStartTime()) {
+            transaction.setState("waiting");
+            site.addWaitingTransaction(transaction);
+            FlightEvents.lockWait(transaction, instruction.getIndex(), site.getID(), "write", lockHolder);
+            output.addOutput("Transaction " + transaction.getID() + " waits because it is older than " + lockHolder.getID() +
+                " on Site " + site.getID());
+            skippedCount++;
+            continue;
+          } else {
+            die(transaction, lockHolder);
+            return;
           }
         } else {
           transaction.setState("ready");
-          removeReadLocksAtIndexForSite(instruction.getIndex(), i);
+          removeReadLocksAtIndexForSite(instruction.getIndex(), site.getID());
           site.setWriteLockAtIndex(instruction.getIndex(), transaction);
+          FlightEvents.lockGranted(transaction, instruction.getIndex(), site.getID());
         }
       }
       if (skippedCount > 0) {
@@ -303,9 +1074,9 @@ public class TransactionManager {
         }
       } 
     } else {
-      int siteIndex = (instruction.getIndex() % 10) + 1;
-      Site site = sites[siteIndex];
-      List<Transaction> readLocks = site.getReadLockTable().get(instruction.getIndex());
+      Site site = sitesHolding(instruction.getIndex()).get(0);
+      int siteIndex = site.getID();
+      List<Transaction> readLocks = site.getReadLockHolders(instruction.getIndex());
       if (readLocks.size() > 1 || (readLocks.size() == 1 && !readLocks.contains(transaction.getID()))) {
         for (Transaction lockHolder : readLocks) {
           if (lockHolder.equals(transaction)) {
@@ -314,13 +1085,15 @@ public class TransactionManager {
           if (lockHolder.getStartTime() >= transaction.getStartTime()) {
             transaction.setState("waiting");
             site.addWaitingTransaction(transaction);
+            FlightEvents.lockWait(transaction, instruction.getIndex(), siteIndex, "write", lockHolder);
             output.addOutput("Transaction " + transaction.getID() + " waits because it is older than " + lockHolder.getID());
           } else {
-            abort(transaction, "Transaction " + transaction.getID() + " is younger than " + lockHolder.getID());
+            die(transaction, lockHolder);
             break;
           }        
         }
       }
+      Transaction writer = site.getWriteLockHolder(instruction.getIndex());
       if (transaction.getState().equals("aborted")) {
         transaction.setState("aborted");
         return;
@@ -328,19 +1101,20 @@ public class TransactionManager {
         transaction.setState("waiting");
       } else if (site.getState().equals("failed")){
         transaction.setState("no-ready-site");
-      } else if (site.getWriteLockTable()[instruction.getIndex()] != null &&
-          !site.getWriteLockTable()[instruction.getIndex()].equals(transaction)) {
-        Transaction lockHolder = site.getWriteLockTable()[instruction.getIndex()];
+      } else if (writer != null && !writer.equals(transaction)) {
+        Transaction lockHolder = writer;
         if (lockHolder.getStartTime() >= transaction.getStartTime()) {
           transaction.setState("waiting");
           site.addWaitingTransaction(transaction);
+          FlightEvents.lockWait(transaction, instruction.getIndex(), siteIndex, "write", lockHolder);
           output.addOutput("Transaction " + transaction.getID() + " waits because it is older than " + lockHolder.getID());
         } else {
-          abort(transaction, "Transaction " + transaction.getID() + " is younger than " + lockHolder.getID());
+          die(transaction, lockHolder);
         }        
       } else {
         transaction.setState("ready");
         site.setWriteLockAtIndex(instruction.getIndex(), transaction);
+        FlightEvents.lockGranted(transaction, instruction.getIndex(), siteIndex);
         removeReadLocksAtIndexForSite(instruction.getIndex(), site.getID());
         if(output.isVerbose()) {
           output.addOutput("Transaction " + transaction.getID() + " locked index " + 
@@ -355,6 +1129,240 @@ public class TransactionManager {
     }
   }
   
+  /**
+   * Finds the locks held by other transactions that keep the given transaction
+   * from write locking an index on a site.
+   * @return the conflicting lock holders, empty if the write lock can be granted
+   */
+  private List<Transaction> writeConflicts(Site site, int index, Transaction transaction) {
+    List<Transaction> conflicts = new ArrayList<Transaction>();
+    for (Transaction lockHolder : site.getReadLockHolders(index)) {
+      if (!lockHolder.equals(transaction)) {
+        conflicts.add(lockHolder);
+      }
+    }
+    Transaction writer = site.getWriteLockHolder(index);
+    if (writer != null && !writer.equals(transaction)) {
+      conflicts.add(writer);
+    }
+    return conflicts;
+  }
+  
+  /**
+   * Applies wait-die against the holders of conflicting locks. The transaction
+   * aborts if any of them is older, otherwise it waits to retry the quorum.
+   */
+  private void waitOrDie(Transaction transaction, List<Transaction> lockHolders) {
+    for (Transaction lockHolder : lockHolders) {
+      if (lockHolder.getStartTime() < transaction.getStartTime()) {
+        die(transaction, lockHolder);
+        return;
+      }
+    }
+    transaction.setState("waiting-for-quorum");
+    output.addOutput("Transaction " + transaction.getID() + " waits for a quorum because it is older than " +
+        lockHolders.get(0).getID());
+  }
+  
+  /**
+   * Write locks every ready copy that is not locked by another transaction,
+   * as long as that is at least a write quorum. Otherwise nothing is locked and
+   * the transaction waits or aborts.
+   * @param instruction the write instruction
+   * @param transaction the transaction that gave the instruction
+   */
+  private void performQuorumWrite(Instruction instruction, Transaction transaction) {
+    int index = instruction.getIndex();
+    int readySites = 0;
+    List<Site> freeSites = new ArrayList<Site>();
+    List<Transaction> lockHolders = new ArrayList<Transaction>();
+    for (Site site : sitesHolding(index)) {
+      if (site.getState().equals("failed")) {
+        continue;
+      }
+      readySites++;
+      List<Transaction> conflicts = writeConflicts(site, index, transaction);
+      if (conflicts.isEmpty()) {
+        freeSites.add(site);
+      } else {
+        lockHolders.addAll(conflicts);
+      }
+    }
+    if (readySites < getWriteQuorum(index)) {
+      transaction.setState("no-ready-site");
+      if(output.isVerbose()) {
+        output.addOutput("Transaction " + transaction.getID() + " is waiting for a write quorum of sites");
+      }
+    } else if (freeSites.size() >= getWriteQuorum(index)) {
+      for (Site site : freeSites) {
+        removeReadLocksAtIndexForSite(index, site.getID());
+        site.setWriteLockAtIndex(index, transaction);
+        FlightEvents.lockGranted(transaction, index, site.getID());
+      }
+      transaction.setState("ready");
+      if(output.isVerbose()) {
+        output.addOutput("Transaction " + transaction.getID() + " locked index " + index + 
+            " on " + freeSites.size() + " sites");
+      }
+    } else {
+      waitOrDie(transaction, lockHolders);
+    }
+  }
+  
+  /**
+   * Chooses a read quorum of ready copies of an index that are not write locked by
+   * another transaction. The starting site rotates so the quorums spread the reads.
+   * @param index the index to read
+   * @param transaction the transaction reading, or a read-only transaction
+   * @return a read quorum of sites, or fewer sites if no quorum is available
+   */
+  private List<Site> readQuorumSites(int index, Transaction transaction) {
+    List<Site> quorum = new ArrayList<Site>();
+    List<Site> copies = sitesHolding(index);
+    int start = nextReadSite;
+    nextReadSite = nextReadSite % placement.getSiteCount() + 1;
+    for (int n = 0; n < copies.size() && quorum.size() < getReadQuorum(index); n++) {
+      Site site = copies.get((start - 1 + n) % copies.size());
+      Transaction writer = site.getWriteLockHolder(index);
+      if (site.getState().equals("ready") &&
+          (transaction.getReadOnly() || writer == null || writer.equals(transaction))) {
+        quorum.add(site);
+      }
+    }
+    return quorum;
+  }
+  
+  /**
+   * @param quorum the sites read
+   * @param index the index read
+   * @return the site with the highest version of the index, or null if the quorum is short
+   */
+  private Site freshestCopy(List<Site> quorum, int index) {
+    if (quorum.size() < getReadQuorum(index)) {
+      return null;
+    }
+    Site freshest = quorum.get(0);
+    for (Site site : quorum) {
+      if (site.getVersionAtIndex(index) > freshest.getVersionAtIndex(index)) {
+        freshest = site;
+      }
+    }
+    return freshest;
+  }
+  
+  /**
+   * Reads the freshest version of a replicated index from a read quorum, read locking
+   * every copy in the quorum. A transaction that holds the write lock reads its own write.
+   * @param instruction the read instruction
+   * @param transaction the transaction that sent the instruction
+   */
+  private void performQuorumRead(Instruction instruction, Transaction transaction) {
+    int index = instruction.getIndex();
+    List<Site> ownLocks = writeLockedSites(index, transaction);
+    if (!ownLocks.isEmpty()) {
+      int value = ownLocks.get(0).readValueAtIndex(index, transaction);
+      instruction.complete(value);
+      output.addValue(value);
+      if(output.isVerbose()) {
+        output.addOutput("Transaction " + transaction.getID() + " reads its own write " + value + 
+            " at index " + index);
+      }
+      transaction.setState("ready");
+      return;
+    }
+    int readySites = 0;
+    List<Transaction> lockHolders = new ArrayList<Transaction>();
+    for (Site site : sitesHolding(index)) {
+      if (site.getState().equals("ready")) {
+        readySites++;
+        Transaction writer = site.getWriteLockHolder(index);
+        if (writer != null && !writer.equals(transaction)) {
+          lockHolders.add(writer);
+        }
+      }
+    }
+    List<Site> quorum = readQuorumSites(index, transaction);
+    Site freshest = freshestCopy(quorum, index);
+    if (readySites < getReadQuorum(index)) {
+      transaction.setState("no-ready-site");
+      if(output.isVerbose()) {
+        output.addOutput("Transaction " + transaction.getID() + " is waiting for a read quorum of sites");
+      }
+    } else if (freshest != null) {
+      int value = freshest.getCommittedValueAtIndex(index);
+      for (Site site : quorum) {
+        Integer read = site.readValueAtIndex(index, transaction);
+        if (site == freshest) {
+          value = read;
+        }
+      }
+      FlightEvents.read(transaction, index, freshest.getID(), value);
+      instruction.complete(value);
+      output.addValue(value);
+      if(output.isVerbose()) {
+        output.addOutput("Transaction " + transaction.getID() + " reads value " + value + 
+            " at index " + index + " at Site " + freshest.getID() +
+            " (version " + freshest.getVersionAtIndex(index) + ")");
+      }
+      transaction.setState("ready");
+    } else {
+      waitOrDie(transaction, lockHolders);
+    }
+  }
+  
+  /**
+   * When a site fails under quorum replication, a transaction that held locks on
+   * its copies of replicated indexes can move those locks to other ready copies
+   * instead of aborting, as long as it still holds its quorums afterwards.
+   * @param failedSite the site that is failing
+   * @param transaction a transaction holding locks on that site
+   * @return true if the transaction still holds its quorums without the site
+   */
+  private boolean keepsQuorumsWithout(Site failedSite, Transaction transaction) {
+    for (int index = 1; index <= placement.getIndexCount(); index++) {
+      boolean writeLocked = transaction.equals(failedSite.getWriteLockHolder(index));
+      boolean readLocked = failedSite.getReadLockHolders(index).contains(transaction);
+      if (!writeLocked && !readLocked) {
+        continue;
+      }
+      if (!usesQuorum(index)) {
+        return false;
+      }
+      int quorum = writeLocked ? getWriteQuorum(index) : getReadQuorum(index);
+      int held = 0;
+      for (Site site : sitesHolding(index)) {
+        if (site == failedSite || site.getState().equals("failed")) {
+          continue;
+        }
+        if (transaction.equals(site.getWriteLockHolder(index)) ||
+            (!writeLocked && site.getReadLockHolders(index).contains(transaction))) {
+          held++;
+        }
+      }
+      for (Site site : sitesHolding(index)) {
+        if (held >= quorum) {
+          break;
+        }
+        if (site == failedSite || site.getState().equals("failed")) {
+          continue;
+        }
+        Transaction writer = site.getWriteLockHolder(index);
+        if (writeLocked && writer == null && writeConflicts(site, index, transaction).isEmpty()) {
+          removeReadLocksAtIndexForSite(index, site.getID());
+          site.setWriteLockAtIndex(index, transaction);
+          held++;
+        } else if (!writeLocked && writer == null && !site.getReadLockHolders(index).contains(transaction)) {
+          site.addReadLockAtIndex(index, transaction);
+          held++;
+        }
+      }
+      if (held < quorum) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
   /**
    * Reads the value for the instruction if it can. It also obtains the locks
    * for the given index. If it can't get the lock, it will either wait
@@ -365,23 +1373,27 @@ public class TransactionManager {
    */
   private void performRead(Instruction instruction, Transaction transaction) {
     Site site = null;
-    if (instruction.getIndex() % 2 == 0) {
-      for (int i = 1; i < 21; i++) {
-        if (sites[i].getState().equals("ready") && sites[i].isReadyToBeRead(instruction.getIndex())) {
-          site = sites[i];
-          break;
+    if (placement.isReplicated(instruction.getIndex())) {
+      site = chooseReadSite(instruction.getIndex());
+      if (site == null) {
+        transaction.setState("no-ready-site");
+        if(output.isVerbose()) {
+          output.addOutput("Transaction " + transaction.getID() + " is waiting for an available site");
         }
+        return;
       }
     } else {
-      if (sites[(instruction.getIndex() % 10) + 1].isReadyToBeRead(instruction.getIndex())) {
-        site = sites[(instruction.getIndex() % 10) + 1];
+      if (sitesHolding(instruction.getIndex()).get(0).isReadyToBeRead(instruction.getIndex())) {
+        site = sitesHolding(instruction.getIndex()).get(0);
       }
     }
     if (site != null && site.getState().equals("ready")) {
-      Transaction lockHolder = site.getWriteLockTable()[instruction.getIndex()];
+      Transaction lockHolder = site.getWriteLockHolder(instruction.getIndex());
       if (lockHolder == null || lockHolder.getID() == transaction.getID()) {
         int value = site.readValueAtIndex(instruction.getIndex(), transaction);
-        output.addOutput("" +value);
+        FlightEvents.read(transaction, instruction.getIndex(), site.getID(), value);
+        instruction.complete(value);
+        output.addValue(value);
         if(output.isVerbose()) {
           output.addOutput("Transaction " + transaction.getID() + " reads value " + value + 
               " at index " + instruction.getIndex() + " at Site " + site.getID());
@@ -390,16 +1402,21 @@ public class TransactionManager {
       } else if (lockHolder.getStartTime() >= transaction.getStartTime()) {
         transaction.setState("waiting");
         site.addWaitingTransaction(transaction);
+        FlightEvents.lockWait(transaction, instruction.getIndex(), site.getID(), "read", lockHolder);
         output.addOutput("Transaction " + transaction.getID() + " waits because it is older than " + lockHolder.getID());
       } else {
-        abort(transaction, "Transaction " + transaction.getID() + " is younger than " + lockHolder.getID());
+        die(transaction, lockHolder);
       }  
     } else {
+      if (site == null) {
+        site = sitesHolding(instruction.getIndex()).get(0);
+      }
       transaction.setState("waiting");
       if(output.isVerbose()) {
         output.addOutput("Transaction " + transaction.getID() + " is waiting.");
       }
       site.addWaitingTransaction(transaction);
+      FlightEvents.lockWait(transaction, instruction.getIndex(), site.getID(), "read", null);
     }
   }
   
@@ -414,42 +1431,230 @@ public class TransactionManager {
   }
   
   /**
-   * When a site fails all transactions that have locks on its indexes
-   * must abort.
+   * When a site fails all transactions of this coordinator that have locks
+   * on its indexes must abort. The cluster fails the site afterwards.
    * Author: Darren
-   * @param siteID the id of the failed site
+   * @param site the failing site
    */
-  public void siteFail(int siteID) {
-    Site site = sites[siteID];
+  void abortTransactionsAt(Site site) {
+    int siteID = site.getID();
     Set<Integer> transactionWithLocks = new HashSet<Integer>();
-    for (Transaction transaction : site.getWriteLockTable()) {
-      if (transaction != null) {
-        transactionWithLocks.add(transaction.getID());
-      }
-    }
-    for (List<Transaction> list : site.getReadLockTable()) {
-      for (Transaction transaction : list) {
- 
-        if (transaction != null) {
-          transactionWithLocks.add(transaction.getID());
-        }
-      }
+    for (Transaction transaction : site.getLockHolders()) {
+      transactionWithLocks.add(transaction.getID());
     }
     for (Integer tID : transactionWithLocks) {
       Transaction transaction = findTransactionBy(tID);
+      if (transaction == null || transaction.getState().equals("prepared")) {
+        continue;
+      }
+      if (replication.equals("quorum") && keepsQuorumsWithout(site, transaction)) {
+        if(output.isVerbose()) {
+          output.addOutput("Transaction " + transaction.getID() + " keeps its quorums without site " + siteID);
+        }
+        continue;
+      }
       abort(transaction, "Transaction " + transaction.getID() + " held a lock on site " + siteID + " that just failed");
     }
-    site.fail();
   }
   
   /**
-   * Used to recover a site.
-   * Author: Darren
-   * @param siteID the id of the site to recover
+   * When the cluster finds failed sites with a failure detector, no one tells the
+   * coordinator which sites failed, so it does not abort transactions when a site
+   * fails. A transaction holds its locks at a site under a lease instead, which lasts
+   * while the site is trusted and its last heartbeat is recent. Once the lease at one
+   * of its sites expires, the coordinator gives up its locks there for lost and aborts
+   * it. A transaction that talks to the sites again also learns whether a site failed
+   * and recovered since it got its locks, which a lease does not always outlast.
+   * Prepared transactions keep their locks through a failure and are left alone.
+   * @param transaction the transaction to check
+   * @param talking true if the transaction is about to send the sites an instruction
+   * or its commit
+   * @return true if the transaction aborted
    */
-  public void siteRecover(int siteID) {
-    Site site = sites[siteID];
-    site.recover();
+  private boolean abortsOnLostLocks(Transaction transaction, boolean talking) {
+    String state = transaction.getState();
+    if (state.equals("aborted") || state.equals("prepared") || transaction.isRestartPending()) {
+      return false;
+    }
+    for (Map.Entry<Integer, Integer> lease : transaction.getLeases().entrySet()) {
+      int siteID = lease.getKey();
+      String reason = null;
+      if (!cluster.holdsLease(siteID)) {
+        reason = " held a lock on site " + siteID + " whose lease expired";
+      } else if (talking && sites[siteID].getIncarnation() != lease.getValue()) {
+        reason = " held a lock on site " + siteID + " that failed since";
+      }
+      if (reason != null) {
+        leaseAborts++;
+        abort(transaction, "Transaction " + transaction.getID() + reason);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return how many transactions aborted because they lost their locks at a site
+   * that a failure detector found
+   */
+  public int getLeaseAbortCount() {
+    return leaseAborts;
+  }
+
+  /**
+   * Called when a site recovers, so the transactions that found no ready site
+   * try again right away.
+   */
+  void resetRetries() {
+    for (Transaction transaction : transactions) {
+      if (transaction.getState().equals("no-ready-site")) {
+        transaction.resetBackoff();
+      }
+    }
+  }
+  
+  /**
+   * @param tID the id of a transaction of this coordinator
+   * @return the transaction, or null if it has not begun here
+   */
+  Transaction getTransaction(int tID) {
+    return findTransactionBy(tID);
+  }
+  
+  /**
+   * @param tID the id of a transaction of this coordinator
+   * @return true if the transaction aborted and will not restart
+   */
+  boolean isAborted(int tID) {
+    Transaction transaction = findTransactionBy(tID);
+    return transaction != null && transaction.getState().equals("aborted") && !transaction.isRestartPending();
+  }
+  
+  /**
+   * Called before a site recovers. While the coordinator is down, the transactions
+   * of this coordinator that are in doubt at the site take their write locks back.
+   * @param site the recovering site
+   * @param inDoubt the writes of the transactions prepared at the site
+   */
+  void relockInDoubt(Site site, Map<Integer, List<int[]>> inDoubt) {
+    if (!coordinatorDown) {
+      return;
+    }
+    for (Map.Entry<Integer, List<int[]>> entry : inDoubt.entrySet()) {
+      Transaction transaction = findTransactionBy(entry.getKey());
+      if (transaction == null) {
+        continue;
+      }
+      for (int[] write : entry.getValue()) {
+        site.setWriteLockAtIndex(write[0], transaction);
+      }
+      if(output.isVerbose()) {
+        output.addOutput("Transaction " + entry.getKey() + " is in doubt at site " + site.getID() +
+            " until the coordinator recovers");
+      }
+    }
+  }
+  
+  /**
+   * Called after a site recovers. Tells it the decisions for the transactions
+   * of this coordinator that are in doubt there.
+   * @param site the recovered site
+   * @param inDoubt the writes of the transactions prepared at the site
+   */
+  void resolveInDoubt(Site site, Map<Integer, List<int[]>> inDoubt) {
+    if (coordinatorDown) {
+      return;
+    }
+    for (Integer tID : inDoubt.keySet()) {
+      if (findTransactionBy(tID) == null) {
+        continue;
+      }
+      Map<Integer, Boolean> decision = new LinkedHashMap<Integer, Boolean>();
+      decision.put(tID, decisions.containsKey(tID) && decisions.get(tID));
+      site.decide(decision);
+      commitMessages++;
+      if(output.isVerbose()) {
+        output.addOutput("Site " + site.getID() + " learns that transaction " + tID +
+            (decision.get(tID) ? " committed" : " aborted"));
+      }
+      acknowledge(tID, site.getID());
+    }
+  }
+  
+  /**
+   * Makes the coordinator fail right after it logs the decisions of the next commit
+   * group, before any site hears them.
+   * @return false if the coordinator does not run two-phase commit, so it cannot fail
+   */
+  public boolean coordinatorFail() {
+    if (!commitProtocol.equals("two-phase")) {
+      return false;
+    }
+    coordinatorFailing = true;
+    return true;
+  }
+  
+  /**
+   * Recovers the coordinator from its log. Decisions that some site has not
+   * acknowledged are sent again, and commit groups that ended while the
+   * coordinator was down are committed.
+   */
+  public void coordinatorRecover() {
+    if (!coordinatorDown) {
+      return;
+    }
+    coordinatorDown = false;
+    decisions.clear();
+    unacknowledged.clear();
+    List<Integer> unfinished = new ArrayList<Integer>();
+    for (String record : coordinatorLog) {
+      String[] fields = record.split(" ");
+      int tID = Integer.parseInt(fields[1].substring(1));
+      if (fields[0].equals("end")) {
+        unfinished.remove(Integer.valueOf(tID));
+        unacknowledged.remove(tID);
+        continue;
+      }
+      decisions.put(tID, fields[0].equals("commit"));
+      Set<Integer> participants = new HashSet<Integer>();
+      for (int i = 4; i < fields.length; i++) {
+        participants.add(Integer.parseInt(fields[i]));
+      }
+      unacknowledged.put(tID, participants);
+      unfinished.add(tID);
+    }
+    if(output.isVerbose()) {
+      output.addOutput("The coordinator recovers and resends the decisions for transactions " + unfinished);
+    }
+    deliverDecisions(unfinished);
+    flushCommits();
+  }
+  
+  /**
+   * Records that a site applied the decision for a transaction. Once every
+   * participant has, the coordinator logs that the transaction ended.
+   */
+  private void acknowledge(int tID, int siteID) {
+    Set<Integer> waitingFor = unacknowledged.get(tID);
+    if (waitingFor != null && waitingFor.remove(siteID) && waitingFor.isEmpty()) {
+      unacknowledged.remove(tID);
+      coordinatorLog.add("end T" + tID);
+    }
+  }
+  
+  /**
+   * @param index the index locked
+   * @param transaction the transaction holding the write locks
+   * @return the ready sites where the transaction holds the write lock on the index
+   */
+  private List<Site> writeLockedSites(int index, Transaction transaction) {
+    List<Site> locked = new ArrayList<Site>();
+    for (Site site : sitesHolding(index)) {
+      if (site.getState().equals("ready") && transaction.equals(site.getWriteLockHolder(index))) {
+        locked.add(site);
+      }
+    }
+    return locked;
   }
   
   /**
@@ -459,35 +1664,296 @@ public class TransactionManager {
    * @param tID the id of the transaction to end.
    */
   public void endTransaction(int tID) {
+    long start = System.nanoTime();
+    FlightEvents.Commit commitEvent = FlightEvents.beginCommit();
     Transaction transaction = findTransactionBy(tID);
+    if (transaction.isRestartPending() || transaction.isReplayPending()) {
+      transaction.holdEnd();
+      if(output.isVerbose()) {
+        output.addOutput("Transaction " + tID + " ends once it has " +
+            (transaction.isRestartPending() ? "restarted" : "replayed its instructions"));
+      }
+      return;
+    }
+    transaction.end();
+    if (cluster.detectsFailures()) {
+      abortsOnLostLocks(transaction, true);
+    }
+    for (Instruction instruction : transaction.getInstructions()) {
+      if (transaction.getState().equals("ready") && instruction.getAction().equals("write") &&
+          usesQuorum(instruction.getIndex()) &&
+          writeLockedSites(instruction.getIndex(), transaction).size() < getWriteQuorum(instruction.getIndex())) {
+        abort(transaction, "Transaction " + tID + " lost its write quorum for index " + instruction.getIndex());
+      }
+    }
+    if (transaction.isSnapshotIsolated() && transaction.getState().equals("ready")) {
+      String reason = cluster.getSnapshots().validate(transaction, writtenIndexes(transaction), isolation.equals("ssi"));
+      if (reason != null) {
+        abort(transaction, reason);
+      }
+    }
+    if (commitProtocol.equals("two-phase") && transaction.getState().equals("ready")) {
+      transaction.setState("prepared");
+      transaction.setCommitEvent(commitEvent);
+      commitGroup.add(transaction);
+      if(output.isVerbose()) {
+        output.addOutput("Transaction " + tID + " joins the commit group");
+      }
+      return;
+    }
+    boolean committed = transaction.getState().equals("ready");
+    Map<Integer, List<int[]>> writes = null;
+    if (committed) {
+      printCommittedWrites(transaction);
+      writes = commitDirectly(transaction);
+      committed = transaction.getState().equals("ready");
+    }
+    if (committed) {
+      committedCount++;
+      FlightEvents.commit(commitEvent, transaction, commitProtocol);
+      announceCommit(transaction);
+      publishChanges(transaction, writes);
+      if (transaction.isSnapshotIsolated()) {
+        cluster.getSnapshots().commit(transaction, writtenIndexes(transaction));
+      }
+    }
+    for (int i = 1; i < sites.length; i++){
+      sites[i].releaseLocks(transaction);
+      sites[i].promoteWaitingTransactions();
+    }
+    transaction.clearLeases();
+    if (committed) {
+      commitGroups++;
+      commitNanos += System.nanoTime() - start;
+    }
+  }
+  
+  /**
+   * Writes a line for each write of a committing transaction.
+   */
+  private void printCommittedWrites(Transaction transaction) {
     for (Instruction instruction : transaction.getInstructions()) {
-      if (transaction.getState().equals("ready") && instruction.getAction().equals("write")) {
+      if (instruction.getAction().equals("write")) {
         if(output.isVerbose()) {
-          output.addOutput("Transaction " + tID + " commits write " + instruction.getValue()
+          output.addOutput("Transaction " + transaction.getID() + " commits write " + instruction.getValue()
               + " to index " + instruction.getIndex() + " to site(s)");
         }
-        for (Site site : sites) {
-          Transaction[] locks = site.getWriteLockTable();
-          if (site.getState().equals("failed") || 
-              locks[instruction.getIndex()] == null || transaction.getID() != locks[instruction.getIndex()].getID()) {
-            continue;
+      }
+    }
+  }
+  
+  /**
+   * Finds where each write of a committing transaction goes: every ready site where it holds
+   * the write lock. Quorum writes carry the version they commit as, other writes -1 so the
+   * site uses the next version.
+   * @param transaction the committing transaction
+   * @return the writes for each site as index, value and version, by site id
+   */
+  private TreeMap<Integer, List<int[]>> collectWrites(Transaction transaction) {
+    TreeMap<Integer, List<int[]>> writes = new TreeMap<Integer, List<int[]>>();
+    Map<Integer, Integer> versions = new HashMap<Integer, Integer>();
+    for (Instruction instruction : transaction.getInstructions()) {
+      if (!instruction.getAction().equals("write")) {
+        continue;
+      }
+      int index = instruction.getIndex();
+      int version = -1;
+      List<Site> targets = writeLockedSites(index, transaction);
+      if (usesQuorum(index)) {
+        version = 0;
+        for (Site site : targets) {
+          version = Math.max(version, site.getVersionAtIndex(index));
+        }
+        version = versions.containsKey(index) ? versions.get(index) + 1 : version + 1;
+        versions.put(index, version);
+      }
+      for (Site site : targets) {
+        if (!writes.containsKey(site.getID())) {
+          writes.put(site.getID(), new ArrayList<int[]>());
+        }
+        writes.get(site.getID()).add(new int[] {index, instruction.getValue(), version});
+      }
+    }
+    return writes;
+  }
+  
+  /**
+   * Adds a record of each write of a committed transaction to the cluster's change feed,
+   * if it has one, with the sites the write was sent to.
+   * @param transaction the committed transaction
+   * @param writes the writes sent to each site, by site id
+   */
+  private void publishChanges(Transaction transaction, Map<Integer, List<int[]>> writes) {
+    ChangeFeed feed = cluster.getChangeFeed();
+    if (feed == null) {
+      return;
+    }
+    long timestamp = timestamp();
+    for (Instruction instruction : transaction.getInstructions()) {
+      if (!instruction.getAction().equals("write")) {
+        continue;
+      }
+      long siteBits = 0;
+      for (Map.Entry<Integer, List<int[]>> entry : writes.entrySet()) {
+        for (int[] write : entry.getValue()) {
+          if (write[0] == instruction.getIndex()) {
+            siteBits |= ChangeFeed.siteBit(entry.getKey());
+            break;
           }
-          site.writeValueAtIndex(instruction.getIndex(), instruction.getValue());
         }
       }
+      feed.publish(timestamp, transaction.getID(), instruction.getIndex(), instruction.getValue(), siteBits);
     }
-    for (int i = 1; i < 11; i++){
-      Transaction[] writeLockTable = sites[i].getWriteLockTable();
-      List<ArrayList<Transaction>> readLockTable = sites[i].getReadLockTable();
-      for (int z = 1; z < 21; z++) {
-        if (writeLockTable[z] != null && writeLockTable[z].getID() == tID) {
-          writeLockTable[z] = null;
+  }
+  
+  /**
+   * Applies the writes of a committing transaction straight to the sites. If a site
+   * fails in the middle, the sites before it keep the writes they got.
+   * @return the writes for each site, by site id
+   */
+  private Map<Integer, List<int[]>> commitDirectly(Transaction transaction) {
+    TreeMap<Integer, List<int[]>> writes = collectWrites(transaction);
+    for (Map.Entry<Integer, List<int[]>> entry : writes.entrySet()) {
+      Site site = sites[entry.getKey()];
+      for (int[] write : entry.getValue()) {
+        if (write[2] < 0) {
+          site.writeValueAtIndex(write[0], write[1]);
+        } else {
+          site.writeValueAtIndex(write[0], write[1], write[2]);
+        }
+        commitMessages++;
+        if (cluster.failsDuringCommit(site.getID())) {
+          output.addOutput("Site " + site.getID() + " fails while transaction " + transaction.getID() + " commits");
+          cluster.siteFail(site.getID());
+          return writes;
         }
-        if (readLockTable.get(z).contains(transaction)) {
-          readLockTable.get(z).remove(transaction);
-        } 
       }
-      sites[i].promoteWaitingTransactions();
+    }
+    return writes;
+  }
+  
+  /**
+   * Runs two-phase commit for the transactions that ended since the last call.
+   * Every site gets one prepare message for all the group's writes there, votes for
+   * each transaction and logs a prepare record. The coordinator logs its decisions,
+   * and then every site gets one message with the decisions for its transactions.
+   * @return true if a commit group was committed
+   */
+  public boolean flushCommits() {
+    if (commitGroup.isEmpty() || coordinatorDown) {
+      return false;
+    }
+    long start = System.nanoTime();
+    List<Transaction> group = commitGroup;
+    commitGroup = new ArrayList<Transaction>();
+    Map<Integer, Map<Integer, List<int[]>>> prepares = new TreeMap<Integer, Map<Integer, List<int[]>>>();
+    List<Integer> tIDs = new ArrayList<Integer>();
+    for (Transaction transaction : group) {
+      tIDs.add(transaction.getID());
+      decisions.put(transaction.getID(), true);
+      TreeMap<Integer, List<int[]>> writes = collectWrites(transaction);
+      if (cluster.getChangeFeed() != null) {
+        preparedWrites.put(transaction.getID(), writes);
+      }
+      for (Map.Entry<Integer, List<int[]>> entry : writes.entrySet()) {
+        if (!prepares.containsKey(entry.getKey())) {
+          prepares.put(entry.getKey(), new LinkedHashMap<Integer, List<int[]>>());
+        }
+        prepares.get(entry.getKey()).put(transaction.getID(), entry.getValue());
+      }
+    }
+    for (Map.Entry<Integer, Map<Integer, List<int[]>>> entry : prepares.entrySet()) {
+      List<Boolean> votes = sites[entry.getKey()].prepare(entry.getValue());
+      commitMessages++;
+      int vote = 0;
+      for (Integer tID : entry.getValue().keySet()) {
+        if (!votes.get(vote++)) {
+          decisions.put(tID, false);
+        }
+      }
+      if (cluster.failsDuringCommit(entry.getKey())) {
+        output.addOutput("Site " + entry.getKey() + " fails after voting");
+        cluster.siteFail(entry.getKey());
+      }
+    }
+    for (Integer tID : tIDs) {
+      Set<Integer> participants = new HashSet<Integer>();
+      String record = (decisions.get(tID) ? "commit" : "abort") + " T" + tID + " at sites";
+      for (Map.Entry<Integer, Map<Integer, List<int[]>>> entry : prepares.entrySet()) {
+        if (entry.getValue().containsKey(tID)) {
+          participants.add(entry.getKey());
+          record += " " + entry.getKey();
+        }
+      }
+      coordinatorLog.add(record);
+      unacknowledged.put(tID, participants);
+    }
+    if (coordinatorFailing) {
+      coordinatorFailing = false;
+      coordinatorDown = true;
+      output.addOutput("The coordinator fails after logging its decisions for transactions " + tIDs);
+      return true;
+    }
+    deliverDecisions(tIDs);
+    commitGroups++;
+    commitNanos += (System.nanoTime() - start) * tIDs.size();
+    return true;
+  }
+  
+  /**
+   * Phase two of two-phase commit. Every ready participant gets one message with the
+   * decisions for its transactions, then the transactions finish at the coordinator.
+   * A failed participant learns the decisions when it recovers.
+   * @param tIDs the transactions whose decisions are sent
+   */
+  private void deliverDecisions(List<Integer> tIDs) {
+    for (int i = 1; i < sites.length; i++) {
+      Map<Integer, Boolean> siteDecisions = new LinkedHashMap<Integer, Boolean>();
+      for (Integer tID : tIDs) {
+        if (unacknowledged.containsKey(tID) && unacknowledged.get(tID).contains(i)) {
+          siteDecisions.put(tID, decisions.get(tID));
+        }
+      }
+      if (siteDecisions.isEmpty() || sites[i].getState().equals("failed")) {
+        continue;
+      }
+      sites[i].decide(siteDecisions);
+      commitMessages++;
+      for (Integer tID : siteDecisions.keySet()) {
+        acknowledge(tID, i);
+      }
+    }
+    for (Integer tID : tIDs) {
+      if (unacknowledged.containsKey(tID) && unacknowledged.get(tID).isEmpty()) {
+        unacknowledged.remove(tID);
+        coordinatorLog.add("end T" + tID);
+      }
+      Transaction transaction = findTransactionBy(tID);
+      if (!transaction.getState().equals("prepared")) {
+        continue;
+      }
+      Map<Integer, List<int[]>> writes = preparedWrites.remove(tID);
+      FlightEvents.Commit commitEvent = transaction.takeCommitEvent();
+      if (decisions.get(tID)) {
+        transaction.setState("ready");
+        committedCount++;
+        FlightEvents.commit(commitEvent, transaction, commitProtocol);
+        announceCommit(transaction);
+        if (writes != null) {
+          publishChanges(transaction, writes);
+        }
+        if (transaction.isSnapshotIsolated()) {
+          cluster.getSnapshots().commit(transaction, writtenIndexes(transaction));
+        }
+        printCommittedWrites(transaction);
+      } else {
+        abort(transaction, "Transaction " + tID + " could not be prepared at every site");
+      }
+      for (int i = 1; i < sites.length; i++){
+        sites[i].releaseLocks(transaction);
+        sites[i].promoteWaitingTransactions();
+      }
+      transaction.clearLeases();
     }
   }
   
@@ -497,7 +1963,7 @@ public class TransactionManager {
    * Author: Darren
    */
   public void dump() {
-    for (int i = 1; i < 11; i++) {
+    for (int i = 1; i < sites.length; i++) {
       dumpSite(i);
     }
   }
@@ -510,11 +1976,12 @@ public class TransactionManager {
    */
   public void dumpSite(int siteID) {
     Site site = sites[siteID];
-    Integer[] values = site.getCommittedValues();
     output.addOutput("Site " + siteID);
-    for (int i = 1; i < 21; i++) {
-      if (i % 2 == 0 || 1 + i % 10 == siteID) {
-        output.addOutput("Index: " + i + " Value: " + values[i]);
+    int scanID = site.openScan(1, placement.getIndexCount());
+    for (int first = 1; first <= placement.getIndexCount(); first += DUMP_PAGE) {
+      int[] page = site.scanThrough(scanID, first + DUMP_PAGE - 1);
+      for (int k = 0; k < page.length; k += 3) {
+        output.addOutput("Index: " + page[k] + " Value: " + page[k + 1]);
       }
     }
   }
@@ -522,41 +1989,119 @@ public class TransactionManager {
   /**
    * Called when dump(s) instruction sent,
    * this method dumps the committed values at each site.
+   * The sites are read a page at a time from one snapshot.
    * Author: Darren and Viswanath
    */
   public void shorterDump() {
     int numberOfIndexesChanged = 0;
-    for (int i = 1; i < 21; i++) {
-	  if (i % 2 == 0 ) {
-	    Set<Integer> siteValues = new HashSet<Integer>();
-	    for(int j=1;j<11;j++){
-		  Site site = sites[j];
-		  Integer[] values = site.getCommittedValues(); 
-		  siteValues.add(values[i]);
-		}
-	    if (siteValues.size() > 1 || siteValues.iterator().next() != 10) {
-	      if (siteValues.size() > 1) {
-	        output.addOutput("X" + i + ": Either " + siteValues + " at all sites");
-	      } else {
-	        output.addOutput("X" + i + ": " + siteValues.iterator().next() + " at all sites");
+    SnapshotScan scan = new SnapshotScan(placement, sites, 1, placement.getIndexCount(), DUMP_PAGE,
+        cluster.getOracle().now());
+    while (scan.hasNext()) {
+      int first = scan.getNextIndex();
+      int[][] pages = scan.nextPages();
+      List<Set<Integer>> pageValues = new ArrayList<Set<Integer>>();
+      for (int i = first; i < scan.getNextIndex(); i++) {
+        pageValues.add(new HashSet<Integer>());
+      }
+      for (int j = 1; j < pages.length; j++) {
+        for (int k = 0; k < pages[j].length; k += 3) {
+          pageValues.get(pages[j][k] - first).add(pages[j][k + 1]);
+        }
+      }
+      for (int i = first; i < scan.getNextIndex(); i++) {
+        Set<Integer> siteValues = pageValues.get(i - first);
+	    if (placement.isReplicated(i)) {
+	      String where = placement.getSites(i).size() == sites.length - 1 ? "all sites" : "sites " + placement.getSites(i);
+	      if (siteValues.size() > 1 || siteValues.iterator().next() != 10) {
+	        if (siteValues.size() > 1) {
+	          output.addOutput("X" + i + ": Either " + siteValues + " at " + where);
+	        } else {
+	          output.addOutput("X" + i + ": " + siteValues.iterator().next() + " at " + where);
+	        }
+	        numberOfIndexesChanged++;
+	      }
+	    } else {
+	      int value = siteValues.iterator().next();
+	      if(value!=10){
+	        output.addOutput("X" + i + ": " + value+ " at site " + placement.getSites(i).get(0));
+	        numberOfIndexesChanged++;
 	      }
-	      numberOfIndexesChanged++;
-	    }
-	  } else {
-	    int j = (i % 10) + 1;
-	    Site site = sites[j]; 
-	    Integer[] values = site.getCommittedValues();
-	    if(values[i]!=10){
-	      output.addOutput("X" + i + ": " + values[i]+ " at site " + j);
-	      numberOfIndexesChanged++;
 	    }
-	  }
+      }
     }
-    if (numberOfIndexesChanged < 20) {
+    if (numberOfIndexesChanged < placement.getIndexCount()) {
       output.addOutput("All other variables have their initial values.");
     }
   }
   
+  /**
+   * Called when dump(reads) instruction sent,
+   * this method dumps how many reads each site has served.
+   */
+  public void dumpReadCounts() {
+    for (int i = 1; i < sites.length; i++) {
+      output.addOutput("Site: " + i + " Reads: " + sites[i].getReadCount());
+    }
+  }
+  
+  /**
+   * @return how many transactions of this coordinator committed
+   */
+  public int getCommittedCount() {
+    return committedCount;
+  }
+  
+  /**
+   * @return how many transactions of this coordinator aborted
+   */
+  public int getAbortedCount() {
+    return abortedCount;
+  }
+  
+  /**
+   * @return how many times transactions that found no ready site tried again, and
+   * how many times they were put off by their backoff
+   */
+  public int[] getRetryCounts() {
+    return new int[] {retries, retriesPutOff};
+  }
+  
+  /**
+   * @return the most restarts of each transaction
+   */
+  public int getRestartBudget() {
+    return restartBudget;
+  }
+  
+  /**
+   * @return how many transactions restarted, how many instructions the aborted runs
+   * had been sent, which is the work restarts repeat, and how many transactions aborted
+   * for good because they had no restarts left
+   */
+  public int[] getRestartCounts() {
+    return new int[] {restartCount, replayedInstructions, outOfRestarts};
+  }
+  
+  /**
+   * @return the records of the coordinator's commit log
+   */
+  public List<String> getLog() {
+    return new ArrayList<String>(coordinatorLog);
+  }
+  
+  /**
+   * Called when dump(commits) instruction sent,
+   * this method dumps what committing has cost so far. The latency depends on the
+   * machine, so it is kept out of dump(stats).
+   */
+  public void dumpCommitCost() {
+    output.addOutput("Commit protocol: " + commitProtocol);
+    output.addOutput("Commit groups: " + commitGroups);
+    output.addOutput("Commit messages: " + commitMessages);
+    output.addOutput("Coordinator log records: " + coordinatorLog.size());
+    output.addOutput("Mean commit latency: " + (committedCount == 0 ? 0 : commitNanos / committedCount / 1000) + " us");
+  }
+  
   /**
    * Called when dump(xi) instruction sent,
    * this method dumps the given index's corresponding values at each site.
@@ -565,10 +2110,8 @@ public class TransactionManager {
    */
   public void dumpIndex(int index) {
     output.addOutput("Index " + index);
-    for (int i = 1; i < 11; i++) {
-      if (index % 2 == 0 || 1 + index % 10 == i) {
-        output.addOutput("Site: " + i + " Value: " + sites[i].getCommittedValueAtIndex(index));
-      }
+    for (int i : placement.getSites(index)) {
+      output.addOutput("Site: " + i + " Value: " + sites[i].getCommittedValueAtIndex(index));
     }
   }
   
@@ -578,7 +2121,7 @@ public class TransactionManager {
    */
   public String toString() {
     String val = "";
-    for (int i = 1; i < 11; i++) {
+    for (int i = 1; i < sites.length; i++) {
       val += sites[i];
     }
     return val;